@@ -0,0 +1,221 @@
+package io.github.rubenchristoffer.hetty;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Resolver that caches the results of another resolver in memory.
+ * Successful lookups are cached for ttl milliseconds and failed lookups for negativeTtl milliseconds.
+ * When a host has several addresses, the order of the returned addresses is rotated on every call
+ * so that new connections are spread across all of them (round-robin).
+ * The cache holds at most maxSize hosts, and the least recently used host is removed first
+ * when it is full. Expired entries are removed when they are accessed.
+ * @author Ruben Christoffer
+ */
+public class HTTPCachingResolver extends HTTPResolver {
+	
+	/**
+	 * Default number of milliseconds a successful lookup is cached.
+	 */
+	public static final long DEFAULT_TTL = 30000;
+	
+	/**
+	 * Default number of milliseconds a failed lookup is cached.
+	 */
+	public static final long DEFAULT_NEGATIVE_TTL = 10000;
+	
+	/**
+	 * Default maximum number of cached hosts.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 1024;
+	
+	private final HTTPResolver delegate;
+	private final long ttl;
+	private final long negativeTtl;
+	private final LinkedHashMap<String, CacheEntry> cache;
+	
+	private static class CacheEntry {
+		private final InetAddress[] addresses;
+		private final UnknownHostException failure;
+		private final long expiresAt;
+		private final AtomicInteger next = new AtomicInteger ();
+		
+		private CacheEntry (InetAddress[] addresses, UnknownHostException failure, long expiresAt) {
+			this.addresses = addresses;
+			this.failure = failure;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	/**
+	 * Creates a new HTTPCachingResolver where ttl={@link #DEFAULT_TTL} and negativeTtl={@link #DEFAULT_NEGATIVE_TTL}.
+	 * @param delegate is the resolver that does the actual lookups
+	 */
+	public HTTPCachingResolver (HTTPResolver delegate) {
+		this (delegate, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+	}
+	
+	/**
+	 * Creates a new HTTPCachingResolver.
+	 * @param delegate is the resolver that does the actual lookups
+	 * @param ttl is the number of milliseconds a successful lookup is cached
+	 * @param negativeTtl is the number of milliseconds a failed lookup is cached, where 0 disables negative caching
+	 * @throws IllegalArgumentException if delegate is null, or ttl or negativeTtl is negative
+	 */
+	public HTTPCachingResolver (HTTPResolver delegate, long ttl, long negativeTtl) {
+		this (delegate, ttl, negativeTtl, DEFAULT_MAX_SIZE);
+	}
+	
+	/**
+	 * Creates a new HTTPCachingResolver.
+	 * @param delegate is the resolver that does the actual lookups
+	 * @param ttl is the number of milliseconds a successful lookup is cached
+	 * @param negativeTtl is the number of milliseconds a failed lookup is cached, where 0 disables negative caching
+	 * @param maxSize is the maximum number of cached hosts
+	 * @throws IllegalArgumentException if delegate is null, ttl or negativeTtl is negative, or maxSize is less than 1
+	 */
+	public HTTPCachingResolver (HTTPResolver delegate, long ttl, long negativeTtl, final int maxSize) {
+		this.delegate = ArgumentValidator.requireNonNullArgument (delegate, "delegate cannot be null");
+		
+		if (ttl < 0 || negativeTtl < 0)
+			throw new IllegalArgumentException ("ttl and negativeTtl cannot be negative");
+		
+		if (maxSize < 1)
+			throw new IllegalArgumentException ("maxSize must be at least 1");
+		
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		
+		// Access order makes the eldest entry the least recently used one
+		this.cache = new LinkedHashMap<String, CacheEntry> (16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry (Map.Entry<String, CacheEntry> eldest) {
+				return size () > maxSize || eldest.getValue ().expiresAt <= currentTimeMillis ();
+			}
+		};
+	}
+	
+	@Override
+	public InetAddress[] resolve (String host) throws UnknownHostException {
+		ArgumentValidator.requireNonNullArgument (host, "host cannot be null");
+		
+		String key = host.toLowerCase ();
+		CacheEntry entry = getEntry (key);
+		
+		if (entry == null)
+			entry = lookup (key);
+		
+		if (entry.failure != null) {
+			UnknownHostException exception = new UnknownHostException (entry.failure.getMessage ());
+			exception.initCause (entry.failure);
+			
+			throw exception;
+		}
+		
+		return rotate (entry);
+	}
+	
+	/**
+	 * Resolves hosts ahead of time, so that connections opened later do not have to wait for lookups.
+	 * Hosts that fail to resolve are negatively cached, and do not cause an exception.
+	 * @param hosts is the host names you want to resolve
+	 */
+	public void preResolve (String... hosts) {
+		for (String host : hosts)
+			lookup (host.toLowerCase ());
+	}
+	
+	/**
+	 * Removes a host from the cache, so that it is looked up again next time.
+	 * @param host is the host name you want to remove
+	 */
+	public void invalidate (String host) {
+		synchronized (cache) {
+			cache.remove (host.toLowerCase ());
+		}
+	}
+	
+	/**
+	 * Removes all hosts from the cache.
+	 */
+	public void clear () {
+		synchronized (cache) {
+			cache.clear ();
+		}
+	}
+	
+	/**
+	 * Gets the number of cached hosts, including negative entries and expired entries that have not been accessed since they expired.
+	 * @return number of cache entries
+	 */
+	public int getCacheSize () {
+		synchronized (cache) {
+			return cache.size ();
+		}
+	}
+	
+	/**
+	 * Gets the current time used for expiring cache entries.
+	 * Override this if you need to control time when testing.
+	 * @return current time in milliseconds
+	 */
+	protected long currentTimeMillis () {
+		return System.currentTimeMillis ();
+	}
+	
+	private CacheEntry getEntry (String host) {
+		synchronized (cache) {
+			CacheEntry entry = cache.get (host);
+			
+			if (entry != null && entry.expiresAt <= currentTimeMillis ()) {
+				cache.remove (host);
+				return null;
+			}
+			
+			return entry;
+		}
+	}
+	
+	private CacheEntry lookup (String host) {
+		CacheEntry entry;
+		
+		try {
+			InetAddress[] addresses = delegate.resolve (host);
+			
+			if (addresses == null || addresses.length == 0)
+				throw new UnknownHostException (String.format ("No addresses found for %s", host));
+			
+			entry = new CacheEntry (addresses.clone (), null, currentTimeMillis () + ttl);
+		} catch (UnknownHostException e) {
+			entry = new CacheEntry (null, e, currentTimeMillis () + negativeTtl);
+		}
+		
+		// Lookups are done outside of the lock, since they may block
+		if (entry.expiresAt > currentTimeMillis ()) {
+			synchronized (cache) {
+				cache.put (host, entry);
+			}
+		}
+		
+		return entry;
+	}
+	
+	private static InetAddress[] rotate (CacheEntry entry) {
+		InetAddress[] addresses = entry.addresses;
+		InetAddress[] rotated = new InetAddress[addresses.length];
+		int start = (entry.next.getAndIncrement () & Integer.MAX_VALUE) % addresses.length;
+		
+		for (int i = 0; i < addresses.length; i++)
+			rotated[i] = addresses[(start + i) % addresses.length];
+		
+		return rotated;
+	}
+	
+}
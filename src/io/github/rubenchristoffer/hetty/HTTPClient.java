@@ -0,0 +1,152 @@
+package io.github.rubenchristoffer.hetty;
+
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * HTTPClient runs blocking navigations on an executor and shares a connection pool between them.
+ * By default every navigation runs on its own virtual thread when the JVM supports it (Java 21 or newer), 
+ * which makes it possible to keep a very large number of sessions going at once
+ * while still writing them against the blocking HTTPConnection / HTTPNavigator API.
+ * None of the blocking I/O in this library is done while holding a monitor, so
+ * virtual threads are not pinned to their carrier threads while waiting for the network.
+ * @author Ruben Christoffer
+ */
+public class HTTPClient {
+
+	private final HTTPConnectionPool pool;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	
+	/**
+	 * Creates a new HTTPClient with a new HTTPConnectionPool.
+	 * Tasks run on virtual threads if supported, otherwise on {@link HTTPExecutors#getDefaultExecutor()}.
+	 */
+	public HTTPClient () {
+		this (new HTTPConnectionPool ());
+	}
+	
+	/**
+	 * Creates a new HTTPClient.
+	 * Tasks run on virtual threads if supported, otherwise on {@link HTTPExecutors#getDefaultExecutor()}.
+	 * @param pool is the pool connections are leased from
+	 * @throws IllegalArgumentException if pool is null
+	 */
+	public HTTPClient (HTTPConnectionPool pool) {
+		this (pool, HTTPExecutors.isVirtualThreadSupported () ? HTTPExecutors.newVirtualThreadExecutor () : null, true);
+	}
+	
+	/**
+	 * Creates a new HTTPClient that runs tasks on the given executor.
+	 * The executor is not shut down when the client is closed.
+	 * @param pool is the pool connections are leased from
+	 * @param executor is the executor tasks should run on
+	 * @throws IllegalArgumentException if pool or executor is null
+	 */
+	public HTTPClient (HTTPConnectionPool pool, ExecutorService executor) {
+		this (pool, ArgumentValidator.requireNonNullArgument (executor, "executor cannot be null"), false);
+	}
+	
+	private HTTPClient (HTTPConnectionPool pool, ExecutorService executor, boolean ownsExecutor) {
+		this.pool = ArgumentValidator.requireNonNullArgument (pool, "pool cannot be null");
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor && executor != null;
+	}
+	
+	/**
+	 * Calls {@link #navigate(URL, HTTPRequest, boolean)} where applyFilters=true.
+	 * @param url is the URL the initial request should be sent to
+	 * @param req is the initial request that should be sent
+	 * @return future that completes with the last response
+	 */
+	public CompletableFuture<HTTPResponse> navigate (URL url, HTTPRequest req) {
+		return navigate (url, req, true);
+	}
+	
+	/**
+	 * Follows redirects starting with req on a task of its own.
+	 * @param url is the URL the initial request should be sent to
+	 * @param req is the initial request that should be sent. It must not be used by anyone else until the future is done
+	 * @param applyFilters determines whether filters should be applied when sending requests
+	 * @return future that completes with the last response, or exceptionally with a HTTPException
+	 * @throws IllegalArgumentException if url or req is null
+	 */
+	public CompletableFuture<HTTPResponse> navigate (URL url, HTTPRequest req, boolean applyFilters) {
+		HTTPNavigator navigator = newNavigator (url, req);
+		navigator.setExecutor (getExecutor ());
+		
+		return navigator.navigateTillEndAsync (applyFilters);
+	}
+	
+	/**
+	 * Runs a task on the executor of this client. 
+	 * This is meant for sessions written against the blocking API, for example
+	 * a task that creates a navigator using {@link #newNavigator(URL, HTTPRequest)} and sends several requests.
+	 * @param task is the task you want to run
+	 * @return future that completes with the result of the task. If the task throws a checked exception,
+	 * the future completes exceptionally with a CompletionException wrapping it
+	 * @throws IllegalArgumentException if task is null
+	 */
+	public <T> CompletableFuture<T> submit (final Callable<T> task) {
+		ArgumentValidator.requireNonNullArgument (task, "task cannot be null");
+		
+		return CompletableFuture.supplyAsync (new Supplier<T> () {
+			@Override
+			public T get () {
+				try {
+					return task.call ();
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new CompletionException (e);
+				}
+			}
+		}, getExecutor ());
+	}
+	
+	/**
+	 * Creates a new navigator that leases its connections from the pool of this client.
+	 * @param url is the URL the initial request should be sent to
+	 * @param req is the initial request that should be sent
+	 * @return a new HTTPNavigator
+	 * @throws IllegalArgumentException if url or req is null
+	 */
+	public HTTPNavigator newNavigator (URL url, HTTPRequest req) {
+		return new HTTPNavigator (pool, url, req);
+	}
+	
+	/**
+	 * Closes the connection pool and shuts down the executor if it was created by this client.
+	 * Tasks that are already running are allowed to finish.
+	 */
+	public void close () {
+		if (ownsExecutor)
+			executor.shutdown ();
+		
+		pool.close ();
+	}
+	
+	/**
+	 * Gets the executor tasks run on.
+	 * @return the executor of this client
+	 */
+	public Executor getExecutor () {
+		return executor != null ? executor : HTTPExecutors.getDefaultExecutor ();
+	}
+	
+	/**
+	 * Gets the connection pool.
+	 * @return the pool connections are leased from
+	 */
+	public HTTPConnectionPool getConnectionPool () {
+		return pool;
+	}
+	
+}
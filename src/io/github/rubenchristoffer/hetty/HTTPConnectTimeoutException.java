@@ -0,0 +1,20 @@
+package io.github.rubenchristoffer.hetty;
+
+/**
+ * Exception that occurs when connecting to a server takes longer than the connect timeout, or longer than the time left before the deadline.
+ * @author Ruben Christoffer
+ */
+public class HTTPConnectTimeoutException extends HTTPConnectionException {
+	
+	private static final long serialVersionUID = -2716046581915410617L;
+
+	/**
+	 * Creates a new HTTPConnectTimeoutException.
+	 * @param message is the exception message
+	 * @param cause is the cause of the exception
+	 */
+	public HTTPConnectTimeoutException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
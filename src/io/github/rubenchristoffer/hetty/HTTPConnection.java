@@ -1,25 +1,45 @@
 package io.github.rubenchristoffer.hetty;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.SSLSocket;
 
+import io.github.rubenchristoffer.hetty.body.HTTPBody;
 import io.github.rubenchristoffer.hetty.codec.HTTPChunkedTransferDecoder;
+import io.github.rubenchristoffer.hetty.codec.HTTPContentDecoder;
 import io.github.rubenchristoffer.hetty.codec.HTTPContentLengthTransferDecoder;
+import io.github.rubenchristoffer.hetty.codec.HTTPDeflateContentDecoder;
+import io.github.rubenchristoffer.hetty.codec.HTTPGzipContentDecoder;
 import io.github.rubenchristoffer.hetty.codec.HTTPTransferDecoder;
 import io.github.rubenchristoffer.hetty.codec.HTTPUnsupportedContentException;
-import io.github.rubenchristoffer.hetty.codec.HTTPTransferDecoder.DecodeInfo;
+import io.github.rubenchristoffer.hetty.misc.DirectByteArrayOutputStream;
 import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
 
 /**
@@ -32,11 +52,36 @@ import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
  */
 public class HTTPConnection {
 
+	/**
+	 * Default number of milliseconds to wait for '100 Continue' before the body is sent anyway.
+	 */
+	public static final int DEFAULT_EXPECT_CONTINUE_TIMEOUT = 1000;
+
 	private URL url;
 	private ArrayList<HTTPTransferDecoder> supportedTransferDecoders = new ArrayList<HTTPTransferDecoder> ();
+	private ArrayList<HTTPContentDecoder> supportedContentDecoders = new ArrayList<HTTPContentDecoder> ();
+	private long maxDecodedBodySize = HTTPContentDecoder.DEFAULT_MAX_DECODED_SIZE;
+
+	private static final int OUTPUT_BUFFER_SIZE = 8192;
+
+	private Executor executor = HTTPExecutors.getDefaultExecutor ();
+	private HTTPTLSConfig tlsConfig = HTTPTLSConfig.getDefault ();
+	private HTTPResolver resolver = HTTPResolver.getDefault ();
+
+	private int connectTimeout;
+	private int readTimeout;
+	private volatile long deadline;
+	private boolean timeoutFromDeadline;
+	private int appliedReadTimeout;
+	private boolean probing;
+	private int expectContinueTimeout = DEFAULT_EXPECT_CONTINUE_TIMEOUT;
+	private int continueWait;
+	private HTTPRawPacket earlyResponse;
+	private HTTPRawPacket reusedRawPacket;
+	private final ReentrantLock exchangeLock = new ReentrantLock ();
 
 	private Socket socket;
-	private BufferedInputStream inStream;
+	private HTTPPacketReader reader;
 	private BufferedOutputStream outStream;
 
 	/**
@@ -131,11 +176,83 @@ public class HTTPConnection {
 		return Collections.unmodifiableList (supportedTransferDecoders);
 	}
 
+	// ### Functions for managing content decoders ###
+
+	/**
+	 * Adds a new supported content decoder for this connection.
+	 * No content decoders are supported by default, so bodies are read as they are sent.
+	 * Bodies are only decoded if the server sends a 'Content-Encoding' header, which
+	 * it should only do if the request has an 'Accept-Encoding' header.
+	 * @param contentDecoder is the decoder you want this connection to support
+	 * @throws IllegalArgumentException if contentDecoder is null
+	 * @see io.github.rubenchristoffer.hetty.filters.HTTPAcceptEncodingFilter
+	 */
+	public void addSupportedContentDecoder (HTTPContentDecoder contentDecoder) {
+		supportedContentDecoders.add (ArgumentValidator.requireNonNullArgument (contentDecoder, "contentDecoder cannot be null"));
+	}
+
+	/**
+	 * Adds decoders for gzip and deflate, which are the codings requested by 
+	 * {@link io.github.rubenchristoffer.hetty.filters.HTTPAcceptEncodingFilter} by default.
+	 * Decoded bodies no longer match the 'Content-Encoding' and 'Content-Length' headers, 
+	 * so these headers are removed from packets that have been decoded.
+	 */
+	public void addDefaultContentDecoders () {
+		addSupportedContentDecoder (new HTTPGzipContentDecoder ());
+		addSupportedContentDecoder (new HTTPDeflateContentDecoder ());
+	}
+
+	/**
+	 * Removes a supported content decoder for this connection.
+	 * @param index is the index of the decoder you want to remove
+	 */
+	public void removeSupportedContentDecoder (int index) {
+		supportedContentDecoders.remove (index);
+	}
+
+	/**
+	 * Gets supported content decoders.
+	 * @return a read-only wrapper list of the supported decoders that is always up-to-date
+	 */
+	public List<HTTPContentDecoder> getSupportedContentDecoders () {
+		return Collections.unmodifiableList (supportedContentDecoders);
+	}
+
+	/**
+	 * Sets the maximum size of a body after content decoding.
+	 * Reading a body that decodes to more bytes fails with a HTTPUnsupportedContentException,
+	 * which protects against small compressed bodies that decompress to huge amounts of data.
+	 * The rest of the body is not read, so the connection should be closed afterwards.
+	 * Bodies written to a stream, channel or file sink are not limited.
+	 * This is {@link HTTPContentDecoder#DEFAULT_MAX_DECODED_SIZE} by default.
+	 * @param maxDecodedBodySize is the maximum number of bytes
+	 * @throws IllegalArgumentException if maxDecodedBodySize is less than 1
+	 */
+	public void setMaxDecodedBodySize (long maxDecodedBodySize) {
+		if (maxDecodedBodySize < 1)
+			throw new IllegalArgumentException ("maxDecodedBodySize must be at least 1");
+
+		this.maxDecodedBodySize = maxDecodedBodySize;
+
+		if (reader != null)
+			reader.setMaxDecodedBodySize (maxDecodedBodySize);
+	}
+
+	/**
+	 * Gets the maximum size of a body after content decoding.
+	 * @return the maximum number of bytes
+	 */
+	public long getMaxDecodedBodySize () {
+		return maxDecodedBodySize;
+	}
+
 	/**
 	 * Opens a TCP / SSL socket and connects to the server.
 	 * It will automatically detect if you're trying to connect
 	 * using HTTP or HTTPS.
-	 * @throws HTTPConnectionException if something goes wrong
+	 * @throws HTTPConnectTimeoutException if connecting (including TLS handshake) takes longer than the connect timeout
+	 * @throws HTTPDeadlineExceededException if the deadline is reached while connecting
+	 * @throws HTTPConnectionException if something else goes wrong
 	 * opening the connection
 	 */
 	public void openConnection () {
@@ -143,22 +260,31 @@ public class HTTPConnection {
 		int port = url.getPort () == -1 ? (url.getProtocol ().toLowerCase ().equals ("https") ? 443 : 80)
 				: url.getPort ();
 
-		if (url.getProtocol ().toLowerCase ().equals ("https")) {
+		boolean https = url.getProtocol ().toLowerCase ().equals ("https");
+		Socket plainSocket = connect (port, https ? "HTTPS" : "HTTP");
+
+		if (https) {
 			try {
-				socket = SSLSocketFactory.getDefault ().createSocket (url.getHost (), port);
+				// Handshake is part of connecting
+				plainSocket.setSoTimeout (getTimeout (connectTimeout));
+				socket = tlsConfig.createSocket (plainSocket, url.getHost (), port);
+				socket.setSoTimeout (0);
 			} catch (IOException e) {
+				try {
+					plainSocket.close ();
+				} catch (IOException closeException) {
+					// Already failing
+				}
+
+				if (e instanceof SocketTimeoutException)
+					throw timeoutException (true, "Timed out during TLS handshake", e);
+
 				throw new HTTPConnectionException (
 						String.format ("Could not open HTTPS connection on port %d." + " Perhaps URL is wrong?", port),
 						e);
 			}
 		} else {
-			try {
-				socket = new Socket (url.getHost (), port);
-			} catch (IOException e) {
-				throw new HTTPConnectionException (
-						String.format ("Could not open HTTP connection on port %d." + " Perhaps URL is wrong?", port),
-						e);
-			}
+			socket = plainSocket;
 		}
 
 		try {
@@ -168,13 +294,99 @@ public class HTTPConnection {
 		}
 
 		try {
-			inStream = new BufferedInputStream (socket.getInputStream ());
-			outStream = new BufferedOutputStream (socket.getOutputStream ());
+			appliedReadTimeout = 0;
+			earlyResponse = null;
+			reader = new HTTPPacketReader (new TimeoutInputStream (socket.getInputStream ()));
+			reader.setContentDecoders (supportedContentDecoders);
+			reader.setMaxDecodedBodySize (maxDecodedBodySize);
+			outStream = new BufferedOutputStream (socket.getOutputStream (), OUTPUT_BUFFER_SIZE);
 		} catch (IOException e) {
 			throw new HTTPConnectionException ("Could not initialize input / output streams", e);
 		}
 	}
 
+	private Socket connect (int port, String protocol) {
+		InetAddress[] addresses;
+
+		try {
+			addresses = resolver.resolve (url.getHost ());
+		} catch (UnknownHostException e) {
+			throw new HTTPConnectionException (String.format ("Could not resolve host '%s'. Perhaps URL is wrong?", url.getHost ()), e);
+		}
+
+		IOException lastException = null;
+
+		// Try every address of host until one accepts the connection
+		for (InetAddress address : addresses) {
+			int timeout = getTimeout (connectTimeout);
+			SocketChannel channel = null;
+
+			try {
+				// Sockets opened through a channel can send file bodies using sendfile
+				channel = SocketChannel.open ();
+				channel.socket ().connect (new InetSocketAddress (address, port), timeout);
+
+				return channel.socket ();
+			} catch (IOException e) {
+				lastException = e;
+
+				if (channel != null) {
+					try {
+						channel.close ();
+					} catch (IOException closeException) {
+						// Trying next address anyway
+					}
+				}
+			}
+		}
+
+		if (lastException instanceof SocketTimeoutException)
+			throw timeoutException (true, String.format ("Timed out connecting to %s:%d", url.getHost (), port), lastException);
+
+		throw new HTTPConnectionException (
+				String.format ("Could not open %s connection on port %d." + " Perhaps URL is wrong?", protocol, port), lastException);
+	}
+
+	/**
+	 * Gets the timeout to use for the next blocking operation, which is the
+	 * smallest of timeout and the time left before the deadline.
+	 * @param timeout is the timeout of the operation in milliseconds, where 0 means no timeout
+	 * @return timeout in milliseconds, where 0 means no timeout
+	 * @throws HTTPDeadlineExceededException if the deadline has been reached
+	 */
+	private int getTimeout (int timeout) {
+		timeoutFromDeadline = false;
+
+		if (deadline == 0)
+			return timeout;
+
+		long remaining = TimeUnit.NANOSECONDS.toMillis (deadline - System.nanoTime ());
+
+		if (remaining <= 0)
+			throw new HTTPDeadlineExceededException ("Deadline was reached", null);
+
+		if (timeout != 0 && timeout <= remaining)
+			return timeout;
+
+		timeoutFromDeadline = true;
+
+		return (int) Math.min (remaining, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates the exception for a blocking operation that timed out, 
+	 * using the timeout returned by the last call to {@link #getTimeout(int)}.
+	 */
+	private HTTPConnectionException timeoutException (boolean connecting, String message, IOException cause) {
+		if (timeoutFromDeadline)
+			return new HTTPDeadlineExceededException (message + " before deadline", cause);
+
+		if (connecting)
+			return new HTTPConnectTimeoutException (message, cause);
+
+		return new HTTPReadTimeoutException (message, cause);
+	}
+
 	/**
 	 * Is the connection open?
 	 * @return true if the connection is open, false if the socket is null
@@ -187,6 +399,39 @@ public class HTTPConnection {
 		return !socket.isClosed ();
 	}
 
+	/**
+	 * Checks whether an open connection has been closed by the server or has become unusable.
+	 * This is useful before reusing a connection that has been idle for a while.
+	 * It waits at most 1 millisecond for the server to signal end of stream.
+	 * Any bytes received are kept for the next packet that is read.
+	 * @return true if the connection is not open or the server has closed it, false otherwise
+	 */
+	public boolean isStale () {
+		if (!isConnectionOpen () || reader == null)
+			return true;
+
+		if (reader.available () > 0)
+			return false;
+
+		try {
+			int timeout = socket.getSoTimeout ();
+
+			try {
+				probing = true;
+				socket.setSoTimeout (1);
+
+				return reader.peek () == -1;
+			} catch (SocketTimeoutException e) {
+				return false;
+			} finally {
+				probing = false;
+				socket.setSoTimeout (timeout);
+			}
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
 	/**
 	 * Closes the TCP / SSL socket.
 	 * @throws HTTPConnectionException if it could not close connection
@@ -210,22 +455,130 @@ public class HTTPConnection {
 
 	/**
 	 * Sends a HTTP packet (either a HTTPRequest or HTTPResponse) to the server.
+	 * If the packet is a request with body and an 'Expect: 100-continue' header, only the header
+	 * is sent at first. The body is sent when the server answers with '100 Continue', or when
+	 * it has not answered within the expect continue timeout. If the server answers with a 
+	 * final status instead (such as 401 or 413), the body is never sent. That response is returned
+	 * by the next read, and the connection is closed afterwards.
 	 * @param packet is the packet you want to send
 	 * @param applyFilters determines whether filters will be applied before sending packet
 	 * @throws HTTPConnectionException if something went wrong sending HTTP packet
+	 * @see #setExpectContinueTimeout(int)
 	 */
 	public void sendPacket (HTTPPacket packet, boolean applyFilters) {
 		ArgumentValidator.requireNonNullArgument (packet, "packet cannot be null");
 
+		sendGeneratedPacket (packet, packet.generatePacket (url, applyFilters));
+	}
+
+	/**
+	 * Sends a packet that has already been generated.
+	 * @param packet is the packet the raw packet was generated from
+	 * @param rawHttpPacket is the generated packet
+	 * @throws HTTPConnectionException if something went wrong sending HTTP packet
+	 * @see #sendPacket(HTTPPacket, boolean)
+	 */
+	void sendGeneratedPacket (HTTPPacket packet, HTTPRawPacket rawHttpPacket) {
 		try {
-			sendRawPacket (packet.generatePacket (url, applyFilters));
+			if (packet instanceof HTTPRequest && isExpectingContinue (packet) && hasBody (rawHttpPacket))
+				sendRawPacketExpectingContinue (rawHttpPacket);
+			else
+				sendRawPacket (rawHttpPacket);
 		} catch (HTTPConnectionException e) {
+			if (isTimeout (e))
+				throw e;
+
 			throw new HTTPConnectionException ("Something went wrong sending HTTP packet", e.getCause ());
 		}
 	}
 
+	/**
+	 * Timeouts are rethrown as they are, so that callers can tell them apart from other failures.
+	 */
+	private static boolean isTimeout (HTTPConnectionException e) {
+		return e instanceof HTTPConnectTimeoutException || e instanceof HTTPReadTimeoutException || e instanceof HTTPDeadlineExceededException;
+	}
+
+	private static boolean isExpectingContinue (HTTPPacket packet) {
+		for (String value : packet.getHeaders ("Expect")) {
+			if (value.trim ().equalsIgnoreCase ("100-continue"))
+				return true;
+		}
+
+		return false;
+	}
+
+	private static boolean hasBody (HTTPRawPacket rawHttpPacket) {
+		return rawHttpPacket.getBody ().size () > 0 || (rawHttpPacket.getExternalBody () != null && rawHttpPacket.getExternalBody ().getLength () != 0);
+	}
+
+	private void sendRawPacketExpectingContinue (HTTPRawPacket rawHttpPacket) {
+		try {
+			rawHttpPacket.getHeader ().writeTo (outStream);
+			outStream.flush ();
+		} catch (IOException e) {
+			throw new HTTPConnectionException ("Something went wrong sending raw HTTP packet", e);
+		} catch (NullPointerException e) {
+			throw new HTTPConnectionException ("OutputStream is null. Perhaps the connection is not open?", e);
+		}
+
+		if (awaitContinue ()) {
+			writeRawPacket (rawHttpPacket, false);
+			flush ();
+		}
+	}
+
+	/**
+	 * Waits at most the expect continue timeout for the server to answer the header of a request.
+	 * Other interim responses, such as '103 Early Hints', are skipped.
+	 * @return true if the body should be sent, false if the server has already sent a final response
+	 */
+	private boolean awaitContinue () {
+		while (true) {
+			int available;
+
+			try {
+				continueWait = expectContinueTimeout;
+				available = reader.peek ();
+			} catch (SocketTimeoutException e) {
+				// Servers that do not support expectations never answer, so the body is sent anyway
+				return true;
+			} catch (IOException e) {
+				throw new HTTPConnectionException ("Something went wrong waiting for 100 Continue", e);
+			} finally {
+				continueWait = 0;
+			}
+
+			if (available == -1)
+				throw new HTTPConnectionException ("Connection was closed while waiting for 100 Continue", null);
+
+			HTTPRawPacket response = reader.readRawPacket (supportedTransferDecoders, true, null, false);
+
+			if (!reader.isLastPacketInterim ()) {
+				earlyResponse = response;
+				return false;
+			}
+
+			if (((HTTPResponse) HTTPParser.parsePacket (response)).getStatusCode () == 100)
+				return true;
+		}
+	}
+
+	/**
+	 * Takes the final response that was received instead of '100 Continue'.
+	 * The server still expects the body that was never sent, so the connection cannot be reused.
+	 */
+	private HTTPRawPacket takeEarlyResponse () {
+		HTTPRawPacket response = earlyResponse;
+		earlyResponse = null;
+		closeQuietly ();
+
+		return response;
+	}
+
 	/**
 	 * Sends a raw HTTP packet to the server.
+	 * External bodies (such as file bodies) are never read into memory.
 	 * @param rawHttpPacket is the packet you want to send
 	 * @throws HTTPConnectionException if something goes wrong sending raw packet
 	 * @throws IllegalArgumentException if rawHttpPacket is null
@@ -234,12 +587,181 @@ public class HTTPConnection {
 		ArgumentValidator.requireNonNullArgument (rawHttpPacket, "rawHttpPacket cannot be null");
 
 		try {
-			sendRawBytes (rawHttpPacket.toByteArray ());
+			writeRawPacket (rawHttpPacket);
+			flush ();
 		} catch (HTTPConnectionException e) {
+			if (isTimeout (e))
+				throw e;
+
 			throw new HTTPConnectionException ("Something went wrong sending raw HTTP packet", e);
 		}
 	}
 
+	/**
+	 * Sends a request template with its current slot values to the server.
+	 * The packet is copied straight into the output buffer, so nothing is generated.
+	 * @param template is the template you want to send
+	 * @throws HTTPConnectionException if something goes wrong sending template
+	 * @throws IllegalArgumentException if template is null
+	 */
+	public void sendTemplate (HTTPRequestTemplate template) throws HTTPConnectionException {
+		ArgumentValidator.requireNonNullArgument (template, "template cannot be null");
+
+		try {
+			template.writeTo (outStream);
+			outStream.flush ();
+		} catch (IOException e) {
+			throw new HTTPConnectionException ("Something went wrong sending request template", e);
+		} catch (NullPointerException e) {
+			throw new HTTPConnectionException ("OutputStream is null. Perhaps the connection is not open?", e);
+		}
+	}
+
+	/**
+	 * Writes a raw HTTP packet to the output buffer without flushing it.
+	 * Used for writing several packets back-to-back.
+	 * External bodies are transferred straight to the socket channel on HTTP connections,
+	 * and written through the output buffer on HTTPS connections.
+	 * @param rawHttpPacket is the packet you want to write
+	 * @throws HTTPConnectionException if something goes wrong writing raw packet
+	 */
+	void writeRawPacket (HTTPRawPacket rawHttpPacket) {
+		writeRawPacket (rawHttpPacket, true);
+	}
+
+	private void writeRawPacket (HTTPRawPacket rawHttpPacket, boolean includeHeader) {
+		try {
+			HTTPBody externalBody = rawHttpPacket.getExternalBody ();
+			// TLS sockets layered over a plain socket expose the plain channel, which must not be written to
+			SocketChannel channel = socket instanceof SSLSocket ? null : socket.getChannel ();
+			ByteBuffer body = DirectByteArrayOutputStream.toByteBuffer (rawHttpPacket.getBody ());
+
+			if (rawHttpPacket.isChunked ()) {
+				// Encoded bodies and bodies with unknown length are written through the output buffer while they are being chunked
+				if (includeHeader)
+					rawHttpPacket.getHeader ().writeTo (outStream);
+
+				rawHttpPacket.writeBody (outStream);
+
+				return;
+			}
+
+			if (channel != null && body.remaining () >= OUTPUT_BUFFER_SIZE) {
+				// Large bodies are written together with header in a single gathering write,
+				// while small packets are collected in the output buffer
+				outStream.flush ();
+
+				if (includeHeader)
+					writeFully (channel, DirectByteArrayOutputStream.toByteBuffer (rawHttpPacket.getHeader ()), body);
+				else
+					writeFully (channel, body);
+			} else {
+				// Writes straight from the internal arrays of the streams
+				if (includeHeader)
+					rawHttpPacket.getHeader ().writeTo (outStream);
+
+				rawHttpPacket.getBody ().writeTo (outStream);
+			}
+
+			if (externalBody != null) {
+				if (channel != null) {
+					// Header has to be sent before the external body is transferred directly to the channel
+					outStream.flush ();
+					externalBody.transferTo (channel);
+				} else {
+					externalBody.writeTo (outStream);
+				}
+			}
+		} catch (IOException e) {
+			throw new HTTPConnectionException ("Something went wrong writing raw HTTP packet", e);
+		} catch (NullPointerException e) {
+			throw new HTTPConnectionException ("OutputStream is null. Perhaps the connection is not open?", e);
+		}
+	}
+
+	/**
+	 * Input stream that applies the read timeout and deadline to every read from the socket.
+	 * The connection is closed when a read times out, since the rest of the packet may still arrive later.
+	 */
+	private class TimeoutInputStream extends FilterInputStream {
+
+		private TimeoutInputStream (InputStream inStream) {
+			super (inStream);
+		}
+
+		@Override
+		public int read () throws IOException {
+			byte[] singleByte = new byte[1];
+
+			return read (singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xFF;
+		}
+
+		@Override
+		public int read (byte[] buffer, int offset, int length) throws IOException {
+			if (probing)
+				return in.read (buffer, offset, length);
+
+			int timeout;
+
+			try {
+				timeout = getTimeout (readTimeout);
+			} catch (HTTPDeadlineExceededException e) {
+				closeQuietly ();
+				throw e;
+			}
+
+			boolean waitingForContinue = continueWait != 0 && (timeout == 0 || continueWait < timeout);
+
+			if (waitingForContinue)
+				timeout = continueWait;
+
+			if (timeout != appliedReadTimeout) {
+				socket.setSoTimeout (timeout);
+				appliedReadTimeout = timeout;
+			}
+
+			try {
+				return in.read (buffer, offset, length);
+			} catch (SocketTimeoutException e) {
+				// Not receiving '100 Continue' in time is not an error
+				if (waitingForContinue)
+					throw e;
+
+				closeQuietly ();
+				throw timeoutException (false, String.format ("No bytes received for %d milliseconds", timeout), e);
+			}
+		}
+
+	}
+
+	private void closeQuietly () {
+		try {
+			socket.close ();
+		} catch (IOException e) {
+			// Already failing
+		}
+	}
+
+	private static void writeFully (SocketChannel channel, ByteBuffer... buffers) throws IOException {
+		// Blocking channels may still write fewer bytes than requested
+		while (buffers[buffers.length - 1].hasRemaining ())
+			channel.write (buffers);
+	}
+
+	/**
+	 * Flushes the output buffer.
+	 * @throws HTTPConnectionException if something goes wrong sending data
+	 */
+	void flush () {
+		try {
+			outStream.flush ();
+		} catch (IOException e) {
+			throw new HTTPConnectionException ("Something went wrong sending data", e);
+		} catch (NullPointerException e) {
+			throw new HTTPConnectionException ("OutputStream is null. Perhaps the connection is not open?", e);
+		}
+	}
+
 	/**
 	 * Sends raw byte array to server.
 	 * @param bytes is the byte array you want to send
@@ -258,106 +780,389 @@ public class HTTPConnection {
 		}
 	}
 
+	/**
+	 * Reads the raw HTTP packet from the server where bodyExpected=true.
+	 * @return a raw HTTP packet
+	 * @see #readRawPacket(boolean)
+	 */
+	public HTTPRawPacket readRawPacket () {
+		return readRawPacket (true);
+	}
+
 	/**
 	 * Reads the raw HTTP packet from the server.
 	 * This will first read the entire HTTP header. 
 	 * After reading header, it will start at the bottom of the list of
 	 * supported decoders and use the first available decoder. 
+	 * @param bodyExpected should be false when reading the response to a HEAD request
 	 * @return a raw HTTP packet
 	 * @throws HTTPConnectionException if something goes wrong with the connection
 	 * @throws HTTPUnsupportedContentException if no decoders support decoding the body
+	 * @see HTTPPacketReader#readRawPacket(List, boolean)
 	 */
-	public HTTPRawPacket readRawPacket () {
-		ByteArrayOutputStream headerStream = new ByteArrayOutputStream (1024);
-		ByteArrayOutputStream bodyStream = new ByteArrayOutputStream ();
-		char character;
-		StringBuilder lineBuilder = new StringBuilder ();
-		HashMap<String, String> headers = new HashMap<String, String> ();
+	public HTTPRawPacket readRawPacket (boolean bodyExpected) {
+		if (earlyResponse != null)
+			return takeEarlyResponse ();
+
+		if (reader == null)
+			throw new HTTPConnectionException ("InputStream is null. Perhaps the connection is not open?", null);
+
+		return reader.readRawPacket (supportedTransferDecoders, bodyExpected);
+	}
+
+	/**
+	 * Reads the raw HTTP packet from the server and parses it to create a
+	 * HTTPPacket. You can cast this to either HTTPRequest or HTTPResponse.
+	 * This method is a combination of {@link #readRawPacket()}
+	 * and {@link io.github.rubenchristoffer.hetty.HTTPParser#parsePacket(HTTPRawPacket)}
+	 * @return HTTPPacket object
+	 */
+	public HTTPPacket readPacket () {
+		return readPacket (true);
+	}
 
-		boolean startBody = false;
-		boolean finishedBody = false;
-		HTTPTransferDecoder transferDecoder = null;
+	/**
+	 * Reads the raw HTTP packet from the server and parses it to create a
+	 * HTTPPacket. You can cast this to either HTTPRequest or HTTPResponse.
+	 * @param bodyExpected should be false when reading the response to a HEAD request
+	 * @return HTTPPacket object
+	 * @see #readRawPacket(boolean)
+	 */
+	public HTTPPacket readPacket (boolean bodyExpected) {
+		return parseReadPacket (readRawPacket (bodyExpected));
+	}
+
+	/**
+	 * Reads the HTTP packet from the server and writes the decoded body to a sink as it arrives.
+	 * Only the header is parsed into the returned packet, whose body is empty.
+	 * The amount of memory used does not depend on the size of the body.
+	 * The sink is neither flushed nor closed.
+	 * @param bodySink is the stream the body should be written to
+	 * @param bodyExpected should be false when reading the response to a HEAD request
+	 * @return HTTPPacket object with an empty body
+	 * @throws HTTPConnectionException if something goes wrong with the connection or writing to bodySink
+	 * @throws IllegalArgumentException if bodySink is null
+	 * @see #isLastPacketComplete()
+	 */
+	public HTTPPacket readPacket (OutputStream bodySink, boolean bodyExpected) {
+		ArgumentValidator.requireNonNullArgument (bodySink, "bodySink cannot be null");
 
-		while (!socket.isClosed () && !finishedBody) {
-			int read;
+		if (earlyResponse != null) {
+			HTTPRawPacket response = takeEarlyResponse ();
 
 			try {
-				read = inStream.read ();
+				response.getBody ().writeTo (bodySink);
 			} catch (IOException e) {
-				throw new HTTPConnectionException ("Something went wrong reading raw HTTP packet", e);
+				throw new HTTPConnectionException ("Could not write body to sink", e);
 			}
 
-			// Reached end of stream
-			if (read == -1) {
-				break;
-			}
+			return parseReadPacket (new HTTPRawPacket (response.getHeader (), new ByteArrayOutputStream ()));
+		}
 
-			if (!startBody) {
-				// Read header first
-				headerStream.write (read);
-				character = (char) read;
-				lineBuilder.append (character);
-
-				if (character == '\n') {
-					String line = lineBuilder.toString ();
-
-					// Check if reached end of header
-					if (line.equals ("\r\n")) {
-						startBody = true;
-
-						// If so, Determine which transfer decoder to use
-						for (int i = 0; i < supportedTransferDecoders.size (); i++) {
-							DecodeInfo status = supportedTransferDecoders.get (i).getDecodeInfo (headers);
-
-							if (status == DecodeInfo.CAN_DECODE) {
-								transferDecoder = supportedTransferDecoders.get (i);
-								break;
-							} else if (status == DecodeInfo.EMPTY_BODY) {
-								finishedBody = true;
-								break;
-							}
-						}
-
-						if (!finishedBody) {
-							// If no transfer decoders can decode body then throw exception
-							if (transferDecoder != null) {
-								transferDecoder.initialize (headers);
-							} else {
-								throw new HTTPUnsupportedContentException ("There were no available decoders in the list of supported decoders."
-										+ " The rest of the content will not be read by socket!", null);
-							}
-						}
-					} else {
-						// Add header to hashmap (if it is a header)
-						String[] split = line.split (":", 2);
-
-						if (split.length == 2) {
-							// Trim actually removes \r for us, which is great
-							headers.put (split[0].toLowerCase (), split[1].trim ().toLowerCase ());
-						}
-
-						lineBuilder.setLength (0);
-					}
+		if (reader == null)
+			throw new HTTPConnectionException ("InputStream is null. Perhaps the connection is not open?", null);
+
+		return parseReadPacket (reader.readRawPacket (supportedTransferDecoders, bodyExpected, bodySink));
+	}
+
+	/**
+	 * Reads the HTTP response from the server into an existing response where bodyExpected=true.
+	 * @param response is the response you want to fill
+	 * @return the response that was passed in
+	 * @see #readPacket(HTTPResponse, boolean)
+	 */
+	public HTTPResponse readPacket (HTTPResponse response) {
+		return readPacket (response, true);
+	}
+
+	/**
+	 * Reads the HTTP response from the server into an existing response instead of creating a new one.
+	 * The response is reset first, and the body is read straight into its body stream, so
+	 * headers and body keep the capacity they already have. Together with a raw packet kept by
+	 * this connection, this means reading responses of a similar size does not allocate any
+	 * buffers once the response has been used a few times.
+	 * @param response is the response you want to fill
+	 * @param bodyExpected should be false when reading the response to a HEAD request
+	 * @return the response that was passed in
+	 * @throws HTTPConnectionException if something goes wrong with the connection
+	 * @throws IllegalArgumentException if response is null, or the server sent a request instead of a response
+	 * @see HTTPPacket#reset()
+	 */
+	public HTTPResponse readPacket (HTTPResponse response, boolean bodyExpected) {
+		ArgumentValidator.requireNonNullArgument (response, "response cannot be null");
+
+		if (earlyResponse != null) {
+			HTTPParser.parsePacket (checkPacketRead (takeEarlyResponse ()), response);
+
+			return response;
+		}
+
+		if (reader == null)
+			throw new HTTPConnectionException ("InputStream is null. Perhaps the connection is not open?", null);
+
+		if (reusedRawPacket == null)
+			reusedRawPacket = new HTTPRawPacket (new DirectByteArrayOutputStream (1024), new DirectByteArrayOutputStream (0));
+
+		response.reset ();
+		reader.readRawPacket (supportedTransferDecoders, bodyExpected, response.getBodyStream (), true, reusedRawPacket);
+		HTTPParser.parseHeader (checkPacketRead (reusedRawPacket), response);
+
+		return response;
+	}
+
+	/**
+	 * Gets the status code of the response that is being read.
+	 * While a body is being written to a sink, this is the status code of the response it belongs to.
+	 * @return status code, or -1 if no response header has been read
+	 */
+	int getReadStatusCode () {
+		return reader == null ? -1 : reader.getStatusCode ();
+	}
+
+	private static HTTPRawPacket checkPacketRead (HTTPRawPacket rawPacket) {
+		// Nothing is read if the server closed the connection before responding
+		if (rawPacket.getHeader ().size () == 0)
+			throw new HTTPConnectionException ("Connection was closed before packet was received", null);
+
+		return rawPacket;
+	}
+
+	private static HTTPPacket parseReadPacket (HTTPRawPacket rawPacket) {
+		return HTTPParser.parsePacket (checkPacketRead (rawPacket));
+	}
+
+	/**
+	 * Reads the HTTP packet from the server and writes the decoded body to a channel as it arrives.
+	 * The channel should be in blocking mode, and it is not closed.
+	 * @param bodySink is the channel the body should be written to
+	 * @param bodyExpected should be false when reading the response to a HEAD request
+	 * @return HTTPPacket object with an empty body
+	 * @throws IllegalArgumentException if bodySink is null
+	 * @see #readPacket(OutputStream, boolean)
+	 */
+	public HTTPPacket readPacket (WritableByteChannel bodySink, boolean bodyExpected) {
+		ArgumentValidator.requireNonNullArgument (bodySink, "bodySink cannot be null");
+
+		return readPacket (Channels.newOutputStream (bodySink), bodyExpected);
+	}
+
+	/**
+	 * Reads the HTTP packet from the server and writes the decoded body to a file as it arrives.
+	 * The file is created if it does not exist, and replaced if it does.
+	 * @param bodySink is the file the body should be written to
+	 * @param bodyExpected should be false when reading the response to a HEAD request
+	 * @return HTTPPacket object with an empty body
+	 * @throws HTTPConnectionException if something goes wrong with the connection or writing to file
+	 * @throws IllegalArgumentException if bodySink is null
+	 * @see #readPacket(OutputStream, boolean)
+	 */
+	public HTTPPacket readPacket (File bodySink, boolean bodyExpected) {
+		ArgumentValidator.requireNonNullArgument (bodySink, "bodySink cannot be null");
+
+		try (FileOutputStream fileStream = new FileOutputStream (bodySink)) {
+			return readPacket (fileStream, bodyExpected);
+		} catch (IOException e) {
+			throw new HTTPConnectionException ("Could not write body to file", e);
+		}
+	}
+
+	/**
+	 * Was the last packet read from the server received in its entirety?
+	 * This is false if the server closed the connection or reading failed before the packet was complete.
+	 * @return true if the last packet was complete or no packet has been read yet, false otherwise
+	 */
+	public boolean isLastPacketComplete () {
+		return reader != null && reader.isLastPacketComplete ();
+	}
+
+	/**
+	 * Sends a request and reads the response without blocking the calling thread.
+	 * The exchange runs on the executor of this connection and opens the connection first
+	 * if it is not open. Exchanges started from several threads are run one at a time,
+	 * since a connection can only handle one exchange at a time.
+	 * Filters are applied.
+	 * @param request is the request you want to send
+	 * @return future that completes with the response, or exceptionally with a HTTPException
+	 * @throws IllegalArgumentException if request is null
+	 * @see #setExecutor(Executor)
+	 */
+	public CompletableFuture<HTTPResponse> sendAsync (final HTTPRequest request) {
+		ArgumentValidator.requireNonNullArgument (request, "request cannot be null");
+
+		return CompletableFuture.supplyAsync (new Supplier<HTTPResponse> () {
+			@Override
+			public HTTPResponse get () {
+				exchangeLock.lock ();
+
+				try {
+					if (!isConnectionOpen ())
+						openConnection ();
+
+					sendPacket (request);
+
+					return (HTTPResponse) readPacket (!request.getRequestMethod ().equalsIgnoreCase ("HEAD"));
+				} finally {
+					exchangeLock.unlock ();
 				}
-			} else {
-				// Then read body using a valid transfer decoder and stop when decoder has
-				// detected end of body
-				finishedBody = transferDecoder.decodeNext (bodyStream, read);
 			}
-		}
+		}, executor);
+	}
 
-		return new HTTPRawPacket (headerStream, bodyStream);
+	/**
+	 * Sets the executor used by {@link #sendAsync(HTTPRequest)}.
+	 * By default this is {@link HTTPExecutors#getDefaultExecutor()}.
+	 * @param executor is the executor that should run exchanges
+	 * @throws IllegalArgumentException if executor is null
+	 */
+	public void setExecutor (Executor executor) {
+		this.executor = ArgumentValidator.requireNonNullArgument (executor, "executor cannot be null");
 	}
 
 	/**
-	 * Reads the raw HTTP packet from the server and parses it to create a
-	 * HTTPPacket. You can cast this to either HTTPRequest or HTTPResponse.
-	 * This method is a combination of {@link #readRawPacket()}
-	 * and {@link io.github.rubenchristoffer.hetty.HTTPParser#parsePacket(HTTPRawPacket)}
-	 * @return HTTPPacket object
+	 * Gets the executor used by {@link #sendAsync(HTTPRequest)}.
+	 * @return the executor that runs exchanges
 	 */
-	public HTTPPacket readPacket () {
-		return HTTPParser.parsePacket (readRawPacket ());
+	public Executor getExecutor () {
+		return executor;
+	}
+
+	/**
+	 * Sets the TLS config used when opening HTTPS connections.
+	 * By default this is {@link HTTPTLSConfig#getDefault()}. Connections sharing a config
+	 * resume each others TLS sessions.
+	 * @param tlsConfig is the config you want to use
+	 * @throws IllegalArgumentException if tlsConfig is null
+	 */
+	public void setTLSConfig (HTTPTLSConfig tlsConfig) {
+		this.tlsConfig = ArgumentValidator.requireNonNullArgument (tlsConfig, "tlsConfig cannot be null");
+	}
+
+	/**
+	 * Gets the TLS config used when opening HTTPS connections.
+	 * @return the TLS config of this connection
+	 */
+	public HTTPTLSConfig getTLSConfig () {
+		return tlsConfig;
+	}
+
+	/**
+	 * Sets the connect timeout, which is the maximum time spent connecting to each address of
+	 * the server (and doing the TLS handshake for HTTPS connections). 
+	 * @param connectTimeout is the timeout in milliseconds, where 0 means no timeout (default)
+	 * @throws IllegalArgumentException if connectTimeout is negative
+	 * @see HTTPConnectTimeoutException
+	 */
+	public void setConnectTimeout (int connectTimeout) {
+		if (connectTimeout < 0)
+			throw new IllegalArgumentException ("connectTimeout cannot be negative");
+
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Gets the connect timeout.
+	 * @return the connect timeout in milliseconds, where 0 means no timeout
+	 */
+	public int getConnectTimeout () {
+		return connectTimeout;
+	}
+
+	/**
+	 * Sets the read timeout, which is the maximum time to wait for the next bytes from the server.
+	 * The timeout is restarted every time bytes are received.
+	 * @param readTimeout is the timeout in milliseconds, where 0 means no timeout (default)
+	 * @throws IllegalArgumentException if readTimeout is negative
+	 * @see HTTPReadTimeoutException
+	 */
+	public void setReadTimeout (int readTimeout) {
+		if (readTimeout < 0)
+			throw new IllegalArgumentException ("readTimeout cannot be negative");
+
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Gets the read timeout.
+	 * @return the read timeout in milliseconds, where 0 means no timeout
+	 */
+	public int getReadTimeout () {
+		return readTimeout;
+	}
+
+	/**
+	 * Sets how long to wait for '100 Continue' after sending the header of a request
+	 * with an 'Expect: 100-continue' header. The body is sent anyway when the timeout is reached,
+	 * since not every server supports expectations.
+	 * This is {@link #DEFAULT_EXPECT_CONTINUE_TIMEOUT} by default.
+	 * @param expectContinueTimeout is the timeout in milliseconds
+	 * @throws IllegalArgumentException if expectContinueTimeout is less than 1
+	 * @see #sendPacket(HTTPPacket, boolean)
+	 */
+	public void setExpectContinueTimeout (int expectContinueTimeout) {
+		if (expectContinueTimeout < 1)
+			throw new IllegalArgumentException ("expectContinueTimeout must be at least 1");
+
+		this.expectContinueTimeout = expectContinueTimeout;
+	}
+
+	/**
+	 * Gets the expect continue timeout.
+	 * @return the timeout in milliseconds
+	 */
+	public int getExpectContinueTimeout () {
+		return expectContinueTimeout;
+	}
+
+	/**
+	 * Starts a deadline that ends timeout milliseconds from now.
+	 * Connecting and reading fail with a HTTPDeadlineExceededException once the deadline has been reached,
+	 * so a request / response exchange started after this cannot take longer than timeout 
+	 * (except for writes that block because the server does not read).
+	 * The deadline stays until {@link #clearDeadline()} is called.
+	 * @param timeout is the number of milliseconds until the deadline
+	 * @throws IllegalArgumentException if timeout is less than 1
+	 * @see HTTPNavigator#setTimeout(long)
+	 */
+	public void startDeadline (long timeout) {
+		if (timeout < 1)
+			throw new IllegalArgumentException ("timeout must be at least 1");
+
+		setDeadline (System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (timeout));
+	}
+
+	/**
+	 * Removes the deadline.
+	 */
+	public void clearDeadline () {
+		deadline = 0;
+	}
+
+	/**
+	 * Sets the deadline as a {@link System#nanoTime()} value.
+	 * Used for sharing a deadline between several connections.
+	 * @param deadline is the deadline, or 0 for no deadline
+	 */
+	void setDeadline (long deadline) {
+		// 0 is reserved for no deadline
+		this.deadline = deadline == 0 ? 1 : deadline;
+	}
+
+	/**
+	 * Sets the resolver used for looking up the host when opening the connection.
+	 * By default this is {@link HTTPResolver#getDefault()}.
+	 * @param resolver is the resolver you want to use
+	 * @throws IllegalArgumentException if resolver is null
+	 */
+	public void setResolver (HTTPResolver resolver) {
+		this.resolver = ArgumentValidator.requireNonNullArgument (resolver, "resolver cannot be null");
+	}
+
+	/**
+	 * Gets the resolver used for looking up the host when opening the connection.
+	 * @return the resolver of this connection
+	 */
+	public HTTPResolver getResolver () {
+		return resolver;
 	}
 
 	/**
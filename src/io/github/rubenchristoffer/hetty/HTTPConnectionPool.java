@@ -0,0 +1,713 @@
+package io.github.rubenchristoffer.hetty;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.github.rubenchristoffer.hetty.codec.HTTPContentDecoder;
+import io.github.rubenchristoffer.hetty.codec.HTTPDeflateContentDecoder;
+import io.github.rubenchristoffer.hetty.codec.HTTPGzipContentDecoder;
+import io.github.rubenchristoffer.hetty.codec.HTTPTransferDecoder;
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Pool of HTTPConnection objects that keeps connections open between requests
+ * so that they can be reused by several callers.
+ * Connections are grouped by scheme, host and port and there is a maximum
+ * number of connections per group. A connection is leased with {@link #lease(URL)}
+ * and must be given back with {@link #release(HTTPConnection, HTTPResponse)}
+ * or {@link #discard(HTTPConnection)} when the caller is done with it.
+ * Idle connections are closed by a background thread when they have been idle for too long.
+ * @author Ruben Christoffer
+ */
+public class HTTPConnectionPool {
+
+	/**
+	 * Default maximum number of connections per scheme / host / port.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+
+	/**
+	 * Default number of milliseconds a connection can be idle before it is closed.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	private final int maxConnectionsPerHost;
+	private final long idleTimeout;
+
+	private final ReentrantLock lock = new ReentrantLock ();
+	private final HashMap<String, HostPool> hostPools = new HashMap<String, HostPool> ();
+	private final IdentityHashMap<HTTPConnection, PooledConnection> leasedConnections = new IdentityHashMap<HTTPConnection, PooledConnection> ();
+	private final ScheduledExecutorService idleEvictor;
+	private boolean closed;
+	private volatile HTTPTLSConfig tlsConfig = HTTPTLSConfig.getDefault ();
+	private volatile HTTPResolver resolver = HTTPResolver.getDefault ();
+	private volatile int connectTimeout;
+	private volatile int readTimeout;
+	private final CopyOnWriteArrayList<HTTPContentDecoder> contentDecoders = new CopyOnWriteArrayList<HTTPContentDecoder> ();
+	private volatile long maxDecodedBodySize = HTTPContentDecoder.DEFAULT_MAX_DECODED_SIZE;
+
+	private static class HostPool {
+		private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection> ();
+		private final Condition available;
+		private int leased;
+
+		private HostPool (Condition available) {
+			this.available = available;
+		}
+	}
+
+	private static class PooledConnection {
+		private final String key;
+		private final HTTPConnection connection;
+		private final ArrayList<HTTPTransferDecoder> transferDecoders;
+		private long expiresAt;
+		private int remainingRequests = -1;
+
+		private PooledConnection (String key, HTTPConnection connection) {
+			this.key = key;
+			this.connection = connection;
+			this.transferDecoders = new ArrayList<HTTPTransferDecoder> (connection.getSupportedTransferDecoders ());
+		}
+	}
+
+	/**
+	 * Creates a new HTTPConnectionPool where maxConnectionsPerHost={@link #DEFAULT_MAX_CONNECTIONS_PER_HOST}
+	 * and idleTimeout={@link #DEFAULT_IDLE_TIMEOUT}.
+	 */
+	public HTTPConnectionPool () {
+		this (DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Creates a new HTTPConnectionPool.
+	 * A background thread closes connections that have been idle for longer than idleTimeout.
+	 * @param maxConnectionsPerHost is the maximum number of open connections per scheme / host / port
+	 * @param idleTimeout is the number of milliseconds a connection can be idle before it is closed
+	 * @throws IllegalArgumentException if maxConnectionsPerHost or idleTimeout is less than 1
+	 */
+	public HTTPConnectionPool (int maxConnectionsPerHost, long idleTimeout) {
+		if (maxConnectionsPerHost < 1)
+			throw new IllegalArgumentException ("maxConnectionsPerHost must be at least 1");
+
+		if (idleTimeout < 1)
+			throw new IllegalArgumentException ("idleTimeout must be at least 1");
+
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.idleTimeout = idleTimeout;
+
+		idleEvictor = Executors.newSingleThreadScheduledExecutor (new ThreadFactory () {
+			@Override
+			public Thread newThread (Runnable runnable) {
+				Thread thread = new Thread (runnable, "hetty-connection-pool-evictor");
+				thread.setDaemon (true);
+
+				return thread;
+			}
+		});
+
+		long evictionInterval = Math.max (idleTimeout / 2, 1);
+
+		idleEvictor.scheduleWithFixedDelay (new Runnable () {
+			@Override
+			public void run () {
+				evictIdleConnections ();
+			}
+		}, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Leases a connection for the given URL and waits as long as it takes
+	 * for a connection to become available.
+	 * @param url is the URL you want to send a request to
+	 * @return an open HTTPConnection with its URL set to url
+	 * @see #lease(URL, long)
+	 */
+	public HTTPConnection lease (URL url) {
+		return lease (url, 0);
+	}
+
+	/**
+	 * Leases a connection for the given URL.
+	 * An idle connection to the same scheme / host / port is reused if it is not stale.
+	 * Otherwise a new connection is opened, unless the maximum number of connections
+	 * for that host has been reached, in which case it waits for a connection to be released.
+	 * @param url is the URL you want to send a request to
+	 * @param timeout is the maximum number of milliseconds to wait for a connection, or 0 to wait forever
+	 * @return an open HTTPConnection with its URL set to url
+	 * @throws IllegalArgumentException if url is null
+	 * @throws HTTPConnectionException if the pool is closed, timed out waiting for a connection
+	 * or the connection could not be opened
+	 */
+	public HTTPConnection lease (URL url, long timeout) {
+		ArgumentValidator.requireNonNullArgument (url, "url cannot be null");
+
+		String key = getKey (url);
+		long deadline = System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (timeout);
+
+		while (true) {
+			PooledConnection candidate = null;
+			ArrayList<PooledConnection> expired = new ArrayList<PooledConnection> ();
+
+			lock.lock ();
+
+			try {
+				HostPool hostPool = getHostPool (key);
+
+				while (true) {
+					if (closed)
+						throw new HTTPConnectionException ("Connection pool is closed", null);
+
+					long now = System.currentTimeMillis ();
+
+					// Reuse most recently released connection
+					while (candidate == null && !hostPool.idle.isEmpty ()) {
+						PooledConnection idle = hostPool.idle.pollLast ();
+
+						if (idle.expiresAt > now)
+							candidate = idle;
+						else
+							expired.add (idle);
+					}
+
+					if (candidate != null || hostPool.leased + hostPool.idle.size () < maxConnectionsPerHost) {
+						hostPool.leased++;
+						break;
+					}
+
+					if (!awaitAvailable (hostPool, timeout, deadline))
+						throw new HTTPConnectionException (String.format ("Timed out waiting for a connection to %s", key), null);
+				}
+			} finally {
+				lock.unlock ();
+			}
+
+			// Network operations happen outside of lock
+			closeAll (expired);
+
+			if (candidate != null) {
+				if (candidate.connection.isStale ()) {
+					closeQuietly (candidate.connection);
+					returnSlot (key);
+					continue;
+				}
+
+				candidate.connection.setURL (url);
+				applyContentDecoding (candidate.connection);
+				markLeased (candidate);
+
+				return candidate.connection;
+			}
+
+			HTTPConnection connection = new HTTPConnection (url);
+			connection.setTLSConfig (tlsConfig);
+			connection.setResolver (resolver);
+			connection.setConnectTimeout (connectTimeout);
+			connection.setReadTimeout (readTimeout);
+			applyContentDecoding (connection);
+
+			try {
+				connection.openConnection ();
+			} catch (RuntimeException e) {
+				returnSlot (key);
+				throw e;
+			}
+
+			markLeased (new PooledConnection (key, connection));
+
+			return connection;
+		}
+	}
+
+	/**
+	 * Releases a leased connection without inspecting a response.
+	 * The connection is kept open for reuse if it is still open.
+	 * @param connection is the connection you leased
+	 * @see #release(HTTPConnection, HTTPResponse)
+	 */
+	public void release (HTTPConnection connection) {
+		release (connection, null);
+	}
+
+	/**
+	 * Releases a leased connection so that it can be reused by other callers.
+	 * The response is used for determining whether the server wants the connection
+	 * to be kept alive. The connection is closed instead of kept if the response
+	 * has a 'Connection: close' header, is a HTTP/1.0 response without 'Connection: keep-alive'
+	 * or the 'Keep-Alive' header says that no more requests are allowed.
+	 * The 'Keep-Alive' timeout parameter shortens how long the connection can stay idle, and
+	 * every release uses up one of the requests allowed by its max parameter.
+	 * Connections where the last packet was not read in its entirety are closed as well.
+	 * Settings changed while the connection was leased (executor, timeouts, deadline, decoders,
+	 * TLS config and resolver) are reset to those of the pool before it is reused.
+	 * NOTE: The entire response must have been read before releasing connection.
+	 * @param connection is the connection you leased
+	 * @param lastResponse is the last response read from the connection, or null if unknown
+	 * @throws IllegalArgumentException if connection is null or was not leased from this pool
+	 */
+	public void release (HTTPConnection connection, HTTPResponse lastResponse) {
+		ArgumentValidator.requireNonNullArgument (connection, "connection cannot be null");
+
+		PooledConnection pooled = unmarkLeased (connection);
+		// A truncated exchange leaves the rest of the response unread on the connection
+		boolean reusable = connection.isConnectionOpen () && connection.isLastPacketComplete ();
+		long expiresAt = System.currentTimeMillis () + idleTimeout;
+
+		// The exchange that was just done used up one of the requests the server allows
+		if (pooled.remainingRequests > 0)
+			pooled.remainingRequests--;
+
+		if (reusable && lastResponse != null) {
+			boolean keepAlive = !lastResponse.getVersion ().equals ("1.0");
+
+			for (String value : lastResponse.getHeaders ("Connection")) {
+				if (value.trim ().equalsIgnoreCase ("close"))
+					keepAlive = false;
+				else if (value.trim ().equalsIgnoreCase ("keep-alive"))
+					keepAlive = true;
+			}
+
+			for (String value : lastResponse.getHeaders ("Keep-Alive")) {
+				for (String parameter : value.split (",")) {
+					String[] split = parameter.trim ().split ("=", 2);
+
+					if (split.length != 2)
+						continue;
+
+					try {
+						if (split[0].trim ().equalsIgnoreCase ("timeout")) {
+							expiresAt = Math.min (expiresAt, System.currentTimeMillis () + Long.parseLong (split[1].trim ()) * 1000);
+						} else if (split[0].trim ().equalsIgnoreCase ("max")) {
+							pooled.remainingRequests = Integer.parseInt (split[1].trim ());
+						}
+					} catch (NumberFormatException e) {
+						// Ignore malformed parameters
+					}
+				}
+			}
+
+			reusable = keepAlive;
+		}
+
+		if (pooled.remainingRequests == 0)
+			reusable = false;
+
+		if (!reusable) {
+			closeQuietly (connection);
+			returnSlot (pooled.key);
+
+			return;
+		}
+
+		pooled.expiresAt = expiresAt;
+		resetLeaseState (pooled);
+		boolean close = false;
+
+		lock.lock ();
+
+		try {
+			HostPool hostPool = getHostPool (pooled.key);
+			hostPool.leased--;
+
+			if (closed) {
+				close = true;
+			} else {
+				hostPool.idle.addLast (pooled);
+			}
+
+			hostPool.available.signal ();
+		} finally {
+			lock.unlock ();
+		}
+
+		if (close)
+			closeQuietly (connection);
+	}
+
+	/**
+	 * Closes a leased connection instead of giving it back to the pool.
+	 * You should do this if something went wrong while using the connection.
+	 * @param connection is the connection you leased
+	 * @throws IllegalArgumentException if connection is null or was not leased from this pool
+	 */
+	public void discard (HTTPConnection connection) {
+		ArgumentValidator.requireNonNullArgument (connection, "connection cannot be null");
+
+		PooledConnection pooled = unmarkLeased (connection);
+
+		closeQuietly (connection);
+		returnSlot (pooled.key);
+	}
+
+	/**
+	 * Closes all idle connections that have been idle for too long.
+	 * This is done periodically by a background thread, so you do not need
+	 * to call this yourself.
+	 */
+	public void evictIdleConnections () {
+		ArrayList<PooledConnection> expired = new ArrayList<PooledConnection> ();
+		long now = System.currentTimeMillis ();
+
+		lock.lock ();
+
+		try {
+			for (HostPool hostPool : hostPools.values ()) {
+				Iterator<PooledConnection> iterator = hostPool.idle.iterator ();
+
+				while (iterator.hasNext ()) {
+					PooledConnection pooled = iterator.next ();
+
+					if (pooled.expiresAt <= now) {
+						iterator.remove ();
+						expired.add (pooled);
+						hostPool.available.signal ();
+					}
+				}
+			}
+		} finally {
+			lock.unlock ();
+		}
+
+		closeAll (expired);
+	}
+
+	/**
+	 * Closes all idle connections and stops the background eviction thread.
+	 * Leased connections are closed when they are released.
+	 */
+	public void close () {
+		ArrayList<PooledConnection> idle = new ArrayList<PooledConnection> ();
+
+		lock.lock ();
+
+		try {
+			closed = true;
+
+			for (HostPool hostPool : hostPools.values ()) {
+				idle.addAll (hostPool.idle);
+				hostPool.idle.clear ();
+				hostPool.available.signalAll ();
+			}
+		} finally {
+			lock.unlock ();
+		}
+
+		idleEvictor.shutdownNow ();
+		closeAll (idle);
+	}
+
+	/**
+	 * Sets the TLS config used by connections opened by this pool from now on.
+	 * By default this is {@link HTTPTLSConfig#getDefault()}.
+	 * @param tlsConfig is the config you want to use
+	 * @throws IllegalArgumentException if tlsConfig is null
+	 */
+	public void setTLSConfig (HTTPTLSConfig tlsConfig) {
+		this.tlsConfig = ArgumentValidator.requireNonNullArgument (tlsConfig, "tlsConfig cannot be null");
+	}
+
+	/**
+	 * Gets the TLS config used by connections opened by this pool.
+	 * @return the TLS config
+	 */
+	public HTTPTLSConfig getTLSConfig () {
+		return tlsConfig;
+	}
+
+	/**
+	 * Sets the connect timeout of connections opened by this pool from now on.
+	 * @param connectTimeout is the timeout in milliseconds, where 0 means no timeout (default)
+	 * @throws IllegalArgumentException if connectTimeout is negative
+	 * @see HTTPConnection#setConnectTimeout(int)
+	 */
+	public void setConnectTimeout (int connectTimeout) {
+		if (connectTimeout < 0)
+			throw new IllegalArgumentException ("connectTimeout cannot be negative");
+
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Sets the read timeout of connections opened by this pool from now on.
+	 * @param readTimeout is the timeout in milliseconds, where 0 means no timeout (default)
+	 * @throws IllegalArgumentException if readTimeout is negative
+	 * @see HTTPConnection#setReadTimeout(int)
+	 */
+	public void setReadTimeout (int readTimeout) {
+		if (readTimeout < 0)
+			throw new IllegalArgumentException ("readTimeout cannot be negative");
+
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Sets the resolver used by connections opened by this pool from now on.
+	 * By default this is {@link HTTPResolver#getDefault()}.
+	 * @param resolver is the resolver you want to use
+	 * @throws IllegalArgumentException if resolver is null
+	 */
+	public void setResolver (HTTPResolver resolver) {
+		this.resolver = ArgumentValidator.requireNonNullArgument (resolver, "resolver cannot be null");
+	}
+
+	/**
+	 * Gets the resolver used by connections opened by this pool.
+	 * @return the resolver
+	 */
+	public HTTPResolver getResolver () {
+		return resolver;
+	}
+
+	/**
+	 * Adds a content decoder that connections leased from this pool support from now on.
+	 * No content decoders are supported by default, so bodies are read as they are sent.
+	 * Idle connections get the decoder the next time they are leased.
+	 * @param contentDecoder is the decoder you want connections to support
+	 * @throws IllegalArgumentException if contentDecoder is null
+	 * @see HTTPConnection#addSupportedContentDecoder(HTTPContentDecoder)
+	 */
+	public void addSupportedContentDecoder (HTTPContentDecoder contentDecoder) {
+		contentDecoders.add (ArgumentValidator.requireNonNullArgument (contentDecoder, "contentDecoder cannot be null"));
+	}
+
+	/**
+	 * Adds decoders for gzip and deflate to connections leased from this pool from now on.
+	 * @see HTTPConnection#addDefaultContentDecoders()
+	 */
+	public void addDefaultContentDecoders () {
+		contentDecoders.add (new HTTPGzipContentDecoder ());
+		contentDecoders.add (new HTTPDeflateContentDecoder ());
+	}
+
+	/**
+	 * Removes a content decoder that connections leased from this pool support.
+	 * @param index is the index of the decoder you want to remove
+	 */
+	public void removeSupportedContentDecoder (int index) {
+		contentDecoders.remove (index);
+	}
+
+	/**
+	 * Gets the content decoders supported by connections leased from this pool.
+	 * @return a read-only wrapper list of the supported decoders that is always up-to-date
+	 */
+	public List<HTTPContentDecoder> getSupportedContentDecoders () {
+		return Collections.unmodifiableList (contentDecoders);
+	}
+
+	/**
+	 * Sets the maximum size of a body after content decoding for connections leased from this pool from now on.
+	 * @param maxDecodedBodySize is the maximum number of bytes
+	 * @throws IllegalArgumentException if maxDecodedBodySize is less than 1
+	 * @see HTTPConnection#setMaxDecodedBodySize(long)
+	 */
+	public void setMaxDecodedBodySize (long maxDecodedBodySize) {
+		if (maxDecodedBodySize < 1)
+			throw new IllegalArgumentException ("maxDecodedBodySize must be at least 1");
+
+		this.maxDecodedBodySize = maxDecodedBodySize;
+	}
+
+	/**
+	 * Gets the maximum size of a body after content decoding for connections leased from this pool.
+	 * @return the maximum number of bytes
+	 */
+	public long getMaxDecodedBodySize () {
+		return maxDecodedBodySize;
+	}
+
+	/**
+	 * Gets number of idle connections.
+	 * @return number of open connections that are not currently leased
+	 */
+	public int getIdleCount () {
+		lock.lock ();
+
+		try {
+			int count = 0;
+
+			for (HostPool hostPool : hostPools.values ())
+				count += hostPool.idle.size ();
+
+			return count;
+		} finally {
+			lock.unlock ();
+		}
+	}
+
+	/**
+	 * Gets number of leased connections.
+	 * @return number of connections that are currently leased
+	 */
+	public int getLeasedCount () {
+		lock.lock ();
+
+		try {
+			return leasedConnections.size ();
+		} finally {
+			lock.unlock ();
+		}
+	}
+
+	/**
+	 * Gets maximum number of connections per host.
+	 * @return the maximum number of open connections per scheme / host / port
+	 */
+	public int getMaxConnectionsPerHost () {
+		return maxConnectionsPerHost;
+	}
+
+	/**
+	 * Gets idle timeout.
+	 * @return the number of milliseconds a connection can be idle before it is closed
+	 */
+	public long getIdleTimeout () {
+		return idleTimeout;
+	}
+
+	/**
+	 * Gets the key used for grouping connections.
+	 * @param url is the URL you want key for
+	 * @return string in the form 'scheme://host:port'
+	 */
+	public static String getKey (URL url) {
+		String protocol = url.getProtocol ().toLowerCase ();
+		int port = url.getPort () == -1 ? url.getDefaultPort () : url.getPort ();
+
+		return protocol + "://" + url.getHost ().toLowerCase () + ":" + port;
+	}
+
+	private HostPool getHostPool (String key) {
+		HostPool hostPool = hostPools.get (key);
+
+		if (hostPool == null) {
+			hostPool = new HostPool (lock.newCondition ());
+			hostPools.put (key, hostPool);
+		}
+
+		return hostPool;
+	}
+
+	private boolean awaitAvailable (HostPool hostPool, long timeout, long deadline) {
+		try {
+			if (timeout <= 0) {
+				hostPool.available.await ();
+
+				return true;
+			}
+
+			long remaining = deadline - System.nanoTime ();
+
+			if (remaining <= 0)
+				return false;
+
+			hostPool.available.awaitNanos (remaining);
+
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread ().interrupt ();
+			throw new HTTPConnectionException ("Interrupted while waiting for a connection", e);
+		}
+	}
+
+	private void returnSlot (String key) {
+		lock.lock ();
+
+		try {
+			HostPool hostPool = getHostPool (key);
+			hostPool.leased--;
+			hostPool.available.signal ();
+		} finally {
+			lock.unlock ();
+		}
+	}
+
+	private void markLeased (PooledConnection pooled) {
+		lock.lock ();
+
+		try {
+			leasedConnections.put (pooled.connection, pooled);
+		} finally {
+			lock.unlock ();
+		}
+	}
+
+	private PooledConnection unmarkLeased (HTTPConnection connection) {
+		lock.lock ();
+
+		try {
+			PooledConnection pooled = leasedConnections.remove (connection);
+
+			if (pooled == null)
+				throw new IllegalArgumentException ("connection was not leased from this pool");
+
+			return pooled;
+		} finally {
+			lock.unlock ();
+		}
+	}
+
+	private void resetLeaseState (PooledConnection pooled) {
+		HTTPConnection connection = pooled.connection;
+
+		connection.setExecutor (HTTPExecutors.getDefaultExecutor ());
+		connection.setExpectContinueTimeout (HTTPConnection.DEFAULT_EXPECT_CONTINUE_TIMEOUT);
+		connection.clearDeadline ();
+		connection.setConnectTimeout (connectTimeout);
+		connection.setReadTimeout (readTimeout);
+		connection.setTLSConfig (tlsConfig);
+		connection.setResolver (resolver);
+		applyContentDecoding (connection);
+
+		// Decoders are compared by identity, so this only restores them if they were changed
+		if (!connection.getSupportedTransferDecoders ().equals (pooled.transferDecoders)) {
+			while (!connection.getSupportedTransferDecoders ().isEmpty ())
+				connection.removeSupportedTransferDecoder (0);
+
+			for (HTTPTransferDecoder transferDecoder : pooled.transferDecoders)
+				connection.addSupportedTransferDecoder (transferDecoder);
+		}
+	}
+
+	private void applyContentDecoding (HTTPConnection connection) {
+		connection.setMaxDecodedBodySize (maxDecodedBodySize);
+
+		if (connection.getSupportedContentDecoders ().equals (contentDecoders))
+			return;
+
+		while (!connection.getSupportedContentDecoders ().isEmpty ())
+			connection.removeSupportedContentDecoder (0);
+
+		for (HTTPContentDecoder contentDecoder : contentDecoders)
+			connection.addSupportedContentDecoder (contentDecoder);
+	}
+
+	private static void closeAll (List<PooledConnection> connections) {
+		for (PooledConnection pooled : connections)
+			closeQuietly (pooled.connection);
+	}
+
+	private static void closeQuietly (HTTPConnection connection) {
+		if (!connection.isConnectionOpen ())
+			return;
+
+		try {
+			connection.closeConnection ();
+		} catch (HTTPConnectionException e) {
+			// Connection is discarded anyway
+		}
+	}
+
+}
@@ -0,0 +1,21 @@
+package io.github.rubenchristoffer.hetty;
+
+/**
+ * Exception that occurs when a request / response exchange (or a navigation including redirects) is not done before its deadline.
+ * The connection is closed when this happens.
+ * @author Ruben Christoffer
+ */
+public class HTTPDeadlineExceededException extends HTTPConnectionException {
+	
+	private static final long serialVersionUID = -6915624038461705593L;
+
+	/**
+	 * Creates a new HTTPDeadlineExceededException.
+	 * @param message is the exception message
+	 * @param cause is the cause of the exception
+	 */
+	public HTTPDeadlineExceededException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
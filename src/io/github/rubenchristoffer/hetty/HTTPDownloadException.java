@@ -0,0 +1,20 @@
+package io.github.rubenchristoffer.hetty;
+
+/**
+ * Exception used when something goes wrong in HTTPRangeDownloader.
+ * @author Ruben Christoffer
+ */
+public class HTTPDownloadException extends HTTPException {
+	
+	private static final long serialVersionUID = 7820435542813095467L;
+
+	/**
+	 * Creates a new HTTPDownloadException.
+	 * @param message is the message of the exception
+	 * @param cause is the cause of the exception
+	 */
+	public HTTPDownloadException (String message, Throwable cause) {
+		super (message, cause);
+	}
+	
+}
@@ -0,0 +1,81 @@
+package io.github.rubenchristoffer.hetty;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Utility class providing executors used by the asynchronous parts of the API.
+ * @author Ruben Christoffer
+ */
+public final class HTTPExecutors {
+
+	private static final AtomicInteger threadCount = new AtomicInteger ();
+	private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutorFactory ();
+	
+	private static class DefaultExecutorHolder {
+		private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool (new ThreadFactory () {
+			@Override
+			public Thread newThread (Runnable runnable) {
+				Thread thread = new Thread (runnable, "hetty-async-" + threadCount.incrementAndGet ());
+				thread.setDaemon (true);
+
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Gets the default executor used for asynchronous sending / receiving
+	 * when no other executor is set. It is a cached thread pool with daemon threads,
+	 * since blocking I/O should not run on the common fork join pool.
+	 * @return the default executor
+	 */
+	public static Executor getDefaultExecutor () {
+		return DefaultExecutorHolder.DEFAULT_EXECUTOR;
+	}
+	
+	/**
+	 * Creates a new executor that starts a new virtual thread for each task.
+	 * Blocking I/O on a virtual thread does not block a platform thread, so
+	 * the blocking HTTPConnection / HTTPNavigator API can be used by a very large number of tasks at once.
+	 * Virtual threads require Java 21 or newer at runtime.
+	 * @return a new virtual thread per task executor
+	 * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+	 * @see #isVirtualThreadSupported()
+	 */
+	public static ExecutorService newVirtualThreadExecutor () {
+		if (NEW_VIRTUAL_THREAD_EXECUTOR == null)
+			throw new UnsupportedOperationException ("Virtual threads require Java 21 or newer");
+		
+		try {
+			return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke (null);
+		} catch (IllegalAccessException e) {
+			throw new UnsupportedOperationException ("Could not create virtual thread executor", e);
+		} catch (InvocationTargetException e) {
+			throw new UnsupportedOperationException ("Could not create virtual thread executor", e.getCause ());
+		}
+	}
+	
+	/**
+	 * Does the running JVM support virtual threads?
+	 * @return true if {@link #newVirtualThreadExecutor()} can be used
+	 */
+	public static boolean isVirtualThreadSupported () {
+		return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+	}
+	
+	private static Method findVirtualThreadExecutorFactory () {
+		// Looked up by reflection so the library still runs on Java 8
+		try {
+			return Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+	
+}
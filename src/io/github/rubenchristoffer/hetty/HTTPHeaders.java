@@ -0,0 +1,439 @@
+package io.github.rubenchristoffer.hetty;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered container for the header fields of a HTTP packet.
+ * Names and values are stored separately next to the full header lines, and
+ * an index maps names case-insensitively to the headers with that name, so
+ * looking up a header by name does not scan the other headers or allocate anything.
+ * Several headers may have the same name, and the order headers were added in is preserved.
+ * Lines without ':' are kept as they are, but cannot be looked up by name.
+ * Copies share storage with the original until either of them is changed.
+ * @author Ruben Christoffer
+ */
+public class HTTPHeaders {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private String[] names;
+	private String[] values;
+	private String[] lines;
+	private int[] hashes;
+	private int[] nextWithSameName;
+	private int size;
+
+	// Open addressing table of first and last header index + 1 per name, where 0 is an empty slot
+	private int[] firstWithName;
+	private int[] lastWithName;
+	private boolean shared;
+
+	private final List<String> linesView = new AbstractList<String>() {
+		@Override
+		public String get (int index) {
+			return getLine(index);
+		}
+
+		@Override
+		public int size () {
+			return size;
+		}
+	};
+
+	/**
+	 * Creates a new empty HTTPHeaders.
+	 */
+	public HTTPHeaders () {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Creates a copy of another HTTPHeaders.
+	 * No headers are copied until either of them is changed.
+	 * @param headers is the headers you want to copy
+	 */
+	public HTTPHeaders (HTTPHeaders headers) {
+		names = headers.names;
+		values = headers.values;
+		lines = headers.lines;
+		hashes = headers.hashes;
+		nextWithSameName = headers.nextWithSameName;
+		firstWithName = headers.firstWithName;
+		lastWithName = headers.lastWithName;
+		size = headers.size;
+
+		shared = true;
+		headers.shared = true;
+	}
+
+	/**
+	 * Adds a header line that is properly formatted, such as 'Name: value'.
+	 * @param line is the full header line without line ending
+	 */
+	public void add (String line) {
+		insert(size, line);
+	}
+
+	/**
+	 * Adds a header using name and value.
+	 * @param name is the name of the header
+	 * @param value is the value of the header
+	 */
+	public void add (String name, String value) {
+		insert(size, name, value);
+	}
+
+	/**
+	 * Inserts a header line at the given position.
+	 * @param position is the position among all headers where you want to insert header
+	 * @param line is the full header line without line ending
+	 * @throws IndexOutOfBoundsException if position is less than 0 or larger than size
+	 */
+	public void insert (int position, String line) {
+		int colon = line.indexOf(':');
+
+		if (colon > 0)
+			insert(position, line.substring(0, colon), line.substring(colon + 1).trim(), line);
+		else
+			insert(position, null, null, line);
+	}
+
+	/**
+	 * Inserts a header at the given position.
+	 * @param position is the position among all headers where you want to insert header
+	 * @param name is the name of the header
+	 * @param value is the value of the header
+	 * @throws IndexOutOfBoundsException if position is less than 0 or larger than size
+	 */
+	public void insert (int position, String name, String value) {
+		insert(position, name, value, name + ": " + value);
+	}
+
+	private void insert (int position, String name, String value, String line) {
+		if (position < 0 || position > size)
+			throw new IndexOutOfBoundsException(String.format("Position %d is out of bounds for %d headers", position, size));
+
+		if (size == names.length)
+			grow();
+		else
+			unshare();
+
+		boolean append = position == size;
+
+		if (!append)
+			shift(position, position + 1, size - position);
+
+		names[position] = name;
+		values[position] = value;
+		lines[position] = line;
+		hashes[position] = name != null ? hash(name) : 0;
+		size++;
+
+		// Appending only extends the index, while inserting changes the position of other headers
+		if (append)
+			index(position);
+		else
+			rebuildIndex();
+	}
+
+	/**
+	 * Replaces the header at the given position.
+	 * @param position is the position of the header among all headers
+	 * @param name is the new name of the header
+	 * @param value is the new value of the header
+	 * @throws IndexOutOfBoundsException if position is less than 0 or not less than size
+	 */
+	public void set (int position, String name, String value) {
+		checkPosition(position);
+		unshare();
+
+		boolean sameName = names[position] != null && names[position].equalsIgnoreCase(name);
+
+		names[position] = name;
+		values[position] = value;
+		lines[position] = name + ": " + value;
+		hashes[position] = hash(name);
+
+		if (!sameName)
+			rebuildIndex();
+	}
+
+	/**
+	 * Removes the header at the given position.
+	 * @param position is the position of the header among all headers
+	 * @throws IndexOutOfBoundsException if position is less than 0 or not less than size
+	 */
+	public void remove (int position) {
+		checkPosition(position);
+		unshare();
+
+		shift(position + 1, position, size - position - 1);
+		size--;
+		names[size] = null;
+		values[size] = null;
+		lines[size] = null;
+
+		rebuildIndex();
+	}
+
+	/**
+	 * Removes all headers.
+	 */
+	public void clear () {
+		if (shared) {
+			allocate(INITIAL_CAPACITY);
+			shared = false;
+			size = 0;
+
+			return;
+		}
+
+		Arrays.fill(names, 0, size, null);
+		Arrays.fill(values, 0, size, null);
+		Arrays.fill(lines, 0, size, null);
+		Arrays.fill(firstWithName, 0);
+		Arrays.fill(lastWithName, 0);
+		size = 0;
+	}
+
+	/**
+	 * Gets the number of headers.
+	 * @return number of headers
+	 */
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * Gets the name of the header at the given position.
+	 * @param position is the position of the header among all headers
+	 * @return name of header, or null if the line has no name
+	 * @throws IndexOutOfBoundsException if position is less than 0 or not less than size
+	 */
+	public String getName (int position) {
+		checkPosition(position);
+
+		return names[position];
+	}
+
+	/**
+	 * Gets the value of the header at the given position.
+	 * @param position is the position of the header among all headers
+	 * @return value of header without surrounding whitespace, or null if the line has no name
+	 * @throws IndexOutOfBoundsException if position is less than 0 or not less than size
+	 */
+	public String getValue (int position) {
+		checkPosition(position);
+
+		return values[position];
+	}
+
+	/**
+	 * Gets the full header line at the given position.
+	 * @param position is the position of the header among all headers
+	 * @return header line without line ending
+	 * @throws IndexOutOfBoundsException if position is less than 0 or not less than size
+	 */
+	public String getLine (int position) {
+		checkPosition(position);
+
+		return lines[position];
+	}
+
+	/**
+	 * Gets the header lines.
+	 * @return read-only list wrapper that is always up-to-date
+	 */
+	public List<String> getLines () {
+		return linesView;
+	}
+
+	/**
+	 * Finds the position of a header by name.
+	 * @param name is the name of the header (case-insensitive)
+	 * @param occurrence is the index of header in comparison to other headers with same name
+	 * @return position of header among all headers, or -1 if not found
+	 */
+	public int indexOf (String name, int occurrence) {
+		int position = first(name);
+
+		for (int i = 0; i < occurrence && position != -1; i++)
+			position = nextWithSameName[position];
+
+		return position;
+	}
+
+	/**
+	 * Gets the value of the first header with the given name.
+	 * @param name is the name of the header (case-insensitive)
+	 * @return value of header, or null if not found
+	 */
+	public String get (String name) {
+		int position = first(name);
+
+		return position != -1 ? values[position] : null;
+	}
+
+	/**
+	 * Gets the values of all headers with the given name in order.
+	 * @param name is the name of the header(s) (case-insensitive)
+	 * @return read-only list of values
+	 */
+	public List<String> getAll (String name) {
+		int position = first(name);
+
+		if (position == -1)
+			return Collections.emptyList();
+
+		ArrayList<String> returnValues = new ArrayList<String>(2);
+
+		for (; position != -1; position = nextWithSameName[position])
+			returnValues.add(values[position]);
+
+		return Collections.unmodifiableList(returnValues);
+	}
+
+	/**
+	 * Does any header with the given name exist?
+	 * @param name is the name of the header (case-insensitive)
+	 * @return true if header exists, false otherwise
+	 */
+	public boolean contains (String name) {
+		return first(name) != -1;
+	}
+
+	/**
+	 * Finds the first header with the given name and value.
+	 * @param name is the name of the header (case-insensitive)
+	 * @param value is the value of the header (case-insensitive)
+	 * @return position of header among all headers, or -1 if not found
+	 */
+	public int indexOf (String name, String value) {
+		for (int position = first(name); position != -1; position = nextWithSameName[position]) {
+			if (values[position].equalsIgnoreCase(value))
+				return position;
+		}
+
+		return -1;
+	}
+
+	private int first (String name) {
+		if (size == 0 || name == null)
+			return -1;
+
+		int hash = hash(name);
+		int mask = firstWithName.length - 1;
+
+		for (int slot = hash & mask; firstWithName[slot] != 0; slot = (slot + 1) & mask) {
+			int position = firstWithName[slot] - 1;
+
+			if (hashes[position] == hash && names[position].equalsIgnoreCase(name))
+				return position;
+		}
+
+		return -1;
+	}
+
+	private void index (int position) {
+		if (names[position] == null)
+			return;
+
+		nextWithSameName[position] = -1;
+
+		int hash = hashes[position];
+		int mask = firstWithName.length - 1;
+		int slot = hash & mask;
+
+		for (; firstWithName[slot] != 0; slot = (slot + 1) & mask) {
+			int first = firstWithName[slot] - 1;
+
+			if (hashes[first] == hash && names[first].equalsIgnoreCase(names[position])) {
+				nextWithSameName[lastWithName[slot] - 1] = position;
+				lastWithName[slot] = position + 1;
+
+				return;
+			}
+		}
+
+		firstWithName[slot] = position + 1;
+		lastWithName[slot] = position + 1;
+	}
+
+	private void rebuildIndex () {
+		Arrays.fill(firstWithName, 0);
+		Arrays.fill(lastWithName, 0);
+
+		for (int i = 0; i < size; i++)
+			index(i);
+	}
+
+	private void allocate (int capacity) {
+		names = new String[capacity];
+		values = new String[capacity];
+		lines = new String[capacity];
+		hashes = new int[capacity];
+		nextWithSameName = new int[capacity];
+
+		// Table is at most half full, since there are never more names than headers
+		firstWithName = new int[capacity * 2];
+		lastWithName = new int[capacity * 2];
+	}
+
+	private void grow () {
+		int capacity = names.length * 2;
+
+		names = Arrays.copyOf(names, capacity);
+		values = Arrays.copyOf(values, capacity);
+		lines = Arrays.copyOf(lines, capacity);
+		hashes = Arrays.copyOf(hashes, capacity);
+		nextWithSameName = Arrays.copyOf(nextWithSameName, capacity);
+		firstWithName = new int[capacity * 2];
+		lastWithName = new int[capacity * 2];
+		shared = false;
+
+		rebuildIndex();
+	}
+
+	/**
+	 * Copies storage that is shared with another HTTPHeaders before it is changed.
+	 */
+	private void unshare () {
+		if (!shared)
+			return;
+
+		names = names.clone();
+		values = values.clone();
+		lines = lines.clone();
+		hashes = hashes.clone();
+		nextWithSameName = nextWithSameName.clone();
+		firstWithName = firstWithName.clone();
+		lastWithName = lastWithName.clone();
+		shared = false;
+	}
+
+	private void shift (int from, int to, int length) {
+		System.arraycopy(names, from, names, to, length);
+		System.arraycopy(values, from, values, to, length);
+		System.arraycopy(lines, from, lines, to, length);
+		System.arraycopy(hashes, from, hashes, to, length);
+	}
+
+	private void checkPosition (int position) {
+		if (position < 0 || position >= size)
+			throw new IndexOutOfBoundsException(String.format("Position %d is out of bounds for %d headers", position, size));
+	}
+
+	private static int hash (String name) {
+		int hash = 0;
+
+		for (int i = 0; i < name.length(); i++)
+			hash = 31 * hash + Character.toLowerCase(name.charAt(i));
+
+		return hash ^ (hash >>> 16);
+	}
+
+}
@@ -0,0 +1,50 @@
+package io.github.rubenchristoffer.hetty;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Listener used by {@link HTTPMessageParser} for signalling what has been parsed.
+ * Events are emitted on the thread that feeds bytes to the parser, while it is parsing.
+ * For every message the events come in this order: start line, zero or more headers,
+ * headers complete, zero or more body chunks and message complete.
+ * @author Ruben Christoffer
+ */
+public interface HTTPMessageListener {
+
+	/**
+	 * Called when the start line of a message has been parsed.
+	 * @param startLine is the request line or status line without line ending
+	 */
+	public void startLine (String startLine);
+
+	/**
+	 * Called when a header field has been parsed.
+	 * @param name is the name of the header as it was received
+	 * @param value is the value of the header without surrounding whitespace
+	 */
+	public void header (String name, String value);
+
+	/**
+	 * Called when the entire header of a message has been parsed.
+	 * Interim responses (such as '100 Continue') are complete messages of their own.
+	 * @param packet is the parsed header as a HTTPRequest or HTTPResponse with an empty body
+	 * @return false if the message has no body even if its header says otherwise,
+	 * which is the case for responses to HEAD requests, true otherwise
+	 */
+	public boolean headersComplete (HTTPPacket packet);
+
+	/**
+	 * Called when decoded body bytes have been parsed.
+	 * The buffer often refers to the bytes fed to the parser, so it must not be
+	 * modified and is only valid until this method returns.
+	 * @param chunk is a buffer containing the next decoded body bytes
+	 */
+	public void bodyChunk (ByteBuffer chunk);
+
+	/**
+	 * Called when the entire message has been parsed.
+	 * Bytes after the message belong to the next message.
+	 */
+	public void messageComplete ();
+
+}
@@ -0,0 +1,283 @@
+package io.github.rubenchristoffer.hetty;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import io.github.rubenchristoffer.hetty.codec.HTTPChunkedTransferDecoder;
+import io.github.rubenchristoffer.hetty.codec.HTTPContentLengthTransferDecoder;
+import io.github.rubenchristoffer.hetty.codec.HTTPTransferDecoder;
+import io.github.rubenchristoffer.hetty.codec.HTTPTransferDecoder.DecodeInfo;
+import io.github.rubenchristoffer.hetty.codec.HTTPUnsupportedContentException;
+import io.github.rubenchristoffer.hetty.misc.DirectByteArrayOutputStream;
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Incremental HTTP message parser that is fed bytes as they arrive, 
+ * instead of reading from a stream.
+ * Bytes may be fed in fragments split at any position, and a single fragment may
+ * contain several messages back-to-back. What has been parsed is signalled 
+ * to a {@link HTTPMessageListener} while parsing, so bodies are never buffered by the parser.
+ * Bodies are decoded using the same transfer decoders as HTTPConnection.
+ * Requests without 'Content-Length' or 'Transfer-Encoding' header have no body, while
+ * such responses have a body that ends with the stream (see {@link #endOfStream()}).
+ * A parser is not thread-safe and should only be used for a single stream of messages.
+ * @author Ruben Christoffer
+ */
+public class HTTPMessageParser {
+
+	private enum Stage {
+		START_LINE,
+		HEADERS,
+		BODY,
+		BODY_UNTIL_CLOSE
+	}
+
+	private final HTTPMessageListener listener;
+	private final List<HTTPTransferDecoder> transferDecoders;
+	private final BodyOutputStream bodyStream = new BodyOutputStream ();
+
+	private Stage currentStage = Stage.START_LINE;
+	private byte[] headerBuffer = new byte[1024];
+	private int headerLength;
+	private int lineStart;
+	private HashMap<String, String> headers = new HashMap<String, String> ();
+	private HTTPTransferDecoder transferDecoder;
+
+	/**
+	 * Creates a new HTTPMessageParser that supports content length and chunked transfer encoding.
+	 * @param listener is the listener that is told what has been parsed
+	 * @throws IllegalArgumentException if listener is null
+	 */
+	public HTTPMessageParser (HTTPMessageListener listener) {
+		this (listener, defaultTransferDecoders ());
+	}
+
+	/**
+	 * Creates a new HTTPMessageParser.
+	 * Every message gets its own decoder from {@link HTTPTransferDecoder#newInstance()}, 
+	 * so the decoders in the list may be shared between parsers.
+	 * @param listener is the listener that is told what has been parsed
+	 * @param transferDecoders is the list of decoders that may be used for decoding body
+	 * @throws IllegalArgumentException if listener or transferDecoders is null
+	 */
+	public HTTPMessageParser (HTTPMessageListener listener, List<HTTPTransferDecoder> transferDecoders) {
+		this.listener = ArgumentValidator.requireNonNullArgument (listener, "listener cannot be null");
+		this.transferDecoders = ArgumentValidator.requireNonNullArgument (transferDecoders, "transferDecoders cannot be null");
+	}
+
+	private static List<HTTPTransferDecoder> defaultTransferDecoders () {
+		ArrayList<HTTPTransferDecoder> transferDecoders = new ArrayList<HTTPTransferDecoder> ();
+		transferDecoders.add (new HTTPContentLengthTransferDecoder ());
+		transferDecoders.add (new HTTPChunkedTransferDecoder ());
+
+		return transferDecoders;
+	}
+
+	/**
+	 * Parses all remaining bytes of a buffer and emits events for what has been parsed.
+	 * Bytes that do not complete a line or message are remembered until the next call.
+	 * The position of the buffer is advanced to its limit.
+	 * @param data is the buffer containing the next bytes of the stream
+	 * @throws HTTPUnsupportedContentException if the body could not be decoded
+	 * @throws IllegalArgumentException if data is null
+	 */
+	public void parse (ByteBuffer data) {
+		ArgumentValidator.requireNonNullArgument (data, "data cannot be null");
+
+		while (data.hasRemaining ()) {
+			switch (currentStage) {
+			case START_LINE:
+			case HEADERS: parseLine (data); break;
+			case BODY: parseBody (data); break;
+			case BODY_UNTIL_CLOSE: bodyStream.emit (data); break;
+			}
+		}
+	}
+
+	/**
+	 * Signals that the stream has ended and no more bytes will be parsed.
+	 * This completes a response whose body ends with the stream.
+	 * @return true if no message was left incomplete, false otherwise
+	 */
+	public boolean endOfStream () {
+		if (currentStage == Stage.BODY_UNTIL_CLOSE)
+			completeMessage ();
+
+		return !isMessageInProgress ();
+	}
+
+	/**
+	 * Has part of a message been parsed, but not all of it?
+	 * @return true if a message is in progress, false if the parser is between messages
+	 */
+	public boolean isMessageInProgress () {
+		return currentStage != Stage.START_LINE || headerLength > 0;
+	}
+
+	private void parseLine (ByteBuffer data) {
+		int start = data.position ();
+		int end = start;
+
+		// Scan for the end of the current line
+		while (end < data.limit () && data.get (end) != HTTPConstants.ASCII_LF)
+			end++;
+
+		boolean foundLineEnd = end < data.limit ();
+
+		if (foundLineEnd)
+			end++;
+
+		appendHeaderBytes (data, start, end - start);
+		data.position (end);
+
+		if (foundLineEnd) {
+			parseCompleteLine ();
+			lineStart = headerLength;
+		}
+	}
+
+	private void parseCompleteLine () {
+		int contentEnd = headerLength - 1;
+
+		if (contentEnd > lineStart && headerBuffer[contentEnd - 1] == HTTPConstants.ASCII_CR)
+			contentEnd--;
+
+		if (currentStage == Stage.START_LINE) {
+			// Empty lines before a message are ignored
+			if (contentEnd == lineStart) {
+				headerLength = 0;
+				return;
+			}
+
+			listener.startLine (new String (headerBuffer, lineStart, contentEnd - lineStart, HTTPConfig.HEADER_CHARSET));
+			currentStage = Stage.HEADERS;
+		} else if (contentEnd == lineStart) {
+			completeHeaders ();
+		} else {
+			parseHeaderField (contentEnd);
+		}
+	}
+
+	private void parseHeaderField (int contentEnd) {
+		int colon = lineStart;
+
+		while (colon < contentEnd && headerBuffer[colon] != ':')
+			colon++;
+
+		if (colon == contentEnd)
+			return;
+
+		String name = new String (headerBuffer, lineStart, colon - lineStart, HTTPConfig.HEADER_CHARSET);
+		String value = new String (headerBuffer, colon + 1, contentEnd - colon - 1, HTTPConfig.HEADER_CHARSET).trim ();
+
+		headers.put (name.toLowerCase (), value.toLowerCase ());
+		listener.header (name, value);
+	}
+
+	private void completeHeaders () {
+		DirectByteArrayOutputStream headerStream = new DirectByteArrayOutputStream (headerLength);
+		headerStream.write (headerBuffer, 0, headerLength);
+
+		HTTPPacket packet = HTTPParser.parsePacket (new HTTPRawPacket (headerStream, new DirectByteArrayOutputStream ()));
+		boolean bodyExpected = listener.headersComplete (packet);
+
+		if (!bodyExpected || !hasBody (packet)) {
+			completeMessage ();
+			return;
+		}
+
+		// Determine which transfer decoder to use
+		for (HTTPTransferDecoder supportedTransferDecoder : transferDecoders) {
+			DecodeInfo status = supportedTransferDecoder.getDecodeInfo (headers);
+
+			if (status == DecodeInfo.CAN_DECODE) {
+				transferDecoder = supportedTransferDecoder.newInstance ();
+				transferDecoder.initialize (headers);
+				currentStage = Stage.BODY;
+
+				return;
+			} else if (status == DecodeInfo.EMPTY_BODY) {
+				completeMessage ();
+				return;
+			}
+		}
+
+		// Requests without length have no body, while responses without length end with the stream
+		if (packet.isResponse ())
+			currentStage = Stage.BODY_UNTIL_CLOSE;
+		else
+			completeMessage ();
+	}
+
+	private static boolean hasBody (HTTPPacket packet) {
+		if (!packet.isResponse ())
+			return true;
+
+		int statusCode = ((HTTPResponse) packet).getStatusCode ();
+
+		return !(statusCode / 100 == 1 || statusCode == 204 || statusCode == 304);
+	}
+
+	private void parseBody (ByteBuffer data) {
+		try {
+			transferDecoder.decode (bodyStream, data);
+		} catch (IOException e) {
+			// Never happens since body bytes are passed on to the listener
+			throw new HTTPUnsupportedContentException ("Could not decode body", e);
+		}
+
+		if (transferDecoder.isFinished ())
+			completeMessage ();
+	}
+
+	private void completeMessage () {
+		currentStage = Stage.START_LINE;
+		headerLength = 0;
+		lineStart = 0;
+		headers.clear ();
+		transferDecoder = null;
+
+		listener.messageComplete ();
+	}
+
+	private void appendHeaderBytes (ByteBuffer data, int offset, int length) {
+		if (headerLength + length > headerBuffer.length) {
+			byte[] newHeaderBuffer = new byte[Math.max (headerBuffer.length * 2, headerLength + length)];
+			System.arraycopy (headerBuffer, 0, newHeaderBuffer, 0, headerLength);
+			headerBuffer = newHeaderBuffer;
+		}
+
+		ByteBuffer source = data.duplicate ();
+		source.position (offset);
+		source.get (headerBuffer, headerLength, length);
+		headerLength += length;
+	}
+
+	/**
+	 * Output stream that passes decoded body bytes on to the listener without copying them.
+	 */
+	private class BodyOutputStream extends OutputStream {
+
+		@Override
+		public void write (int b) {
+			write (new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write (byte[] buffer, int offset, int length) {
+			if (length > 0)
+				listener.bodyChunk (ByteBuffer.wrap (buffer, offset, length));
+		}
+
+		private void emit (ByteBuffer data) {
+			listener.bodyChunk (data.slice ());
+			data.position (data.limit ());
+		}
+
+	}
+
+}
@@ -4,6 +4,10 @@ import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import io.github.rubenchristoffer.hetty.HTTPRequest.RequestMethod;
 import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
@@ -17,10 +21,17 @@ import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
 public class HTTPNavigator {
 	
 	private HTTPConnection con;
+	private HTTPConnectionPool pool;
+	private URL url;
 	private HTTPRequest req;
 	private HTTPResponse res;
 	private HTTPCookieJar cookieJar;
 	
+	private Executor executor = HTTPExecutors.getDefaultExecutor();
+	
+	private long timeout;
+	private long deadline;
+	
 	private int requestsSent = 0;
 	private PrintStream debugOutputStream;
 	
@@ -36,6 +47,22 @@ public class HTTPNavigator {
 		this.cookieJar = new HTTPCookieJar();
 	}
 	
+	/**
+	 * Creates a new HTTPNavigator that leases a connection from a pool for every request
+	 * instead of using a fixed connection. Connections are released back to the pool
+	 * as soon as the response has been read.
+	 * @param pool is the pool connections (layer 1) should be leased from
+	 * @param url is the URL the initial request should be sent to
+	 * @param req is the initial request that should be sent. 
+	 * @throws IllegalArgumentException if pool, url or req is null
+	 */
+	public HTTPNavigator (HTTPConnectionPool pool, URL url, HTTPRequest req) {
+		this.pool = ArgumentValidator.requireNonNullArgument (pool, "pool cannot be null");
+		this.url = ArgumentValidator.requireNonNullArgument (url, "url cannot be null");
+		this.req = ArgumentValidator.requireNonNullArgument (req, "req cannot be null");
+		this.cookieJar = new HTTPCookieJar();
+	}
+	
 	/**
 	 * Same as {@link #navigateNext(boolean)} where applyFilters=true
 	 * @return Refer to {@link #navigateNext(boolean)}
@@ -49,23 +76,47 @@ public class HTTPNavigator {
 	 * When response is received, it will update the new 'current' request
 	 * using updated cookies if applicable. It will also always reset request method to GET.
 	 * This can be called even if underlying HTTPConnection (layer 1) is closed, as it will attempt
-	 * to open the connection if this is the case. 
+	 * to open the connection if this is the case. If the navigator uses a connection pool,
+	 * a connection is leased for the request and released when the response has been read.
 	 * @param applyFilters determines whether filters should be applied when sending request
 	 * @return true when there are no more redirects, false otherwise
 	 */
 	public boolean navigateNext (boolean applyFilters) {
-		if (!con.isConnectionOpen())
-			con.openConnection();
-		
-		if (debugOutputStream != null) {
-			debugOutputStream.print(String.format("\n\n### HTTP NAVIGATOR REQUEST NR %d ###\n", requestsSent + 1)); 
-			debugOutputStream.print(req.generatePacket(con.getURL(), applyFilters));
-		}
+		URL url = getURL();
 		
-		con.sendPacket(req, applyFilters);
-		requestsSent++;
+		// A navigation started by navigateTillEnd already has a deadline
+		long exchangeDeadline = deadline != 0 ? deadline : (timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0);
 		
-		res = (HTTPResponse) con.readPacket();
+		if (pool != null) {
+			HTTPConnection leased = pool.lease(url, getRemainingTime(exchangeDeadline));
+			
+			try {
+				if (exchangeDeadline != 0)
+					leased.setDeadline(exchangeDeadline);
+				
+				exchange(leased, url, applyFilters);
+			} catch (RuntimeException e) {
+				leased.clearDeadline();
+				pool.discard(leased);
+				throw e;
+			}
+			
+			leased.clearDeadline();
+			pool.release(leased, res);
+		} else {
+			if (exchangeDeadline != 0)
+				con.setDeadline(exchangeDeadline);
+			
+			try {
+				if (!con.isConnectionOpen())
+					con.openConnection();
+				
+				exchange(con, url, applyFilters);
+			} finally {
+				if (exchangeDeadline != 0)
+					con.clearDeadline();
+			}
+		}
 		
 		if (debugOutputStream != null) {
 			debugOutputStream.print(String.format("\n\n### HTTP NAVIGATOR RESPONSE NR %d ###\n", requestsSent)); 
@@ -79,7 +130,7 @@ public class HTTPNavigator {
 			HTTPValidatedCookie[] validatedCookies = new HTTPValidatedCookie[cookies.length];
 			
 			for (int i = 0; i < validatedCookies.length; i++) {
-				validatedCookies[i] = HTTPValidatedCookie.getValidatedCookie(cookies[i], con.getURL());
+				validatedCookies[i] = HTTPValidatedCookie.getValidatedCookie(cookies[i], url);
 			}
 			
 			cookieJar.setCookies(validatedCookies);
@@ -103,16 +154,95 @@ public class HTTPNavigator {
 		return false;
 	}
 	
+	private void exchange (HTTPConnection connection, URL url, boolean applyFilters) {
+		if (debugOutputStream != null) {
+			// Packet is only generated once, so the printed packet is the one that is sent
+			HTTPRawPacket rawPacket = req.generatePacket(url, applyFilters);
+			
+			debugOutputStream.print(String.format("\n\n### HTTP NAVIGATOR REQUEST NR %d ###\n", requestsSent + 1)); 
+			debugOutputStream.print(rawPacket);
+			connection.sendGeneratedPacket(req, rawPacket);
+		} else {
+			connection.sendPacket(req, applyFilters);
+		}
+		requestsSent++;
+		
+		res = (HTTPResponse) connection.readPacket(!req.getRequestMethod().equalsIgnoreCase("HEAD"));
+	}
+	
 	/**
 	 * Calls {@link #navigateNext(boolean)} until there are no more redirects left.
 	 * @param applyFilters determines whether filters should be applied when sending request
 	 */
 	public void navigateTillEnd (boolean applyFilters) {
-		while (navigateNext(applyFilters)) {}
+		if (timeout > 0)
+			deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		
+		try {
+			while (navigateNext(applyFilters)) {}
+		} finally {
+			deadline = 0;
+		}
+	}
+	
+	private static long getRemainingTime (long deadline) {
+		if (deadline == 0)
+			return 0;
+		
+		long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+		
+		if (remaining <= 0)
+			throw new HTTPDeadlineExceededException("Deadline was reached before a connection was leased", null);
+		
+		return remaining;
+	}
+	
+	/**
+	 * Sets the timeout of navigation. When calling {@link #navigateTillEnd(boolean)}, 
+	 * the timeout covers all requests including redirects. When calling {@link #navigateNext(boolean)}, it covers that one request.
+	 * Connecting and reading fail with a HTTPDeadlineExceededException when the timeout is exceeded.
+	 * @param timeout is the timeout in milliseconds, where 0 means no timeout (default)
+	 * @throws IllegalArgumentException if timeout is negative
+	 * @see HTTPConnection#startDeadline(long)
+	 */
+	public void setTimeout (long timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException ("timeout cannot be negative");
+		
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Calls {@link #navigateTillEnd(boolean)} on the executor of this navigator without
+	 * blocking the calling thread. You should not use the navigator from other threads
+	 * until the returned future is done.
+	 * @param applyFilters determines whether filters should be applied when sending request
+	 * @return future that completes with the last response, or exceptionally with a HTTPException
+	 * @see #setExecutor(Executor)
+	 */
+	public CompletableFuture<HTTPResponse> navigateTillEndAsync (final boolean applyFilters) {
+		return CompletableFuture.supplyAsync(new Supplier<HTTPResponse>() {
+			@Override
+			public HTTPResponse get () {
+				navigateTillEnd(applyFilters);
+				
+				return res;
+			}
+		}, executor);
+	}
+	
+	/**
+	 * Sets the executor used by {@link #navigateTillEndAsync(boolean)}.
+	 * By default this is {@link HTTPExecutors#getDefaultExecutor()}.
+	 * @param executor is the executor that should run navigation
+	 * @throws IllegalArgumentException if executor is null
+	 */
+	public void setExecutor (Executor executor) {
+		this.executor = ArgumentValidator.requireNonNullArgument (executor, "executor cannot be null");
 	}
 	
 	private void updateCookies () {
-		HTTPValidatedCookie[] cookies = cookieJar.getCookiesFor(con.getURL());
+		HTTPValidatedCookie[] cookies = cookieJar.getCookiesFor(getURL());
 		
 		if (cookies.length > 0)
 			req.changeOrAddHeader("Cookie", HTTPRequest.generateCookieHeader(cookies));
@@ -128,10 +258,22 @@ public class HTTPNavigator {
 	 * @param url is the new URL you want to set
 	 */
 	public void setURL (URL url) {
-		con.setURL(url);
+		if (pool != null)
+			this.url = url;
+		else
+			con.setURL(url);
+		
 		updateCookies();
 	}
 	
+	/**
+	 * Gets the URL the current request will be sent to.
+	 * @return the current URL
+	 */
+	public URL getURL () {
+		return pool != null ? url : con.getURL();
+	}
+	
 	/**
 	 * If you wish to enable debugging, you can set the printstream you want to print output to.
 	 * Set this to null if you wish to disable debugging.
@@ -144,12 +286,20 @@ public class HTTPNavigator {
 	
 	/**
 	 * Gets underlying HTTPConnection.
-	 * @return the underlying HTTPConnection (layer 1)
+	 * @return the underlying HTTPConnection (layer 1), or null if the navigator uses a connection pool
 	 */
 	public HTTPConnection getConnection () {
 		return con;
 	}
 	
+	/**
+	 * Gets the connection pool.
+	 * @return the pool connections are leased from, or null if the navigator uses a fixed connection
+	 */
+	public HTTPConnectionPool getConnectionPool () {
+		return pool;
+	}
+	
 	/**
 	 * Gets the current request.
 	 * @return the current request that should be sent next
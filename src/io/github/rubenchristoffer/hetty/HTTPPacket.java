@@ -1,13 +1,20 @@
 package io.github.rubenchristoffer.hetty;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import io.github.rubenchristoffer.hetty.body.HTTPBody;
+import io.github.rubenchristoffer.hetty.body.HTTPFileBody;
+import io.github.rubenchristoffer.hetty.codec.HTTPContentEncoder;
 import io.github.rubenchristoffer.hetty.filters.HTTPPacketFilter;
 import io.github.rubenchristoffer.hetty.misc.DeepCloneable;
+import io.github.rubenchristoffer.hetty.misc.DirectByteArrayOutputStream;
 
 /**
  * Class representing a HTTP packet / message.
@@ -18,8 +25,11 @@ import io.github.rubenchristoffer.hetty.misc.DeepCloneable;
 public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 	
 	protected String version = "1.1";
-	protected ArrayList<String> headersList = new ArrayList<String>();
-	protected ByteArrayOutputStream body = new ByteArrayOutputStream();
+	protected HTTPHeaders headers = new HTTPHeaders();
+	protected ByteArrayOutputStream body = new DirectByteArrayOutputStream();
+	protected boolean bodyShared;
+	protected HTTPBody externalBody;
+	protected HTTPContentEncoder contentEncoder;
 	protected ArrayList<HTTPPacketFilter> filterPipeline = new ArrayList<HTTPPacketFilter>();
 	
 	/**
@@ -44,7 +54,7 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 	 * without further processing
 	 */
 	public void addHeader (String fullHeader) {
-		headersList.add(fullHeader);
+		headers.add(fullHeader);
 	}
 	
 	/**
@@ -53,7 +63,7 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 	 * @param content is the content / value of the header
 	 */
 	public void addHeader (String name, String content) {
-		headersList.add(name + ": " + content);
+		headers.add(name, content);
 	}
 	
 	/**
@@ -63,7 +73,7 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 	 * @param index is the index where you want to insert header
 	 */
 	public void insertHeader (String name, String content, int index) {
-		headersList.add(index, name + ": " + content); 
+		headers.insert(index, name, content);
 	}
 	
 	/**
@@ -71,7 +81,16 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 	 * @return read-only wrapper list that is always up-to-date
 	 */
 	public List<String> getHeaders () {
-		return Collections.unmodifiableList(headersList);
+		return headers.getLines();
+	}
+	
+	/**
+	 * Gets the header container, which can look up headers by name
+	 * without scanning all headers. Changes are reflected in the packet.
+	 * @return the headers of this packet
+	 */
+	public HTTPHeaders getHeaderFields () {
+		return headers;
 	}
 
 	/**
@@ -90,18 +109,10 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 	 * @param content is the new content / value of the header
 	 */
 	public void changeHeader (String name, int index, String content) {
-		int count = 0;
+		int position = headers.indexOf(name, index);
 		
-		for (int i = 0; i < headersList.size(); i++) {
-			if (headersList.get(i).toLowerCase().startsWith((name + ": ").toLowerCase())) {
-				if (count == index) {
-					headersList.set(i, name + ": " + content);
-					return;
-				} else {
-					count++;
-				}
-			}
-		}
+		if (position != -1)
+			headers.set(position, name, content);
 	}
 	
 	/**
@@ -141,15 +152,16 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 	 * @return read-only list wrapper that is always up-to-date
 	 */
 	public List<String> getHeaders (String name) {
-		ArrayList<String> returnHeadersList = new ArrayList<String>();
-		
-		for (int i = 0; i < headersList.size(); i++) {
-			if (headersList.get(i).toLowerCase().startsWith((name + ": ").toLowerCase())) {
-				returnHeadersList.add(headersList.get(i).split(": ", 2)[1]);
-			}
-		}
-		
-		return Collections.unmodifiableList(returnHeadersList);
+		return headers.getAll(name);
+	}
+	
+	/**
+	 * Gets the content of the first header with the given name.
+	 * @param name is the name of the header
+	 * @return content of header if found, null otherwise
+	 */
+	public String getHeader (String name) {
+		return headers.get(name);
 	}
 	
 	/**
@@ -159,13 +171,9 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 	 * @return header if found, null otherwise
 	 */
 	public String getHeader (String name, String content) {
-		for (int i = 0; i < headersList.size(); i++) {
-			if (headersList.get(i).toLowerCase().equals((name + ": " + content).toLowerCase())) {
-				return headersList.get(i).split(": ", 2)[1];
-			}
-		}
+		int position = headers.indexOf(name, content);
 		
-		return null;
+		return position != -1 ? headers.getValue(position) : null;
 	}
 	
 	/**
@@ -175,7 +183,7 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 	 * @see #getHeaders(String)
 	 */
 	public boolean doesHeaderExist (String name) {
-		return getHeaders(name).size() > 0;
+		return headers.contains(name);
 	}
 	
 	/**
@@ -203,18 +211,10 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 	 * @param index is the index in comparison to other headers with same name
 	 */
 	public void removeHeader (String name, int index) {
-		int count = 0;
+		int position = headers.indexOf(name, index);
 		
-		for (int i = 0; i < headersList.size(); i++) {
-			if (headersList.get(i).toLowerCase().startsWith((name + ": ").toLowerCase())) {
-				if (count == index) {
-					headersList.remove(i);
-					return;
-				} else {
-					count++;
-				}
-			}
-		}
+		if (position != -1)
+			headers.remove(position);
 	}
 	
 	/**
@@ -235,13 +235,114 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 	 * @param body is the byte array representing body of HTTP packet
 	 */
 	public void setBody (byte[] body) {
-		this.body.reset();
+		resetBody();
+		this.externalBody = null;
 	
 		if (body != null) {
 			this.body.write(body, 0, body.length);
 		}
 	}
 	
+	/**
+	 * Sets the body of the HTTP packet to the content of a file.
+	 * The file is not read until the packet is sent.
+	 * @param file is the file containing the body
+	 * @throws IllegalArgumentException if file is null or is not an existing file
+	 * @see #setBody(HTTPBody)
+	 */
+	public void setBody (File file) {
+		setBody(new HTTPFileBody(file));
+	}
+	
+	/**
+	 * Sets the body of the HTTP packet to an external body, such as a file, a buffer or a stream.
+	 * The external body is sent as it is after the in-memory body. 
+	 * The in-memory body is emptied, and {@link #getBody()} will not contain the content of the external body.
+	 * Use null to remove external body.
+	 * @param externalBody is the external body you want to set
+	 */
+	public void setBody (HTTPBody externalBody) {
+		resetBody();
+		this.externalBody = externalBody;
+	}
+	
+	/**
+	 * Sets the body of the HTTP packet to a file body.
+	 * @param fileBody is the file body you want to set
+	 * @see #setBody(HTTPBody)
+	 */
+	public void setFileBody (HTTPFileBody fileBody) {
+		setBody(fileBody);
+	}
+	
+	private void resetBody () {
+		if (bodyShared) {
+			// Other packets still refer to the shared stream, so it is left as it is
+			body = new DirectByteArrayOutputStream();
+			bodyShared = false;
+		} else {
+			body.reset();
+		}
+	}
+	
+	/**
+	 * Lets this packet and another packet or raw packet refer to the same body stream.
+	 * The body is copied by whichever packet changes it first.
+	 * @return the body stream that is now shared
+	 */
+	protected ByteArrayOutputStream shareBody () {
+		bodyShared = true;
+		
+		return body;
+	}
+	
+	/**
+	 * Gets the file body of the HTTP packet.
+	 * @return the file body, or null if there is no external body or it is not a file body
+	 */
+	public HTTPFileBody getFileBody () {
+		return externalBody instanceof HTTPFileBody ? (HTTPFileBody) externalBody : null;
+	}
+	
+	/**
+	 * Gets the external body of the HTTP packet.
+	 * @return the external body, or null if the body is held in memory
+	 */
+	public HTTPBody getExternalBody () {
+		return externalBody;
+	}
+	
+	/**
+	 * Sets the content encoder used for encoding the body while it is being sent.
+	 * The headers are not changed, so this is usually set by 
+	 * {@link io.github.rubenchristoffer.hetty.filters.HTTPContentEncodingFilter} instead.
+	 * Use null to send the body as it is.
+	 * @param contentEncoder is the content encoder you want to use
+	 */
+	public void setContentEncoder (HTTPContentEncoder contentEncoder) {
+		this.contentEncoder = contentEncoder;
+	}
+	
+	/**
+	 * Gets the content encoder.
+	 * @return the content encoder, or null if the body is sent as it is
+	 */
+	public HTTPContentEncoder getContentEncoder () {
+		return contentEncoder;
+	}
+	
+	/**
+	 * Gets the number of bytes that will be sent as body,
+	 * which includes the length of the external body if there is one.
+	 * @return length of body, or -1 if the length of the external body is not known
+	 */
+	public long getContentLength () {
+		if (externalBody == null)
+			return body.size();
+		
+		return externalBody.getLength() == -1 ? -1 : body.size() + externalBody.getLength();
+	}
+	
 	/**
 	 * Gets the body of the HTTP packet.
 	 * Note that this makes a copy of the internal body stream.
@@ -251,6 +352,15 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 		return body.toByteArray();
 	}
 	
+	/**
+	 * Gets a read-only view of the in-memory body without copying it.
+	 * The view is only valid until the body is changed.
+	 * @return read-only buffer containing the body
+	 */
+	public ByteBuffer getBodyBuffer () {
+		return DirectByteArrayOutputStream.toByteBuffer(body);
+	}
+	
 	/**
 	 * Gets body length (byte count).
 	 * @return the length of internal byte stream
@@ -262,12 +372,36 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 	/**
 	 * Gets the internal body stream.
 	 * Writing to this stream WILL update internal body stream.
+	 * If the body is shared with a copy or a generated packet, it is copied first, so
+	 * get the stream again after sending or cloning the packet instead of keeping it.
 	 * @return ByteArrayOutputStream that you can write to
 	 */
 	public ByteArrayOutputStream getBodyStream () {
+		if (bodyShared) {
+			ByteArrayOutputStream copy = new DirectByteArrayOutputStream(body.size());
+			appendStream(copy, body);
+			body = copy;
+			bodyShared = false;
+		}
+		
 		return body;
 	}
 	
+	/**
+	 * Resets the packet so it can be reused instead of creating a new packet.
+	 * Headers and body are emptied while keeping the capacity they already have, unless
+	 * they are shared with a copy or a generated packet, which are left as they are.
+	 * External body and content encoder are removed and version is set to '1.1'.
+	 * Filters are kept.
+	 */
+	public void reset () {
+		version = "1.1";
+		headers.clear();
+		resetBody();
+		externalBody = null;
+		contentEncoder = null;
+	}
+
 	/**
 	 * Sets the version of the HTTP packet. 
 	 * @param version is the new version value you want to set
@@ -351,13 +485,22 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 		builder.write(bytes, 0, bytes.length);
 	}
 	
+	protected static void appendStream (ByteArrayOutputStream builder, ByteArrayOutputStream source) {
+		try {
+			source.writeTo(builder);
+		} catch (IOException e) {
+			// Never happens when writing to ByteArrayOutputStream
+		}
+	}
+	
 	protected static void appendHeaderText (ByteArrayOutputStream builder, String headerText) {
 		appendBytes(builder, headerText.getBytes(HTTPConfig.HEADER_CHARSET));
 	}
 	
 	protected static void appendHeaders (ByteArrayOutputStream builder, HTTPPacket packet) {
-		for (String header : packet.headersList) {
-			appendHeaderText(builder, header + "\r\n");
+		for (int i = 0; i < packet.headers.size(); i++) {
+			appendHeaderText(builder, packet.headers.getLine(i));
+			appendBytes(builder, HTTPConstants.CRLF);
 		}
 		
 		appendHeaderText(builder, "\r\n");
@@ -394,18 +537,47 @@ public abstract class HTTPPacket implements DeepCloneable<HTTPPacket> {
 	}
 	
 	/**
-	 * Creates a cloned instance of packet and applies all filters to it
+	 * Creates a cloned instance of packet and applies all filters to it.
+	 * The clone shares headers and body with the packet until a filter changes them, 
+	 * and it has no filters of its own.
 	 * @param packet is the packet you want to filter
 	 * @param url is the URL you want to apply filters for
 	 * @return HTTPPacket clone that has all filteres applied
 	 */
 	public static HTTPPacket filterAll (HTTPPacket packet, URL url) {
-		HTTPPacket returnPacket = (HTTPPacket) packet.cloneDeep();
-		returnPacket.applyFilters(url);
+		HTTPPacket returnPacket = packet.copyWithoutFilters();
+		
+		for (int i = 0; i < packet.filterPipeline.size(); i++) {
+			packet.filterPipeline.get(i).filter(returnPacket, packet.isResponse() ? null : url);
+		}
 		
 		return returnPacket;
 	}
 	
+	/**
+	 * Creates a copy of this packet without filters.
+	 * Headers and body are shared with this packet until either packet changes them.
+	 * The default implementation uses {@link #cloneDeep()}.
+	 * @return HTTPPacket copy without filters
+	 */
+	protected HTTPPacket copyWithoutFilters () {
+		return cloneDeep();
+	}
+	
+	/**
+	 * Copies version, headers and body of this packet to another packet.
+	 * Headers and body are shared until either packet changes them.
+	 * @param target is the packet you want to copy to
+	 */
+	protected void copyContentTo (HTTPPacket target) {
+		target.version = version;
+		target.headers = new HTTPHeaders(headers);
+		target.body = shareBody();
+		target.bodyShared = true;
+		target.externalBody = externalBody;
+		target.contentEncoder = contentEncoder;
+	}
+	
 	/**
 	 * Gets cookies.
 	 * @return Array of all cookies found in packet
@@ -0,0 +1,491 @@
+package io.github.rubenchristoffer.hetty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import io.github.rubenchristoffer.hetty.codec.HTTPContentDecoder;
+import io.github.rubenchristoffer.hetty.codec.HTTPTransferDecoder;
+import io.github.rubenchristoffer.hetty.codec.HTTPUnsupportedContentException;
+import io.github.rubenchristoffer.hetty.codec.HTTPTransferDecoder.DecodeInfo;
+import io.github.rubenchristoffer.hetty.misc.DirectByteArrayOutputStream;
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Reads HTTP packets from an input stream using an internal buffer.
+ * Instead of reading one byte at a time from the stream, it reads as many bytes
+ * as are available into the buffer and scans the buffer for line endings.
+ * The body is handed to the transfer decoder in slices.
+ * If content decoders have been set, bodies with a supported 'Content-Encoding'
+ * are decompressed while they are being read.
+ * Bytes read past the end of a packet are kept in the buffer and
+ * will be used when reading the next packet.
+ * @author Ruben Christoffer
+ */
+public class HTTPPacketReader {
+
+	/**
+	 * Default size of the internal read buffer.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 16384;
+
+	private InputStream inStream;
+
+	private byte[] buffer;
+	private int position;
+	private int limit;
+
+	private byte[] headerBuffer = new byte[1024];
+	private int headerLength;
+
+	// Nothing is left unread before the first packet
+	private boolean lastPacketComplete = true;
+
+	// Reused for every packet, since transfer decoders only use it while being initialized
+	private final HashMap<String, String> headers = new HashMap<String, String> ();
+
+	private List<HTTPContentDecoder> contentDecoders = Collections.emptyList ();
+	private long maxDecodedBodySize = HTTPContentDecoder.DEFAULT_MAX_DECODED_SIZE;
+
+	/**
+	 * Creates a new HTTPPacketReader where bufferSize={@link #DEFAULT_BUFFER_SIZE}.
+	 * @param inStream is the stream you want to read packets from
+	 * @throws IllegalArgumentException if inStream is null
+	 */
+	public HTTPPacketReader (InputStream inStream) {
+		this (inStream, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a new HTTPPacketReader.
+	 * @param inStream is the stream you want to read packets from
+	 * @param bufferSize is the size of the internal read buffer
+	 * @throws IllegalArgumentException if inStream is null or bufferSize is less than 1
+	 */
+	public HTTPPacketReader (InputStream inStream, int bufferSize) {
+		this.inStream = ArgumentValidator.requireNonNullArgument (inStream, "inStream cannot be null");
+
+		if (bufferSize < 1)
+			throw new IllegalArgumentException ("bufferSize must be at least 1");
+
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Reads the next raw HTTP packet from the stream where bodyExpected=true.
+	 * @param transferDecoders is the list of decoders that may be used for decoding body
+	 * @return a raw HTTP packet
+	 * @see #readRawPacket(List, boolean)
+	 */
+	public HTTPRawPacket readRawPacket (List<HTTPTransferDecoder> transferDecoders) {
+		return readRawPacket (transferDecoders, true);
+	}
+
+	/**
+	 * Reads the next raw HTTP packet from the stream.
+	 * This will first read the entire HTTP header.
+	 * After reading header, it will start at the bottom of the list of
+	 * decoders and use the first available decoder.
+	 * Responses with status 1xx, 204 or 304 never have a body.
+	 * Interim responses (1xx except '101 Switching Protocols') such as '100 Continue'
+	 * are skipped, so the returned packet is always the final response.
+	 * If the end of stream is reached before the packet is complete,
+	 * the bytes read so far are returned.
+	 * @param transferDecoders is the list of decoders that may be used for decoding body
+	 * @param bodyExpected should be false if the packet is a response to a HEAD request, 
+	 * which has no body even if its header says otherwise
+	 * @return a raw HTTP packet
+	 * @throws HTTPConnectionException if something goes wrong reading from stream
+	 * @throws HTTPUnsupportedContentException if no decoders support decoding the body
+	 * @see #isLastPacketComplete()
+	 */
+	public HTTPRawPacket readRawPacket (List<HTTPTransferDecoder> transferDecoders, boolean bodyExpected) {
+		return readRawPacket (transferDecoders, bodyExpected, null);
+	}
+
+	/**
+	 * Reads the next raw HTTP packet from the stream and writes the decoded body to a sink
+	 * as it arrives instead of keeping it in memory.
+	 * The body is written in slices no larger than the internal buffer, and the
+	 * sink is neither flushed nor closed.
+	 * @param transferDecoders is the list of decoders that may be used for decoding body
+	 * @param bodyExpected should be false if the packet is a response to a HEAD request
+	 * @param bodySink is the stream the decoded body should be written to, 
+	 * or null if the body should be kept in the returned packet
+	 * @return a raw HTTP packet, which has an empty body if bodySink is not null
+	 * @throws HTTPConnectionException if something goes wrong reading from stream or writing to sink
+	 * @throws HTTPUnsupportedContentException if no decoders support decoding the body,
+	 * or content decoding fails
+	 * @see #readRawPacket(List, boolean)
+	 */
+	public HTTPRawPacket readRawPacket (List<HTTPTransferDecoder> transferDecoders, boolean bodyExpected, OutputStream bodySink) {
+		return readRawPacket (transferDecoders, bodyExpected, bodySink, true);
+	}
+
+	/**
+	 * Reads the next raw HTTP packet from the stream.
+	 * @param transferDecoders is the list of decoders that may be used for decoding body
+	 * @param bodyExpected should be false if the packet is a response to a HEAD request
+	 * @param bodySink is the stream the decoded body should be written to, or null
+	 * @param skipInterimResponses should be false if interim responses should be returned
+	 * @return a raw HTTP packet
+	 * @see #readRawPacket(List, boolean, OutputStream)
+	 */
+	HTTPRawPacket readRawPacket (List<HTTPTransferDecoder> transferDecoders, boolean bodyExpected, OutputStream bodySink, boolean skipInterimResponses) {
+		return readRawPacket (transferDecoders, bodyExpected, bodySink, skipInterimResponses,
+				new HTTPRawPacket (new DirectByteArrayOutputStream (1024), new DirectByteArrayOutputStream ()));
+	}
+
+	/**
+	 * Reads the next raw HTTP packet from the stream into an existing raw packet, which is reset first.
+	 * Nothing is allocated for the packet, so the same raw packet can be used for every read
+	 * as long as it is not kept between them.
+	 * @param transferDecoders is the list of decoders that may be used for decoding body
+	 * @param bodyExpected should be false if the packet is a response to a HEAD request
+	 * @param bodySink is the stream the decoded body should be written to, or null
+	 * @param skipInterimResponses should be false if interim responses should be returned
+	 * @param packet is the raw packet that should be read into
+	 * @return the raw packet that was read into
+	 * @see HTTPRawPacket#reset()
+	 */
+	HTTPRawPacket readRawPacket (List<HTTPTransferDecoder> transferDecoders, boolean bodyExpected, OutputStream bodySink, boolean skipInterimResponses, HTTPRawPacket packet) {
+		while (true) {
+			readSinglePacket (transferDecoders, bodyExpected, bodySink, packet);
+
+			if (!skipInterimResponses || !lastPacketComplete || !isLastPacketInterim ())
+				return packet;
+		}
+	}
+
+	/**
+	 * Was the last packet an interim response, which is a 1xx response other than '101 Switching Protocols'?
+	 * Interim responses are followed by another response to the same request.
+	 * @return true if the last packet was an interim response
+	 */
+	boolean isLastPacketInterim () {
+		int statusCode = getStatusCode ();
+
+		return statusCode / 100 == 1 && statusCode != 101;
+	}
+
+	private void readSinglePacket (List<HTTPTransferDecoder> transferDecoders, boolean bodyExpected, OutputStream bodySink, HTTPRawPacket packet) {
+		packet.reset ();
+		headers.clear ();
+
+		ByteArrayOutputStream headerStream = packet.getHeader ();
+		ByteArrayOutputStream bodyStream = packet.getBody ();
+
+		lastPacketComplete = false;
+
+		try {
+			boolean headerComplete = readHeader ();
+			headerStream.write (headerBuffer, 0, headerLength);
+
+			if (headerComplete) {
+				if (!bodyExpected || !hasBody ()) {
+					lastPacketComplete = true;
+
+					return;
+				}
+
+				HTTPTransferDecoder transferDecoder = null;
+
+				// Determine which transfer decoder to use
+				for (int i = 0; i < transferDecoders.size (); i++) {
+					DecodeInfo status = transferDecoders.get (i).getDecodeInfo (headers);
+
+					if (status == DecodeInfo.CAN_DECODE) {
+						transferDecoder = transferDecoders.get (i);
+						break;
+					} else if (status == DecodeInfo.EMPTY_BODY) {
+						lastPacketComplete = true;
+
+						return;
+					}
+				}
+
+				// If no transfer decoders can decode body then throw exception
+				if (transferDecoder == null) {
+					throw new HTTPUnsupportedContentException ("There were no available decoders in the list of supported decoders."
+							+ " The rest of the content will not be read by socket!", null);
+				}
+
+				transferDecoder.initialize (headers);
+
+				OutputStream sink = bodySink != null ? bodySink : bodyStream;
+				List<OutputStream> decodingStreams = createDecodingStreams (sink, sink instanceof ByteArrayOutputStream ? maxDecodedBodySize : Long.MAX_VALUE);
+
+				if (!decodingStreams.isEmpty ()) {
+					// Body will no longer match the encoding and length in header
+					headerStream.reset ();
+					writeHeaderWithout (headerStream, "content-encoding", "content-length");
+					sink = decodingStreams.get (decodingStreams.size () - 1);
+				}
+
+				lastPacketComplete = readBody (transferDecoder, sink);
+
+				if (lastPacketComplete) {
+					// Outermost stream first, since it writes to the ones created before it
+					for (int i = decodingStreams.size () - 1; i >= 0; i--)
+						decodingStreams.get (i).close ();
+				}
+			}
+		} catch (IOException e) {
+			throw new HTTPConnectionException ("Something went wrong reading raw HTTP packet", e);
+		}
+	}
+
+	/**
+	 * Was the last packet read in its entirety?
+	 * @return true if the last packet was complete or no packet has been read yet, 
+	 * false if the end of stream was reached or reading failed before the packet was complete
+	 */
+	public boolean isLastPacketComplete () {
+		return lastPacketComplete;
+	}
+
+	/**
+	 * Gets the number of bytes that have been read from the stream,
+	 * but not yet consumed by a packet.
+	 * @return number of buffered bytes
+	 */
+	public int available () {
+		return limit - position;
+	}
+
+	/**
+	 * Reads more bytes from the stream if there are no buffered bytes.
+	 * This blocks until bytes are available, the end of stream is reached
+	 * or the stream times out.
+	 * @return number of buffered bytes, or -1 if reached end of stream
+	 * @throws IOException if reading from stream fails
+	 */
+	int peek () throws IOException {
+		if (position < limit)
+			return limit - position;
+
+		return fill ();
+	}
+
+	private boolean readHeader () throws IOException {
+		headerLength = 0;
+		int lineStart = 0;
+		boolean startLine = true;
+
+		while (true) {
+			if (position == limit && fill () == -1)
+				return false;
+
+			// Scan buffered bytes for the end of the current line
+			int end = position;
+
+			while (end < limit && buffer[end] != HTTPConstants.ASCII_LF)
+				end++;
+
+			boolean foundLineEnd = end < limit;
+
+			if (foundLineEnd)
+				end++;
+
+			appendHeaderBytes (position, end - position);
+			position = end;
+
+			if (foundLineEnd) {
+				int lineLength = headerLength - lineStart;
+
+				// Check if reached end of header
+				if (lineLength == 2 && headerBuffer[lineStart] == HTTPConstants.ASCII_CR)
+					return true;
+
+				if (!startLine)
+					putHeaderField (lineStart, lineLength);
+
+				startLine = false;
+				lineStart = headerLength;
+			}
+		}
+	}
+
+	private boolean readBody (HTTPTransferDecoder transferDecoder, OutputStream bodyStream) throws IOException {
+		boolean finishedBody = false;
+
+		// Read body using transfer decoder and stop when decoder has detected end of body
+		while (!finishedBody) {
+			if (position == limit && fill () == -1)
+				return false;
+
+			position += transferDecoder.decode (bodyStream, buffer, position, limit - position);
+			finishedBody = transferDecoder.isFinished ();
+		}
+
+		return true;
+	}
+
+	private List<OutputStream> createDecodingStreams (OutputStream sink, long maxDecodedSize) {
+		String contentEncoding = headers.get ("content-encoding");
+
+		if (contentEncoding == null || contentDecoders.isEmpty ())
+			return Collections.emptyList ();
+
+		ArrayList<OutputStream> decodingStreams = new ArrayList<OutputStream> ();
+
+		OutputStream stream = sink;
+
+		// Codings are listed in the order they were applied, so the last one is decoded first
+		for (String encoding : contentEncoding.split (",")) {
+			encoding = encoding.trim ();
+
+			if (encoding.isEmpty () || encoding.equals ("identity"))
+				continue;
+
+			HTTPContentDecoder contentDecoder = getContentDecoder (encoding);
+
+			// Body is kept as it is unless every coding can be decoded
+			if (contentDecoder == null) {
+				decodingStreams.clear ();
+				return decodingStreams;
+			}
+
+			stream = contentDecoder.newDecodingStream (stream, maxDecodedSize);
+			decodingStreams.add (stream);
+		}
+
+		return decodingStreams;
+	}
+
+	private HTTPContentDecoder getContentDecoder (String encoding) {
+		for (HTTPContentDecoder contentDecoder : contentDecoders) {
+			if (contentDecoder.canDecode (encoding))
+				return contentDecoder;
+		}
+
+		return null;
+	}
+
+	private void writeHeaderWithout (ByteArrayOutputStream headerStream, String... names) {
+		int lineStart = 0;
+
+		for (int i = 0; i < headerLength; i++) {
+			if (headerBuffer[i] != HTTPConstants.ASCII_LF)
+				continue;
+
+			if (!isHeaderLineNamed (lineStart, i, names))
+				headerStream.write (headerBuffer, lineStart, i + 1 - lineStart);
+
+			lineStart = i + 1;
+		}
+	}
+
+	private boolean isHeaderLineNamed (int lineStart, int lineEnd, String... names) {
+		for (String name : names) {
+			int nameEnd = lineStart + name.length ();
+
+			if (nameEnd >= lineEnd || headerBuffer[nameEnd] != ':')
+				continue;
+
+			if (new String (headerBuffer, lineStart, name.length (), HTTPConfig.HEADER_CHARSET).equalsIgnoreCase (name))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Sets the content decoders used for decoding bodies with a 'Content-Encoding' header.
+	 * The list is not copied, so later changes to it are used by this reader.
+	 * No content decoders are used by default.
+	 * @param contentDecoders is the list of decoders that may be used for decoding content
+	 * @throws IllegalArgumentException if contentDecoders is null
+	 */
+	public void setContentDecoders (List<HTTPContentDecoder> contentDecoders) {
+		this.contentDecoders = ArgumentValidator.requireNonNullArgument (contentDecoders, "contentDecoders cannot be null");
+	}
+
+	/**
+	 * Sets the maximum size of a body after content decoding.
+	 * Only bodies kept in memory (in the returned packet or a ByteArrayOutputStream sink) are limited,
+	 * since bodies written to other sinks may be much larger than memory on purpose.
+	 * This is {@link HTTPContentDecoder#DEFAULT_MAX_DECODED_SIZE} by default.
+	 * @param maxDecodedBodySize is the maximum number of bytes
+	 */
+	public void setMaxDecodedBodySize (long maxDecodedBodySize) {
+		this.maxDecodedBodySize = maxDecodedBodySize;
+	}
+
+	private boolean hasBody () {
+		int statusCode = getStatusCode ();
+
+		return !(statusCode / 100 == 1 || statusCode == 204 || statusCode == 304);
+	}
+
+	/**
+	 * Gets the status code of the last packet whose header has been read.
+	 * This is known as soon as the header has been read, before the body is.
+	 * @return status code, or -1 if the packet is not a response
+	 */
+	int getStatusCode () {
+		// Status line looks like 'HTTP/1.1 200 OK' and requests have no status code
+		if (headerLength < 12 || headerBuffer[0] != 'H' || headerBuffer[1] != 'T' || headerBuffer[2] != 'T' || headerBuffer[3] != 'P')
+			return -1;
+
+		int index = 4;
+
+		while (index < headerLength && headerBuffer[index] != ' ')
+			index++;
+
+		int statusCode = 0;
+
+		for (int i = index + 1; i < index + 4 && i < headerLength; i++) {
+			if (headerBuffer[i] < '0' || headerBuffer[i] > '9')
+				return -1;
+
+			statusCode = statusCode * 10 + (headerBuffer[i] - '0');
+		}
+
+		return statusCode;
+	}
+
+	private void appendHeaderBytes (int offset, int length) {
+		if (headerLength + length > headerBuffer.length) {
+			byte[] newHeaderBuffer = new byte[Math.max (headerBuffer.length * 2, headerLength + length)];
+			System.arraycopy (headerBuffer, 0, newHeaderBuffer, 0, headerLength);
+			headerBuffer = newHeaderBuffer;
+		}
+
+		System.arraycopy (buffer, offset, headerBuffer, headerLength, length);
+		headerLength += length;
+	}
+
+	private void putHeaderField (int lineStart, int lineLength) {
+		int lineEnd = lineStart + lineLength;
+
+		for (int i = lineStart; i < lineEnd; i++) {
+			if (headerBuffer[i] == ':') {
+				String name = new String (headerBuffer, lineStart, i - lineStart, HTTPConfig.HEADER_CHARSET);
+				String value = new String (headerBuffer, i + 1, lineEnd - i - 1, HTTPConfig.HEADER_CHARSET);
+
+				// Trim actually removes \r\n for us, which is great
+				headers.put (name.toLowerCase (), value.trim ().toLowerCase ());
+				return;
+			}
+		}
+	}
+
+	private int fill () throws IOException {
+		position = 0;
+		limit = 0;
+
+		int read = inStream.read (buffer, 0, buffer.length);
+
+		if (read > 0)
+			limit = read;
+
+		return read;
+	}
+
+}
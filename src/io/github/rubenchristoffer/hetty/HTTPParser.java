@@ -3,6 +3,9 @@ package io.github.rubenchristoffer.hetty;
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 
+import io.github.rubenchristoffer.hetty.misc.DirectByteArrayOutputStream;
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
 /**
  * Utility class used for various HTTP parsing.
  * @author Ruben Christoffer
@@ -17,8 +20,13 @@ public final class HTTPParser {
 	 * @return HTTPRawPacket object
 	 */
 	public static HTTPRawPacket parseRawPacket (byte[] httpPacket) {
-		ByteArrayOutputStream headerStream = getHeaderStream(httpPacket);
-		ByteArrayOutputStream bodyStream = getBodyStream(httpPacket, headerStream.size());
+		int bodyOffset = getBodyOffset(httpPacket);
+		
+		DirectByteArrayOutputStream headerStream = new DirectByteArrayOutputStream(bodyOffset);
+		headerStream.write(httpPacket, 0, bodyOffset);
+		
+		DirectByteArrayOutputStream bodyStream = new DirectByteArrayOutputStream(httpPacket.length - bodyOffset);
+		bodyStream.write(httpPacket, bodyOffset, httpPacket.length - bodyOffset);
 		
 		return new HTTPRawPacket(headerStream, bodyStream);
 	}
@@ -36,44 +44,149 @@ public final class HTTPParser {
 	
 	/**
 	 * Parses a raw HTTP packet into a HTTPPacket object.
+	 * The header is parsed straight from its bytes in a single pass.
+	 * The body stream of the raw packet becomes the body of the returned packet
+	 * without being copied, so the raw packet should not be used afterwards.
+	 * If the body stream is shared with the packet the raw packet was generated from,
+	 * the returned packet copies it before changing it.
+	 * Lines may end with either CRLF or LF.
 	 * @param rawHttpPacket is the packet you want to parse
 	 * @return HTTPPacket object
 	 */
 	public static HTTPPacket parsePacket (HTTPRawPacket rawHttpPacket) {
-		HTTPPacket returnPacket;
+		HTTPPacket returnPacket = parseHeader(rawHttpPacket, null);
+		returnPacket.body = rawHttpPacket.getBody();
+		returnPacket.bodyShared = rawHttpPacket.isBodyShared();
 		
-		String header = new String(rawHttpPacket.getHeader().toByteArray(), HTTPConfig.HEADER_CHARSET);
-		String[] headerLines = header.split("\n");
-		headerLines[0] = headerLines[0].substring(0, headerLines[0].length() - 1);
+		return returnPacket;
+	}
+	
+	/**
+	 * Parses a raw HTTP packet into an existing HTTPPacket object instead of creating a new one.
+	 * The packet is reset first, so the storage its headers and body already have is reused.
+	 * The body of the raw packet is copied, so the raw packet may be reset and reused afterwards.
+	 * @param rawHttpPacket is the packet you want to parse
+	 * @param packet is the packet you want to fill, which must be a HTTPResponse if the 
+	 * raw packet is a response and a HTTPRequest otherwise
+	 * @throws IllegalArgumentException if packet is null or does not match the raw packet
+	 * @see HTTPPacket#reset()
+	 */
+	public static void parsePacket (HTTPRawPacket rawHttpPacket, HTTPPacket packet) {
+		ArgumentValidator.requireNonNullArgument (packet, "packet cannot be null");
+		
+		packet.reset();
+		parseHeader(rawHttpPacket, packet);
+		HTTPPacket.appendStream(packet.body, rawHttpPacket.getBody());
+	}
+	
+	/**
+	 * Parses the header of a raw HTTP packet. The header is parsed straight from its bytes in a single pass.
+	 * @param rawHttpPacket is the packet you want to parse
+	 * @param packet is the packet headers are added to, or null if a new packet should be created
+	 * @return the packet that was parsed into
+	 */
+	static HTTPPacket parseHeader (HTTPRawPacket rawHttpPacket, HTTPPacket packet) {
+		ByteArrayOutputStream headerStream = rawHttpPacket.getHeader();
+		byte[] header = headerStream instanceof DirectByteArrayOutputStream 
+				? ((DirectByteArrayOutputStream) headerStream).getBuffer() : headerStream.toByteArray();
+		int headerLength = headerStream.size();
 		
-		boolean response = headerLines[0].toLowerCase().startsWith("http");
+		int lineEnd = findLineEnd(header, 0, headerLength);
+		HTTPPacket returnPacket = parseStartLine(header, 0, trimLineEnd(header, 0, lineEnd), packet);
 		
-		if (response) {
-			HTTPResponse res = new HTTPResponse();
+		// Every line until the empty line that ends the header is a header field
+		for (int lineStart = lineEnd + 1; lineStart < headerLength; lineStart = lineEnd + 1) {
+			lineEnd = findLineEnd(header, lineStart, headerLength);
+			int contentEnd = trimLineEnd(header, lineStart, lineEnd);
 			
-			if (headerLines[0].charAt(4) == '/')
-				res.version = headerLines[0].split(" ")[0].split("/")[1];
+			if (contentEnd == lineStart)
+				break;
 			
-			res.response = headerLines[0].split(" ", 2)[1];
+			returnPacket.addHeader(new String(header, lineStart, contentEnd - lineStart, HTTPConfig.HEADER_CHARSET));
+		}
+		
+		return returnPacket;
+	}
+	
+	private static HTTPPacket parseStartLine (byte[] header, int start, int end, HTTPPacket packet) {
+		int firstSpace = indexOf(header, ' ', start, end);
+		
+		if (isResponseStartLine(header, start, end)) {
+			HTTPResponse res = (HTTPResponse) getTarget(packet, true);
 			
-			returnPacket = res;
-		} else {
-			HTTPRequest req = new HTTPRequest();
-			String[] split = headerLines[0].split(" ");
+			// Status line looks like 'HTTP/1.1 200 OK'
+			if (end - start > 4 && header[start + 4] == '/')
+				res.version = new String(header, start + 5, firstSpace - start - 5, HTTPConfig.HEADER_CHARSET);
 			
-			req.request = split[0];
-			req.version = split[split.length - 1].split("/")[1];
+			res.response = firstSpace < end ? new String(header, firstSpace + 1, end - firstSpace - 1, HTTPConfig.HEADER_CHARSET) : "";
 			
-			returnPacket = req;
+			return res;
 		}
 		
-		for (int i = 1; i < headerLines.length - 1; i++) {
-			returnPacket.addHeader(headerLines[i].substring(0, headerLines[i].length() - 1));
+		HTTPRequest req = (HTTPRequest) getTarget(packet, false);
+		
+		// Request line looks like 'GET /path HTTP/1.1', where the version is after the last '/'
+		req.request = new String(header, start, firstSpace - start, HTTPConfig.HEADER_CHARSET);
+		
+		int lastSlash = end - 1;
+		
+		while (lastSlash > firstSpace && header[lastSlash] != '/' && header[lastSlash] != ' ')
+			lastSlash--;
+		
+		if (header[lastSlash] == '/')
+			req.version = new String(header, lastSlash + 1, end - lastSlash - 1, HTTPConfig.HEADER_CHARSET);
+		
+		return req;
+	}
+	
+	private static HTTPPacket getTarget (HTTPPacket packet, boolean response) {
+		if (packet == null)
+			return response ? new HTTPResponse() : new HTTPRequest();
+		
+		if (packet.isResponse() != response)
+			throw new IllegalArgumentException(String.format("Cannot parse a %s into a %s", 
+					response ? "response" : "request", packet.getClass().getSimpleName()));
+		
+		return packet;
+	}
+	
+	private static boolean isResponseStartLine (byte[] header, int start, int end) {
+		return end - start >= 4 && (header[start] | 0x20) == 'h' && (header[start + 1] | 0x20) == 't' 
+				&& (header[start + 2] | 0x20) == 't' && (header[start + 3] | 0x20) == 'p';
+	}
+	
+	private static int findLineEnd (byte[] bytes, int start, int end) {
+		return indexOf(bytes, HTTPConstants.ASCII_LF, start, end);
+	}
+	
+	private static int trimLineEnd (byte[] bytes, int lineStart, int lineEnd) {
+		return lineEnd > lineStart && bytes[lineEnd - 1] == HTTPConstants.ASCII_CR ? lineEnd - 1 : lineEnd;
+	}
+	
+	private static int indexOf (byte[] bytes, int value, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == value)
+				return i;
 		}
 		
-		returnPacket.setBody(rawHttpPacket.getBody().toByteArray());
+		return end;
+	}
+	
+	/**
+	 * Gets the offset of the body in a HTTP packet, which is the length of header + '\r\n'.
+	 * @param rawHttpPacket is the raw http packet as byte array
+	 * @return index of the first byte after the empty line that ends the header, 
+	 * or the length of the array if there is no such line
+	 */
+	private static int getBodyOffset (byte[] rawHttpPacket) {
+		// Look for '\r\n\r\n' by checking every LF for a CRLF right before it
+		for (int i = 3; i < rawHttpPacket.length; i++) {
+			if (rawHttpPacket[i] == HTTPConstants.ASCII_LF && rawHttpPacket[i - 1] == HTTPConstants.ASCII_CR
+					&& rawHttpPacket[i - 2] == HTTPConstants.ASCII_LF && rawHttpPacket[i - 3] == HTTPConstants.ASCII_CR)
+				return i + 1;
+		}
 		
-		return returnPacket;
+		return rawHttpPacket.length;
 	}
 	
 	/**
@@ -134,24 +247,10 @@ public final class HTTPParser {
 	 * @return ByteArrayOutputStream containing bytes of header
 	 */
 	public static ByteArrayOutputStream getHeaderStream (byte[] rawHttpPacket) {
-		ByteArrayOutputStream returnStream = new ByteArrayOutputStream();
+		int bodyOffset = getBodyOffset(rawHttpPacket);
 		
-		int progress = 0;
-		
-		for (int i = 0; i < rawHttpPacket.length; i++) {
-			boolean carriageReturn = rawHttpPacket[i] == 13;
-			boolean newLine = rawHttpPacket[i] == 10;
-			
-			returnStream.write(rawHttpPacket[i]);
-			
-			// return index + 1 when pattern '\r\n\r\n' is observed
-			switch (progress) {
-			case 0:
-			case 2: if (carriageReturn) progress++; else progress = 0; break;
-			case 1: if (newLine) progress++; else progress = 0; break;
-			case 3: if (newLine) return returnStream;
-			}
-		}
+		ByteArrayOutputStream returnStream = new DirectByteArrayOutputStream(bodyOffset);
+		returnStream.write(rawHttpPacket, 0, bodyOffset);
 		
 		return returnStream;
 	}
@@ -164,11 +263,10 @@ public final class HTTPParser {
 	 * @return ByteArrayOutputStream containing bytes of body
 	 */
 	public static ByteArrayOutputStream getBodyStream (byte[] rawHttpPacket, int bodyOffset) {
-		ByteArrayOutputStream returnStream = new ByteArrayOutputStream();
+		int length = Math.max(rawHttpPacket.length - bodyOffset, 0);
 		
-		for (int i = bodyOffset; i < rawHttpPacket.length; i++) {
-			returnStream.write(rawHttpPacket[i]);
-		}
+		ByteArrayOutputStream returnStream = new DirectByteArrayOutputStream(length);
+		returnStream.write(rawHttpPacket, bodyOffset, length);
 		
 		return returnStream;
 	}
@@ -0,0 +1,248 @@
+package io.github.rubenchristoffer.hetty;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Sends several requests over a single HTTPConnection using HTTP/1.1 pipelining.
+ * Requests are written back-to-back without waiting for responses, and
+ * responses are read in the same order as the requests were sent.
+ * At most maxInFlight requests are waiting for a response at any time.
+ * If the server closes the connection before all responses have been received,
+ * the connection is reopened and the unanswered requests are sent again.
+ * Only idempotent requests (GET, HEAD, PUT, DELETE, OPTIONS and TRACE) are resent.
+ * Other requests are never pipelined behind or in front of other requests.
+ * @author Ruben Christoffer
+ */
+public class HTTPPipeline {
+
+	/**
+	 * Default maximum number of requests waiting for a response.
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+	/**
+	 * Default maximum number of times the connection is reopened during one call to {@link #execute()}.
+	 */
+	public static final int DEFAULT_MAX_RECONNECTS = 3;
+
+	private static final List<String> IDEMPOTENT_METHODS = Arrays.asList ("GET", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE");
+
+	private HTTPConnection con;
+	private int maxInFlight;
+	private int maxReconnects = DEFAULT_MAX_RECONNECTS;
+	private boolean applyFilters = true;
+
+	private ArrayList<URL> urls = new ArrayList<URL> ();
+	private ArrayList<HTTPRequest> requests = new ArrayList<HTTPRequest> ();
+
+	/**
+	 * Creates a new HTTPPipeline where maxInFlight={@link #DEFAULT_MAX_IN_FLIGHT}.
+	 * @param con is the connection requests should be sent on
+	 */
+	public HTTPPipeline (HTTPConnection con) {
+		this (con, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * Creates a new HTTPPipeline.
+	 * @param con is the connection requests should be sent on
+	 * @param maxInFlight is the maximum number of requests waiting for a response at any time
+	 * @throws IllegalArgumentException if con is null or maxInFlight is less than 1
+	 */
+	public HTTPPipeline (HTTPConnection con, int maxInFlight) {
+		this.con = ArgumentValidator.requireNonNullArgument (con, "con cannot be null");
+
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException ("maxInFlight must be at least 1");
+
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Adds a request to the pipeline. Nothing is sent until {@link #execute()} is called.
+	 * The URL must have the same scheme, host and port as the URL of the connection.
+	 * @param url is the URL you want to send request to
+	 * @param request is the request you want to send
+	 * @throws IllegalArgumentException if url or request is null, or url is for a different server
+	 */
+	public void add (URL url, HTTPRequest request) {
+		ArgumentValidator.requireNonNullArgument (url, "url cannot be null");
+		ArgumentValidator.requireNonNullArgument (request, "request cannot be null");
+
+		if (con.getURL () == null)
+			con.setURL (url);
+		else if (!HTTPConnectionPool.getKey (url).equals (HTTPConnectionPool.getKey (con.getURL ())))
+			throw new IllegalArgumentException ("url must have the same scheme, host and port as the connection");
+
+		urls.add (url);
+		requests.add (request);
+	}
+
+	/**
+	 * Sends all requests that have been added and reads their responses.
+	 * The connection is opened if it is not already open.
+	 * The list of added requests is cleared afterwards.
+	 * @return list of responses, where the response at index i belongs to the request added as number i
+	 * @throws HTTPConnectionException if the connection was closed before a non-idempotent request
+	 * was answered, or it had to be reopened more than the maximum number of times
+	 * @throws HTTPReadTimeoutException if a response was not received in time, in which case nothing is resent
+	 * @throws HTTPDeadlineExceededException if the deadline of the connection passed
+	 */
+	public List<HTTPResponse> execute () {
+		int count = requests.size ();
+		HTTPResponse[] responses = new HTTPResponse[count];
+		HTTPRawPacket[] rawPackets = new HTTPRawPacket[count];
+
+		ArrayDeque<Integer> pending = new ArrayDeque<Integer> ();
+		ArrayDeque<Integer> inFlight = new ArrayDeque<Integer> ();
+		int reconnects = 0;
+
+		for (int i = 0; i < count; i++)
+			pending.add (i);
+
+		try {
+			while (!pending.isEmpty () || !inFlight.isEmpty ()) {
+				if (!con.isConnectionOpen ())
+					con.openConnection ();
+
+				try {
+					writeRequests (pending, inFlight, rawPackets);
+
+					int index = inFlight.peekFirst ();
+					HTTPRequest request = requests.get (index);
+					HTTPRawPacket rawResponse = con.readRawPacket (!request.getRequestMethod ().equalsIgnoreCase ("HEAD"));
+
+					if (!con.isLastPacketComplete ())
+						throw new HTTPConnectionException ("Connection was closed by server before response was complete", null);
+
+					HTTPResponse response = (HTTPResponse) HTTPParser.parsePacket (rawResponse);
+
+					responses[index] = response;
+					inFlight.pollFirst ();
+
+					if (response.doesHeaderExist ("Connection", "close")) {
+						// Server will not answer any more requests on this connection
+						con.closeConnection ();
+						requeue (pending, inFlight);
+					}
+				} catch (HTTPConnectionException e) {
+					closeQuietly ();
+
+					// The server did not close the connection, so resending would only wait again
+					if (e instanceof HTTPReadTimeoutException || e instanceof HTTPDeadlineExceededException)
+						throw e;
+
+					if (++reconnects > maxReconnects)
+						throw new HTTPConnectionException ("Connection was closed too many times while pipelining", e);
+
+					for (int index : inFlight) {
+						if (!isIdempotent (requests.get (index)))
+							throw new HTTPConnectionException ("Connection was closed before non-idempotent request was answered", e);
+					}
+
+					requeue (pending, inFlight);
+				}
+			}
+		} finally {
+			urls.clear ();
+			requests.clear ();
+		}
+
+		return Collections.unmodifiableList (Arrays.asList (responses));
+	}
+
+	private void writeRequests (ArrayDeque<Integer> pending, ArrayDeque<Integer> inFlight, HTTPRawPacket[] rawPackets) {
+		boolean wrote = false;
+
+		while (inFlight.size () < maxInFlight && !pending.isEmpty ()) {
+			int index = pending.peekFirst ();
+			boolean idempotent = isIdempotent (requests.get (index));
+
+			// Non-idempotent requests are only sent on an otherwise idle connection
+			if (!idempotent && !inFlight.isEmpty ())
+				break;
+
+			if (inFlight.size () == 1 && !isIdempotent (requests.get (inFlight.peekFirst ())))
+				break;
+
+			if (rawPackets[index] == null)
+				rawPackets[index] = requests.get (index).generatePacket (urls.get (index), applyFilters);
+
+			con.writeRawPacket (rawPackets[index]);
+			pending.pollFirst ();
+			inFlight.addLast (index);
+			wrote = true;
+		}
+
+		if (wrote)
+			con.flush ();
+	}
+
+	private static void requeue (ArrayDeque<Integer> pending, ArrayDeque<Integer> inFlight) {
+		// Unanswered requests go first, in the order they were sent
+		while (!inFlight.isEmpty ())
+			pending.addFirst (inFlight.pollLast ());
+	}
+
+	private void closeQuietly () {
+		if (!con.isConnectionOpen ())
+			return;
+
+		try {
+			con.closeConnection ();
+		} catch (HTTPConnectionException e) {
+			// Connection is reopened anyway
+		}
+	}
+
+	/**
+	 * Is the request idempotent, which means that it is safe to send it again?
+	 * @param request is the request you want to check
+	 * @return true if request method is GET, HEAD, PUT, DELETE, OPTIONS or TRACE
+	 */
+	public static boolean isIdempotent (HTTPRequest request) {
+		return IDEMPOTENT_METHODS.contains (request.getRequestMethod ().toUpperCase ());
+	}
+
+	/**
+	 * Sets whether filters should be applied when generating requests.
+	 * This is true by default.
+	 * @param applyFilters determines whether filters will be applied before sending requests
+	 */
+	public void setApplyFilters (boolean applyFilters) {
+		this.applyFilters = applyFilters;
+	}
+
+	/**
+	 * Sets the maximum number of times the connection may be reopened
+	 * during one call to {@link #execute()}.
+	 * @param maxReconnects is the maximum number of reconnects
+	 */
+	public void setMaxReconnects (int maxReconnects) {
+		this.maxReconnects = maxReconnects;
+	}
+
+	/**
+	 * Gets maximum number of requests in flight.
+	 * @return the maximum number of requests waiting for a response at any time
+	 */
+	public int getMaxInFlight () {
+		return maxInFlight;
+	}
+
+	/**
+	 * Gets underlying HTTPConnection.
+	 * @return the connection requests are sent on
+	 */
+	public HTTPConnection getConnection () {
+		return con;
+	}
+
+}
@@ -0,0 +1,460 @@
+package io.github.rubenchristoffer.hetty;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.github.rubenchristoffer.hetty.HTTPRequest.RequestMethod;
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Downloads large files by fetching several byte ranges in parallel over pooled connections.
+ * A HEAD request is sent first to learn the length of the file and whether the server accepts ranges.
+ * The file is then split into segments that are fetched with Range requests and written 
+ * straight into their place in the pre-sized target file. Failed segments are retried.
+ * Progress is kept in a sidecar file next to the target (target name + {@link #SIDECAR_SUFFIX}),
+ * so that an interrupted download can be resumed by downloading to the same target again.
+ * If the server does not accept ranges, the file is downloaded using a single request.
+ * The number of parallel requests is also limited by the maximum connections per host of the pool.
+ * @author Ruben Christoffer
+ */
+public class HTTPRangeDownloader {
+	
+	/**
+	 * Default number of segments downloaded at the same time.
+	 */
+	public static final int DEFAULT_PARALLELISM = 4;
+	
+	/**
+	 * Default number of bytes in each segment.
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+	
+	/**
+	 * Default number of times a segment is retried before the download fails.
+	 */
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	
+	/**
+	 * Suffix added to the name of the target file to get the name of the sidecar file.
+	 */
+	public static final String SIDECAR_SUFFIX = ".parts";
+	
+	private final HTTPConnectionPool pool;
+	private final int parallelism;
+	private final long segmentSize;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private Executor executor = HTTPExecutors.getDefaultExecutor ();
+	
+	/**
+	 * Creates a new HTTPRangeDownloader where parallelism={@link #DEFAULT_PARALLELISM}
+	 * and segmentSize={@link #DEFAULT_SEGMENT_SIZE}.
+	 * @param pool is the pool connections are leased from
+	 */
+	public HTTPRangeDownloader (HTTPConnectionPool pool) {
+		this (pool, DEFAULT_PARALLELISM, DEFAULT_SEGMENT_SIZE);
+	}
+	
+	/**
+	 * Creates a new HTTPRangeDownloader.
+	 * @param pool is the pool connections are leased from
+	 * @param parallelism is the number of segments downloaded at the same time
+	 * @param segmentSize is the number of bytes in each segment
+	 * @throws IllegalArgumentException if pool is null, or parallelism or segmentSize is less than 1
+	 */
+	public HTTPRangeDownloader (HTTPConnectionPool pool, int parallelism, long segmentSize) {
+		this.pool = ArgumentValidator.requireNonNullArgument (pool, "pool cannot be null");
+		
+		if (parallelism < 1)
+			throw new IllegalArgumentException ("parallelism must be at least 1");
+		
+		if (segmentSize < 1)
+			throw new IllegalArgumentException ("segmentSize must be at least 1");
+		
+		this.parallelism = parallelism;
+		this.segmentSize = segmentSize;
+	}
+	
+	/**
+	 * Downloads a file. This blocks until the download is complete.
+	 * If the sidecar file of a previous, interrupted download of the same file to the same target exists,
+	 * only the missing segments are downloaded. The ETag or Last-Modified header is used
+	 * for making sure the file has not changed since.
+	 * @param url is the URL of the file
+	 * @param target is the file that should be written
+	 * @return the length of the file
+	 * @throws HTTPDownloadException if the download fails
+	 * @throws IllegalArgumentException if url or target is null
+	 */
+	public long download (URL url, File target) {
+		ArgumentValidator.requireNonNullArgument (url, "url cannot be null");
+		ArgumentValidator.requireNonNullArgument (target, "target cannot be null");
+		
+		HTTPResponse head = exchange (url, newRequest (RequestMethod.HEAD));
+		
+		if (head.getStatusCode () / 100 != 2)
+			throw new HTTPDownloadException (String.format ("Server responded with '%s' to HEAD request", head.getStatus ()), null);
+		
+		List<String> contentLength = head.getHeaders ("Content-Length");
+		
+		if (contentLength.isEmpty () || !head.doesHeaderExist ("Accept-Ranges", "bytes"))
+			return downloadWhole (url, target);
+		
+		long length = Long.parseLong (contentLength.get (0).trim ());
+		String validator = getValidator (head);
+		
+		try {
+			return downloadRanges (url, target, length, validator);
+		} catch (IOException e) {
+			throw new HTTPDownloadException ("Could not write to target file", e);
+		}
+	}
+	
+	private long downloadWhole (URL url, File target) {
+		try (FileOutputStream fileStream = new FileOutputStream (target)) {
+			HTTPResponse response = exchange (url, newRequest (RequestMethod.GET), fileStream, 200);
+			
+			if (response.getStatusCode () != 200)
+				throw new HTTPDownloadException (String.format ("Server responded with '%s'", response.getStatus ()), null);
+		} catch (IOException e) {
+			throw new HTTPDownloadException ("Could not write to target file", e);
+		}
+		
+		return target.length ();
+	}
+	
+	private long downloadRanges (final URL url, File target, final long length, final String validator) throws IOException {
+		final int segmentCount = (int) ((length + segmentSize - 1) / segmentSize);
+		final Sidecar sidecar = new Sidecar (new File (target.getPath () + SIDECAR_SUFFIX), length, validator, segmentCount);
+		final ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<Integer> ();
+		
+		for (int i = 0; i < segmentCount; i++) {
+			if (!sidecar.isDone (i))
+				pending.add (i);
+		}
+		
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile (target, "rw")) {
+			randomAccessFile.setLength (length);
+			
+			final FileChannel fileChannel = randomAccessFile.getChannel ();
+			final AtomicInteger[] attempts = new AtomicInteger[segmentCount];
+			final AtomicBoolean cancelled = new AtomicBoolean ();
+			
+			for (int i = 0; i < segmentCount; i++)
+				attempts[i] = new AtomicInteger ();
+			
+			ArrayList<CompletableFuture<Void>> workers = new ArrayList<CompletableFuture<Void>> ();
+			
+			for (int i = 0; i < Math.min (parallelism, pending.size ()); i++) {
+				workers.add (CompletableFuture.runAsync (new Runnable () {
+					@Override
+					public void run () {
+						Integer segment;
+						
+						try {
+							while (!cancelled.get () && (segment = pending.poll ()) != null) {
+								try {
+									downloadSegment (url, fileChannel, segment, length, validator);
+									sidecar.markDone (segment);
+								} catch (HTTPDownloadException e) {
+									// Retrying does not help if the server refuses the range
+									throw e;
+								} catch (HTTPException e) {
+									if (attempts[segment].incrementAndGet () > maxRetries)
+										throw new HTTPDownloadException (String.format ("Segment %d failed %d times", segment, attempts[segment].get ()), e);
+									
+									pending.add (segment);
+								} catch (IOException e) {
+									throw new HTTPDownloadException ("Could not write to target file", e);
+								}
+							}
+						} catch (RuntimeException e) {
+							// Stop the other workers once they are done with their current segment
+							cancelled.set (true);
+							throw e;
+						}
+					}
+				}, executor));
+			}
+			
+			try {
+				CompletableFuture.allOf (workers.toArray (new CompletableFuture<?>[workers.size ()])).join ();
+			} catch (CompletionException e) {
+				if (e.getCause () instanceof HTTPException)
+					throw (HTTPException) e.getCause ();
+				
+				throw new HTTPDownloadException ("Download failed", e.getCause ());
+			}
+		} finally {
+			sidecar.close ();
+		}
+		
+		sidecar.delete ();
+		
+		return length;
+	}
+	
+	private void downloadSegment (URL url, FileChannel fileChannel, int segment, long length, String validator) throws IOException {
+		long start = segment * segmentSize;
+		long end = Math.min (start + segmentSize, length) - 1;
+		
+		HTTPRequest request = newRequest (RequestMethod.GET);
+		request.addHeader ("Range", "bytes=" + start + "-" + end);
+		
+		if (validator != null)
+			request.addHeader ("If-Range", validator);
+		
+		PositionalOutputStream sink = new PositionalOutputStream (fileChannel, start, end + 1);
+		HTTPResponse response = exchange (url, request, sink, 206);
+		
+		if (response.getStatusCode () != 206)
+			throw new HTTPDownloadException (String.format ("Expected partial content for segment %d, but server responded with '%s'."
+					+ " Perhaps the file has changed?", segment, response.getStatus ()), null);
+		
+		if (sink.position != end + 1)
+			throw new HTTPConnectionException (String.format ("Segment %d was incomplete", segment), null);
+	}
+	
+	private HTTPResponse exchange (URL url, HTTPRequest request) {
+		return exchange (url, request, null, 0);
+	}
+	
+	private HTTPResponse exchange (URL url, HTTPRequest request, OutputStream bodySink, int expectedStatusCode) {
+		HTTPConnection connection = pool.lease (url);
+		HTTPResponse response;
+		
+		try {
+			connection.sendPacket (request);
+			
+			if (bodySink == null)
+				response = (HTTPResponse) connection.readPacket (!request.getRequestMethod ().equals ("HEAD"));
+			else
+				response = (HTTPResponse) connection.readPacket (new StatusCheckingOutputStream (bodySink, connection, expectedStatusCode), true);
+			
+			if (!connection.isLastPacketComplete ())
+				throw new HTTPConnectionException ("Connection was closed by server before response was complete", null);
+		} catch (RuntimeException e) {
+			pool.discard (connection);
+			throw e;
+		}
+		
+		pool.release (connection, response);
+		
+		return response;
+	}
+	
+	private static HTTPRequest newRequest (RequestMethod method) {
+		HTTPRequest request = new HTTPRequest ();
+		request.setRequestMethod (method);
+		
+		return request;
+	}
+	
+	private static String getValidator (HTTPResponse head) {
+		// Weak ETags cannot be used with If-Range
+		List<String> etags = head.getHeaders ("ETag");
+		
+		if (!etags.isEmpty () && !etags.get (0).startsWith ("W/"))
+			return etags.get (0);
+		
+		List<String> lastModified = head.getHeaders ("Last-Modified");
+		
+		return lastModified.isEmpty () ? null : lastModified.get (0);
+	}
+	
+	/**
+	 * Sets the number of times a segment is retried before the download fails.
+	 * @param maxRetries is the maximum number of retries per segment
+	 */
+	public void setMaxRetries (int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+	
+	/**
+	 * Sets the executor segments are downloaded on.
+	 * By default this is {@link HTTPExecutors#getDefaultExecutor()}.
+	 * @param executor is the executor you want to use
+	 * @throws IllegalArgumentException if executor is null
+	 */
+	public void setExecutor (Executor executor) {
+		this.executor = ArgumentValidator.requireNonNullArgument (executor, "executor cannot be null");
+	}
+	
+	/**
+	 * Gets the connection pool.
+	 * @return the pool connections are leased from
+	 */
+	public HTTPConnectionPool getConnectionPool () {
+		return pool;
+	}
+	
+	/**
+	 * Writes to a region of a file using positional writes, so that several
+	 * segments can be written to the same channel at the same time.
+	 */
+	private static class PositionalOutputStream extends OutputStream {
+		
+		private final FileChannel channel;
+		private final long end;
+		private long position;
+		
+		private PositionalOutputStream (FileChannel channel, long position, long end) {
+			this.channel = channel;
+			this.position = position;
+			this.end = end;
+		}
+		
+		@Override
+		public void write (int b) throws IOException {
+			write (new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write (byte[] bytes, int offset, int length) throws IOException {
+			if (position + length > end)
+				throw new HTTPConnectionException ("Server sent more bytes than requested", null);
+			
+			ByteBuffer buffer = ByteBuffer.wrap (bytes, offset, length);
+			
+			while (buffer.hasRemaining ())
+				position += channel.write (buffer, position);
+		}
+		
+	}
+	
+	/**
+	 * Checks the status code of the response before the first byte of its body is written, 
+	 * so that an unexpected body never ends up in the target file.
+	 */
+	private static class StatusCheckingOutputStream extends OutputStream {
+		
+		private final OutputStream outStream;
+		private final HTTPConnection connection;
+		private final int expectedStatusCode;
+		private boolean checked;
+		
+		private StatusCheckingOutputStream (OutputStream outStream, HTTPConnection connection, int expectedStatusCode) {
+			this.outStream = outStream;
+			this.connection = connection;
+			this.expectedStatusCode = expectedStatusCode;
+		}
+		
+		@Override
+		public void write (int b) throws IOException {
+			write (new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write (byte[] bytes, int offset, int length) throws IOException {
+			if (!checked) {
+				int statusCode = connection.getReadStatusCode ();
+				
+				if (statusCode != expectedStatusCode)
+					throw new HTTPDownloadException (String.format ("Expected status %d, but server responded with status %d",
+							expectedStatusCode, statusCode), null);
+				
+				checked = true;
+			}
+			
+			outStream.write (bytes, offset, length);
+		}
+		
+	}
+	
+	/**
+	 * Keeps track of which segments have been downloaded.
+	 * The first lines identify the download, and every following line is the index of a completed segment.
+	 */
+	private class Sidecar {
+		
+		private final File file;
+		private final BitSet done = new BitSet ();
+		private final ReentrantLock lock = new ReentrantLock ();
+		private final Writer writer;
+		
+		private Sidecar (File file, long length, String validator, int segmentCount) throws IOException {
+			this.file = file;
+			
+			String header = "length=" + length + "\nsegment=" + segmentSize + "\nvalidator=" + validator + "\n";
+			boolean resume = false;
+			
+			if (file.isFile ()) {
+				try (BufferedReader reader = new BufferedReader (new FileReader (file))) {
+					StringBuilder existingHeader = new StringBuilder ();
+					
+					for (int i = 0; i < 3; i++)
+						existingHeader.append (reader.readLine ()).append ('\n');
+					
+					// Only resume if it is the same file split the same way
+					if (existingHeader.toString ().equals (header) && validator != null) {
+						resume = true;
+						String line;
+						
+						while ((line = reader.readLine ()) != null) {
+							try {
+								int segment = Integer.parseInt (line.trim ());
+								
+								if (segment >= 0 && segment < segmentCount)
+									done.set (segment);
+							} catch (NumberFormatException e) {
+								// Last line may be partially written
+							}
+						}
+					}
+				}
+			}
+			
+			writer = new FileWriter (file, resume);
+			
+			if (!resume) {
+				writer.write (header);
+				writer.flush ();
+			}
+		}
+		
+		private boolean isDone (int segment) {
+			return done.get (segment);
+		}
+		
+		private void markDone (int segment) throws IOException {
+			lock.lock ();
+			
+			try {
+				done.set (segment);
+				writer.write (segment + "\n");
+				writer.flush ();
+			} finally {
+				lock.unlock ();
+			}
+		}
+		
+		private void close () throws IOException {
+			writer.close ();
+		}
+		
+		private void delete () {
+			file.delete ();
+		}
+		
+	}
+	
+}
@@ -1,19 +1,33 @@
 package io.github.rubenchristoffer.hetty;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+import io.github.rubenchristoffer.hetty.body.HTTPBody;
+import io.github.rubenchristoffer.hetty.body.HTTPFileBody;
+import io.github.rubenchristoffer.hetty.codec.HTTPChunkedOutputStream;
+import io.github.rubenchristoffer.hetty.codec.HTTPContentEncoder;
+import io.github.rubenchristoffer.hetty.misc.DirectByteArrayOutputStream;
 import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
 
 /**
  * Raw HTTP packet.
  * This means that header part of packet and the body is split and is in byte form.
  * Header portion contains trailing CRLF as well.
+ * A raw packet may also have an external body (such as a file body), which is sent after the body stream.
+ * If the raw packet has a content encoder, body and external body are encoded and 
+ * chunked while they are being written. External bodies with unknown length are chunked as well.
  * @author Ruben Christoffer
  */
 public class HTTPRawPacket {
 	
 	private ByteArrayOutputStream header;
 	private ByteArrayOutputStream body;
+	private HTTPBody externalBody;
+	private HTTPContentEncoder contentEncoder;
+	private boolean bodyShared;
 	
 	/**
 	 * Creates a new HTTPRawPacket.
@@ -26,6 +40,34 @@ public class HTTPRawPacket {
 		this.body = ArgumentValidator.requireNonNullArgument (body, "body cannot be null");
 	}
 	
+	/**
+	 * Creates a new HTTPRawPacket with an external body.
+	 * @param header is the header stream containing header bytes for this packet
+	 * @param body is the body stream containing body bytes for this packet
+	 * @param externalBody is the external body that follows the body stream, or null if there is none
+	 * @throws IllegalArgumentException if header or body is null
+	 */
+	public HTTPRawPacket (ByteArrayOutputStream header, ByteArrayOutputStream body, HTTPBody externalBody) {
+		this (header, body);
+		
+		this.externalBody = externalBody;
+	}
+	
+	/**
+	 * Creates a new HTTPRawPacket with a content encoder.
+	 * The header should already say that the body is encoded and chunked.
+	 * @param header is the header stream containing header bytes for this packet
+	 * @param body is the body stream containing body bytes for this packet
+	 * @param externalBody is the external body that follows the body stream, or null if there is none
+	 * @param contentEncoder is the encoder applied to the body when it is written, or null if there is none
+	 * @throws IllegalArgumentException if header or body is null
+	 */
+	public HTTPRawPacket (ByteArrayOutputStream header, ByteArrayOutputStream body, HTTPBody externalBody, HTTPContentEncoder contentEncoder) {
+		this (header, body, externalBody);
+		
+		this.contentEncoder = contentEncoder;
+	}
+	
 	/**
 	 * Gets header. 
 	 * @return header stream
@@ -36,25 +78,203 @@ public class HTTPRawPacket {
 
 	/**
 	 * Gets body.
+	 * If the raw packet was generated from a HTTPPacket, this is the body stream of that packet, 
+	 * so writing to it or resetting it changes the body of the packet as well.
 	 * @return body stream
+	 * @see #isBodyShared()
 	 */
 	public ByteArrayOutputStream getBody() {
 		return body;
 	}
 	
+	/**
+	 * Is the body stream shared with the HTTPPacket this raw packet was generated from?
+	 * Packets parsed from this raw packet copy the body before they change it if it is.
+	 * @return true if the body stream belongs to a HTTPPacket, false otherwise
+	 */
+	public boolean isBodyShared() {
+		return bodyShared;
+	}
+	
+	/**
+	 * Marks the body stream as shared with a HTTPPacket.
+	 * @return this raw packet
+	 */
+	HTTPRawPacket shareBody() {
+		bodyShared = true;
+		
+		return this;
+	}
+	
+	/**
+	 * Gets file body.
+	 * @return file body, or null if there is no external body or it is not a file body
+	 */
+	public HTTPFileBody getFileBody() {
+		return externalBody instanceof HTTPFileBody ? (HTTPFileBody) externalBody : null;
+	}
+	
+	/**
+	 * Gets external body.
+	 * @return external body, or null if there is none
+	 */
+	public HTTPBody getExternalBody() {
+		return externalBody;
+	}
+	
+	/**
+	 * Is the body chunked while it is being written?
+	 * This is the case if there is a content encoder or the length of the external body is not known.
+	 * @return true if body is chunked, false if it is written as it is
+	 */
+	public boolean isChunked() {
+		return contentEncoder != null || (externalBody != null && externalBody.getLength() == -1);
+	}
+	
+	/**
+	 * Gets content encoder.
+	 * @return content encoder, or null if there is none
+	 */
+	public HTTPContentEncoder getContentEncoder() {
+		return contentEncoder;
+	}
+	
+	/**
+	 * Resets the raw packet so it can be reused for reading another packet.
+	 * Header and body streams are emptied while keeping their capacity, and
+	 * external body and content encoder are removed.
+	 * A body shared with a HTTPPacket is replaced by a new stream instead of being emptied.
+	 */
+	public void reset () {
+		header.reset();
+		
+		if (bodyShared) {
+			body = new DirectByteArrayOutputStream();
+			bodyShared = false;
+		} else {
+			body.reset();
+		}
+		
+		externalBody = null;
+		contentEncoder = null;
+	}
+
+	/**
+	 * Writes body and external body the way they are sent.
+	 * If there is a content encoder, the body is encoded and chunked on the fly, 
+	 * so the encoded body is never held in memory.
+	 * The stream is neither flushed nor closed.
+	 * @param outStream is the stream you want to write body to
+	 * @throws IOException if writing to outStream or reading external body fails
+	 * @see #isChunked()
+	 */
+	public void writeBody (OutputStream outStream) throws IOException {
+		if (!isChunked()) {
+			body.writeTo(outStream);
+			
+			if (externalBody != null)
+				externalBody.writeTo(outStream);
+			
+			return;
+		}
+		
+		HTTPChunkedOutputStream chunkedStream = new HTTPChunkedOutputStream(outStream);
+		OutputStream encodingStream = contentEncoder != null ? contentEncoder.newEncodingStream(chunkedStream) : chunkedStream;
+		
+		body.writeTo(encodingStream);
+		
+		if (externalBody != null)
+			externalBody.writeTo(encodingStream);
+		
+		encodingStream.close();
+		
+		if (encodingStream != chunkedStream)
+			chunkedStream.close();
+	}
+	
 	/**
 	 * Combines header and body stream into a single byte array representing the entire packet.
+	 * Note that this reads the entire external body into memory if there is one.
+	 * The body is encoded if there is a content encoder.
 	 * @return byte array representing packet
+	 * @throws HTTPPacketException if reading external body fails or the packet is too large for a byte array
 	 */
 	public byte[] toByteArray () {
-		ByteArrayOutputStream returnStream = new ByteArrayOutputStream(header.size() + body.size());
+		if (isChunked()) {
+			ByteArrayOutputStream returnStream = new ByteArrayOutputStream(header.size() + body.size());
+			returnStream.write(header.toByteArray(), 0, header.size());
+			
+			try {
+				writeBody(returnStream);
+			} catch (IOException e) {
+				throw new HTTPPacketException("Could not encode body", e);
+			}
+			
+			return returnStream.toByteArray();
+		}
+		
+		long length = header.size() + body.size() + (externalBody != null ? externalBody.getLength() : 0);
+		
+		if (length > Integer.MAX_VALUE - 8)
+			throw new HTTPPacketException("Packet is too large to fit in a byte array", null);
+		
+		ByteArrayOutputStream returnStream = new ByteArrayOutputStream((int) length);
 		
 		returnStream.write(header.toByteArray(), 0, header.size());
 		returnStream.write(body.toByteArray(), 0, body.size());
 		
+		if (externalBody != null) {
+			try {
+				externalBody.writeTo(returnStream);
+			} catch (IOException e) {
+				throw new HTTPPacketException("Could not read external body", e);
+			}
+		}
+		
 		return returnStream.toByteArray();
 	}
 	
+	/**
+	 * Gets the packet as a sequence of buffers that can be written using a gathering write.
+	 * Header and body are wrapped without being copied if they are DirectByteArrayOutputStreams.
+	 * The external body is added using {@link HTTPBody#getBuffers()}, which maps file bodies into memory.
+	 * If the body is chunked, it is encoded into a single buffer.
+	 * @return read-only buffers containing header, body and external body (if any) in that order
+	 * @throws HTTPPacketException if reading external body fails
+	 */
+	public ByteBuffer[] toByteBuffers () {
+		if (isChunked()) {
+			DirectByteArrayOutputStream bodyStream = new DirectByteArrayOutputStream();
+			
+			try {
+				writeBody(bodyStream);
+			} catch (IOException e) {
+				throw new HTTPPacketException("Could not encode body", e);
+			}
+			
+			return new ByteBuffer[] { DirectByteArrayOutputStream.toByteBuffer(header), bodyStream.toByteBuffer() };
+		}
+		
+		ByteBuffer headerBuffer = DirectByteArrayOutputStream.toByteBuffer(header);
+		ByteBuffer bodyBuffer = DirectByteArrayOutputStream.toByteBuffer(body);
+		
+		if (externalBody == null)
+			return new ByteBuffer[] { headerBuffer, bodyBuffer };
+		
+		try {
+			ByteBuffer[] externalBuffers = externalBody.getBuffers();
+			ByteBuffer[] buffers = new ByteBuffer[externalBuffers.length + 2];
+			
+			buffers[0] = headerBuffer;
+			buffers[1] = bodyBuffer;
+			System.arraycopy(externalBuffers, 0, buffers, 2, externalBuffers.length);
+			
+			return buffers;
+		} catch (IOException e) {
+			throw new HTTPPacketException("Could not read external body", e);
+		}
+	}
+	
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder(header.size() + body.size());
@@ -0,0 +1,21 @@
+package io.github.rubenchristoffer.hetty;
+
+/**
+ * Exception that occurs when no bytes have been received from the server for longer than the read timeout.
+ * The connection is closed when this happens.
+ * @author Ruben Christoffer
+ */
+public class HTTPReadTimeoutException extends HTTPConnectionException {
+	
+	private static final long serialVersionUID = 4473921096212047152L;
+
+	/**
+	 * Creates a new HTTPReadTimeoutException.
+	 * @param message is the exception message
+	 * @param cause is the cause of the exception
+	 */
+	public HTTPReadTimeoutException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
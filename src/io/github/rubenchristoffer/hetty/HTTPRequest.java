@@ -7,6 +7,7 @@ import io.github.rubenchristoffer.hetty.filters.HTTPBasicHeadersFilter;
 import io.github.rubenchristoffer.hetty.filters.HTTPContentFilter;
 import io.github.rubenchristoffer.hetty.filters.HTTPHostFilter;
 import io.github.rubenchristoffer.hetty.filters.HTTPBasicHeadersFilter.Mode;
+import io.github.rubenchristoffer.hetty.misc.DirectByteArrayOutputStream;
 import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
 
 /**
@@ -87,17 +88,27 @@ public class HTTPRequest extends HTTPPacket {
 		return request;
 	}
 	
+	/**
+	 * Resets the request so it can be reused. The request method is set to 'GET'.
+	 * Filters are kept, so a request created with default filters still has them.
+	 * @see HTTPPacket#reset()
+	 */
+	@Override
+	public void reset () {
+		super.reset();
+		this.request = "GET";
+	}
+
 	@Override
 	public HTTPRawPacket generatePacket(URL url, boolean applyFilters) {
-		ByteArrayOutputStream headerStream = new ByteArrayOutputStream();
-		ByteArrayOutputStream bodyStream = new ByteArrayOutputStream();
+		ByteArrayOutputStream headerStream = new DirectByteArrayOutputStream();
 		HTTPPacket packet = applyFilters ? filterAll(this, url) : this;
 		
 		appendHeaderText(headerStream, ((HTTPRequest)packet).request + " " + (url.getPath().equals("") ? "/" : url.getPath()) + (url.getQuery() == null ? "" : "?" + url.getQuery()) + " HTTP/" + packet.version + "\r\n");
 		appendHeaders(headerStream, packet);
-		appendBytes(bodyStream, packet.getBody());
 		
-		return new HTTPRawPacket(headerStream, bodyStream);
+		// The body is shared instead of copied, and is copied by the packet if it is changed later
+		return new HTTPRawPacket(headerStream, packet.shareBody(), packet.externalBody, packet.contentEncoder).shareBody();
 	}
 
 	@Override
@@ -127,25 +138,25 @@ public class HTTPRequest extends HTTPPacket {
 	public String toString () {
 		String headerString = "";
 		
-		for (String header : headersList)
+		for (String header : headers.getLines())
 			headerString += "'" + header + "'\n";
 		
 		return String.format("### HTTP REQUEST INFO ###\nRequest: %s, Version: %s\nHeaders: \n%s\nBody:\n'%s'\n### END OF HTTP REQUEST INFO ###", request, version, headerString, body);
 	}
 
 	@Override
-	public HTTPPacket cloneDeep() {
-		HTTPRequest returnPacket = new HTTPRequest();
+	protected HTTPPacket copyWithoutFilters () {
+		HTTPRequest returnPacket = new HTTPRequest(false);
 		
 		returnPacket.request = request;
-		returnPacket.version = version;
+		copyContentTo(returnPacket);
 		
-		for (int i = 0; i < headersList.size(); i++) {
-			returnPacket.headersList.add(headersList.get(i));
-		}
-		
-		returnPacket.body = new ByteArrayOutputStream();
-		returnPacket.body.write(getBody(), 0, getBodyLength());
+		return returnPacket;
+	}
+	
+	@Override
+	public HTTPPacket cloneDeep() {
+		HTTPRequest returnPacket = (HTTPRequest) copyWithoutFilters();
 		
 		for (int i = 0; i < filterPipeline.size(); i++) {
 			returnPacket.filterPipeline.add(filterPipeline.get(i).cloneDeep());
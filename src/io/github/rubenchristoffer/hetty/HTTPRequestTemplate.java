@@ -0,0 +1,446 @@
+package io.github.rubenchristoffer.hetty;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import io.github.rubenchristoffer.hetty.misc.DirectByteArrayOutputStream;
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Precompiled request that is sent many times with only a few values changing.
+ * Compiling generates the packet once with filters applied, and keeps the bytes
+ * together with the positions of named slots written as '{{name}}' anywhere in the packet
+ * (for example in the path of the URL, in header values or in the body).
+ * Filling the slots and writing the packet only copies bytes, so filters, start line
+ * and headers are never generated again. If any slot is in the body and the packet
+ * has a 'Content-Length' header, its value is computed from the filled slots.
+ * A template is not thread-safe, but {@link #copy()} creates a template with its own slot values
+ * that shares the compiled bytes.
+ * @author Ruben Christoffer
+ */
+public class HTTPRequestTemplate {
+
+	/**
+	 * Marks the start of a slot.
+	 */
+	public static final String SLOT_START = "{{";
+
+	/**
+	 * Marks the end of a slot.
+	 */
+	public static final String SLOT_END = "}}";
+
+	private static final int STATIC_SEGMENT = -1;
+	private static final int CONTENT_LENGTH_SEGMENT = -2;
+
+	private final byte[] image;
+	private final int[] segmentOffsets;
+	private final int[] segmentLengths;
+	private final int[] segmentSlots;
+	private final List<String> slotNames;
+	private final boolean[] slotsInHeader;
+	private final int staticBodyLength;
+	private final int[] slotBodyOccurrences;
+
+	private final byte[][] slotValues;
+	private final int[] slotValueLengths;
+	private final byte[] contentLengthDigits = new byte[20];
+
+	private HTTPRequestTemplate (byte[] image, int[] segmentOffsets, int[] segmentLengths, int[] segmentSlots,
+			List<String> slotNames, boolean[] slotsInHeader, int staticBodyLength, int[] slotBodyOccurrences) {
+		this.image = image;
+		this.segmentOffsets = segmentOffsets;
+		this.segmentLengths = segmentLengths;
+		this.segmentSlots = segmentSlots;
+		this.slotNames = slotNames;
+		this.slotsInHeader = slotsInHeader;
+		this.staticBodyLength = staticBodyLength;
+		this.slotBodyOccurrences = slotBodyOccurrences;
+		this.slotValues = new byte[slotNames.size ()][];
+		this.slotValueLengths = new int[slotNames.size ()];
+
+		for (int i = 0; i < slotValues.length; i++)
+			slotValues[i] = new byte[16];
+	}
+
+	/**
+	 * Compiles a request into a template. Filters are applied.
+	 * The request can be changed afterwards without changing the template.
+	 * @param request is the request containing slots
+	 * @param url is the URL the request is sent to, which may contain slots in its path and query
+	 * @return the compiled template where all slots are empty
+	 * @throws HTTPPacketException if the request has a body that is not held in memory or is chunked
+	 * @throws IllegalArgumentException if request or url is null
+	 */
+	public static HTTPRequestTemplate compile (HTTPRequest request, URL url) {
+		ArgumentValidator.requireNonNullArgument (request, "request cannot be null");
+		ArgumentValidator.requireNonNullArgument (url, "url cannot be null");
+
+		HTTPRawPacket rawPacket = request.generatePacket (url, true);
+
+		if (rawPacket.getExternalBody () != null || rawPacket.isChunked ())
+			throw new HTTPPacketException ("Templates only support bodies that are held in memory and are not chunked", null);
+
+		int headerLength = rawPacket.getHeader ().size ();
+		DirectByteArrayOutputStream imageStream = new DirectByteArrayOutputStream (headerLength + rawPacket.getBody ().size ());
+
+		try {
+			rawPacket.getHeader ().writeTo (imageStream);
+			rawPacket.getBody ().writeTo (imageStream);
+		} catch (IOException e) {
+			// Never happens when writing to ByteArrayOutputStream
+		}
+
+		return compile (imageStream.toByteArray (), headerLength);
+	}
+
+	private static HTTPRequestTemplate compile (byte[] image, int headerLength) {
+		ArrayList<String> slotNames = new ArrayList<String> ();
+		ArrayList<int[]> cuts = new ArrayList<int[]> ();
+		boolean bodyHasSlots = false;
+
+		// Find all slots as {start, end, slot}
+		for (int start = indexOf (image, SLOT_START, 0); start != -1; start = indexOf (image, SLOT_START, start + 1)) {
+			int end = indexOf (image, SLOT_END, start + SLOT_START.length ());
+
+			if (end == -1)
+				break;
+
+			String name = new String (image, start + SLOT_START.length (), end - start - SLOT_START.length (), HTTPConfig.HEADER_CHARSET);
+
+			if (!isSlotName (name))
+				continue;
+
+			// Slots cannot span both header and body
+			if (start < headerLength && end + SLOT_END.length () > headerLength)
+				continue;
+
+			int slot = slotNames.indexOf (name);
+
+			if (slot == -1) {
+				slot = slotNames.size ();
+				slotNames.add (name);
+			}
+
+			cuts.add (new int[] { start, end + SLOT_END.length (), slot });
+			bodyHasSlots |= start >= headerLength;
+			start = end + SLOT_END.length () - 1;
+		}
+
+		if (bodyHasSlots) {
+			int[] contentLength = findContentLengthValue (image, headerLength);
+
+			if (contentLength != null)
+				cuts.add (new int[] { contentLength[0], contentLength[1], CONTENT_LENGTH_SEGMENT });
+		}
+
+		Collections.sort (cuts, new Comparator<int[]> () {
+			@Override
+			public int compare (int[] a, int[] b) {
+				return Integer.compare (a[0], b[0]);
+			}
+		});
+
+		// Turn cuts into segments, with static segments in between
+		ArrayList<int[]> segments = new ArrayList<int[]> ();
+		boolean[] slotsInHeader = new boolean[slotNames.size ()];
+		int[] slotBodyOccurrences = new int[slotNames.size ()];
+		int staticBodyLength = image.length - headerLength;
+		int position = 0;
+
+		for (int[] cut : cuts) {
+			if (cut[0] > position)
+				segments.add (new int[] { position, cut[0] - position, STATIC_SEGMENT });
+
+			segments.add (new int[] { cut[0], cut[1] - cut[0], cut[2] });
+			position = cut[1];
+
+			if (cut[2] >= 0) {
+				if (cut[0] < headerLength) {
+					slotsInHeader[cut[2]] = true;
+				} else {
+					slotBodyOccurrences[cut[2]]++;
+					staticBodyLength -= cut[1] - cut[0];
+				}
+			}
+		}
+
+		if (position < image.length)
+			segments.add (new int[] { position, image.length - position, STATIC_SEGMENT });
+
+		int[] segmentOffsets = new int[segments.size ()];
+		int[] segmentLengths = new int[segments.size ()];
+		int[] segmentSlots = new int[segments.size ()];
+
+		for (int i = 0; i < segments.size (); i++) {
+			segmentOffsets[i] = segments.get (i)[0];
+			segmentLengths[i] = segments.get (i)[1];
+			segmentSlots[i] = segments.get (i)[2];
+		}
+
+		return new HTTPRequestTemplate (image, segmentOffsets, segmentLengths, segmentSlots,
+				Collections.unmodifiableList (slotNames), slotsInHeader, staticBodyLength, slotBodyOccurrences);
+	}
+
+	private static boolean isSlotName (String name) {
+		if (name.isEmpty ())
+			return false;
+
+		for (int i = 0; i < name.length (); i++) {
+			char c = name.charAt (i);
+
+			if (!Character.isLetterOrDigit (c) && c != '_' && c != '-' && c != '.')
+				return false;
+		}
+
+		return true;
+	}
+
+	private static int[] findContentLengthValue (byte[] image, int headerLength) {
+		byte[] name = "\ncontent-length:".getBytes (HTTPConfig.HEADER_CHARSET);
+
+		for (int i = 0; i + name.length <= headerLength; i++) {
+			int j = 0;
+
+			while (j < name.length && Character.toLowerCase (image[i + j]) == name[j])
+				j++;
+
+			if (j < name.length)
+				continue;
+
+			int start = i + name.length;
+
+			while (start < headerLength && (image[start] == ' ' || image[start] == '\t'))
+				start++;
+
+			int end = start;
+
+			while (end < headerLength && image[end] >= '0' && image[end] <= '9')
+				end++;
+
+			return new int[] { start, end };
+		}
+
+		return null;
+	}
+
+	private static int indexOf (byte[] image, String pattern, int from) {
+		for (int i = from; i + pattern.length () <= image.length; i++) {
+			int j = 0;
+
+			while (j < pattern.length () && image[i + j] == pattern.charAt (j))
+				j++;
+
+			if (j == pattern.length ())
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Creates a template that shares the compiled bytes of this template, but has its own slot values.
+	 * Use this for filling the same template on several threads.
+	 * @return a new template where all slots are empty
+	 */
+	public HTTPRequestTemplate copy () {
+		return new HTTPRequestTemplate (image, segmentOffsets, segmentLengths, segmentSlots,
+				slotNames, slotsInHeader, staticBodyLength, slotBodyOccurrences);
+	}
+
+	/**
+	 * Gets slot names.
+	 * @return read-only list of the names of all slots, where the index of a name is its slot index
+	 */
+	public List<String> getSlotNames () {
+		return slotNames;
+	}
+
+	/**
+	 * Gets the index of a slot, which can be used for filling it without looking up the name.
+	 * @param name is the name of the slot without '{{' and '}}'
+	 * @return index of slot, or -1 if there is no slot with that name
+	 */
+	public int getSlotIndex (String name) {
+		return slotNames.indexOf (name);
+	}
+
+	/**
+	 * Fills a slot by name.
+	 * @param name is the name of the slot without '{{' and '}}'
+	 * @param value is the value of the slot
+	 * @throws IllegalArgumentException if there is no slot with that name, value is null, 
+	 * or value contains CR or LF and the slot is in the header
+	 * @see #set(int, CharSequence)
+	 */
+	public void set (String name, CharSequence value) {
+		int slot = getSlotIndex (name);
+
+		if (slot == -1)
+			throw new IllegalArgumentException (String.format ("There is no slot with the name '%s'", name));
+
+		set (slot, value);
+	}
+
+	/**
+	 * Fills a slot. ASCII values are copied straight into the slot without allocating anything.
+	 * Other values are encoded using {@link HTTPConfig#HEADER_CHARSET} for slots in the header
+	 * and {@link HTTPConfig#STRING_PACKET_CHARSET} for slots only in the body.
+	 * @param slot is the index of the slot
+	 * @param value is the value of the slot
+	 * @throws IllegalArgumentException if value is null, or contains CR or LF and the slot is in the header
+	 * @throws IndexOutOfBoundsException if there is no slot with that index
+	 */
+	public void set (int slot, CharSequence value) {
+		ArgumentValidator.requireNonNullArgument (value, "value cannot be null");
+
+		if (slotsInHeader[slot]) {
+			for (int i = 0; i < value.length (); i++)
+				requireNoLineBreak (value.charAt (i));
+		}
+
+		byte[] slotValue = ensureCapacity (slot, value.length ());
+
+		for (int i = 0; i < value.length (); i++) {
+			char c = value.charAt (i);
+
+			if (c >= 0x80) {
+				Charset charset = slotsInHeader[slot] ? HTTPConfig.HEADER_CHARSET : HTTPConfig.STRING_PACKET_CHARSET;
+				byte[] encoded = value.toString ().getBytes (charset);
+
+				set (slot, encoded, 0, encoded.length);
+				return;
+			}
+
+			slotValue[i] = (byte) c;
+		}
+
+		slotValueLengths[slot] = value.length ();
+	}
+
+	/**
+	 * Fills a slot with bytes that are copied into the slot.
+	 * @param slot is the index of the slot
+	 * @param value is the array containing the value
+	 * @param offset is the index of the first byte of the value
+	 * @param length is the number of bytes in the value
+	 * @throws IllegalArgumentException if the value contains CR or LF and the slot is in the header
+	 * @throws IndexOutOfBoundsException if there is no slot with that index
+	 */
+	public void set (int slot, byte[] value, int offset, int length) {
+		if (slotsInHeader[slot]) {
+			for (int i = offset; i < offset + length; i++)
+				requireNoLineBreak ((char) value[i]);
+		}
+
+		System.arraycopy (value, offset, ensureCapacity (slot, length), 0, length);
+		slotValueLengths[slot] = length;
+	}
+
+	private static void requireNoLineBreak (char c) {
+		// A line break in the start line or a header would let the value add headers or requests of its own
+		if (c == '\r' || c == '\n')
+			throw new IllegalArgumentException ("Slots in the header cannot contain CR or LF");
+	}
+
+	private byte[] ensureCapacity (int slot, int length) {
+		if (slotValues[slot].length < length)
+			slotValues[slot] = new byte[Math.max (length, slotValues[slot].length * 2)];
+
+		return slotValues[slot];
+	}
+
+	/**
+	 * Empties all slots.
+	 */
+	public void clear () {
+		Arrays.fill (slotValueLengths, 0);
+	}
+
+	/**
+	 * Gets the number of bytes in the packet with the current slot values.
+	 * @return length of packet
+	 */
+	public int getLength () {
+		int length = 0;
+
+		for (int i = 0; i < segmentSlots.length; i++) {
+			int slot = segmentSlots[i];
+
+			if (slot == STATIC_SEGMENT)
+				length += segmentLengths[i];
+			else if (slot == CONTENT_LENGTH_SEGMENT)
+				length += formatContentLength ();
+			else
+				length += slotValueLengths[slot];
+		}
+
+		return length;
+	}
+
+	/**
+	 * Writes the packet with the current slot values to a stream.
+	 * Bytes are written in a few bulk writes straight from the compiled bytes and slot values,
+	 * so the stream should be buffered.
+	 * @param outStream is the stream you want to write packet to
+	 * @throws IOException if writing to stream fails
+	 */
+	public void writeTo (OutputStream outStream) throws IOException {
+		for (int i = 0; i < segmentSlots.length; i++) {
+			int slot = segmentSlots[i];
+
+			if (slot == STATIC_SEGMENT) {
+				outStream.write (image, segmentOffsets[i], segmentLengths[i]);
+			} else if (slot == CONTENT_LENGTH_SEGMENT) {
+				int digits = formatContentLength ();
+				outStream.write (contentLengthDigits, contentLengthDigits.length - digits, digits);
+			} else {
+				outStream.write (slotValues[slot], 0, slotValueLengths[slot]);
+			}
+		}
+	}
+
+	/**
+	 * Gets the packet with the current slot values as a byte array.
+	 * @return byte array representing packet
+	 */
+	public byte[] toByteArray () {
+		DirectByteArrayOutputStream packetStream = new DirectByteArrayOutputStream (getLength ());
+
+		try {
+			writeTo (packetStream);
+		} catch (IOException e) {
+			// Never happens when writing to ByteArrayOutputStream
+		}
+
+		return packetStream.toByteArray ();
+	}
+
+	/**
+	 * Writes the content length right-aligned into the digit buffer.
+	 * @return number of digits
+	 */
+	private int formatContentLength () {
+		long bodyLength = staticBodyLength;
+
+		for (int slot = 0; slot < slotBodyOccurrences.length; slot++)
+			bodyLength += (long) slotBodyOccurrences[slot] * slotValueLengths[slot];
+
+		int index = contentLengthDigits.length;
+
+		do {
+			contentLengthDigits[--index] = (byte) ('0' + bodyLength % 10);
+			bodyLength /= 10;
+		} while (bodyLength > 0);
+
+		return contentLengthDigits.length - index;
+	}
+
+}
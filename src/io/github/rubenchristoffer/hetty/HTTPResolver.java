@@ -0,0 +1,54 @@
+package io.github.rubenchristoffer.hetty;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves host names to IP addresses for HTTPConnection.
+ * Extend this class if you want to use your own name resolution, for example
+ * a stub resolver when testing without network.
+ * @author Ruben Christoffer
+ * @see HTTPCachingResolver
+ */
+public abstract class HTTPResolver {
+	
+	private static class SystemResolverHolder {
+		private static final HTTPResolver SYSTEM_RESOLVER = new HTTPResolver () {
+			@Override
+			public InetAddress[] resolve (String host) throws UnknownHostException {
+				return InetAddress.getAllByName (host);
+			}
+		};
+	}
+	
+	private static class DefaultResolverHolder {
+		private static final HTTPResolver DEFAULT_RESOLVER = new HTTPCachingResolver (getSystemResolver ());
+	}
+	
+	/**
+	 * Resolves a host name.
+	 * Connections try the addresses in the order they are returned until one of them can be connected to.
+	 * @param host is the host name (or IP address literal) you want to resolve
+	 * @return one or more addresses of host
+	 * @throws UnknownHostException if host could not be resolved
+	 */
+	public abstract InetAddress[] resolve (String host) throws UnknownHostException;
+	
+	/**
+	 * Gets the resolver that uses the resolver of the JVM without any extra caching.
+	 * @return the system resolver
+	 */
+	public static HTTPResolver getSystemResolver () {
+		return SystemResolverHolder.SYSTEM_RESOLVER;
+	}
+	
+	/**
+	 * Gets the resolver used by connections that have not been given a resolver of their own.
+	 * It is a HTTPCachingResolver on top of the system resolver with default time-to-live values.
+	 * @return the shared default resolver
+	 */
+	public static HTTPResolver getDefault () {
+		return DefaultResolverHolder.DEFAULT_RESOLVER;
+	}
+	
+}
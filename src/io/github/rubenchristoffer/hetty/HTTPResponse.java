@@ -4,6 +4,8 @@ import java.io.ByteArrayOutputStream;
 import java.net.URL;
 import java.util.ArrayList;
 
+import io.github.rubenchristoffer.hetty.misc.DirectByteArrayOutputStream;
+
 /**
  * HTTP Packet in form of a response.
  * @author Ruben Christoffer
@@ -43,17 +45,26 @@ public class HTTPResponse extends HTTPPacket {
 		return response.substring(4); // Status code is always 3 long + 1 space
 	}
 
+	/**
+	 * Resets the response so it can be reused. The status is removed.
+	 * @see HTTPPacket#reset()
+	 */
+	@Override
+	public void reset () {
+		super.reset();
+		this.response = null;
+	}
+
 	@Override
 	public HTTPRawPacket generatePacket(URL url, boolean applyFilters) {
-		ByteArrayOutputStream headerStream = new ByteArrayOutputStream();
-		ByteArrayOutputStream bodyStream = new ByteArrayOutputStream();
+		ByteArrayOutputStream headerStream = new DirectByteArrayOutputStream();
 		HTTPPacket packet = applyFilters ? filterAll(this, url) : this;
 		
 		appendHeaderText(headerStream, "HTTP/" + packet.version + " " + ((HTTPResponse)packet).response + "\r\n");
 		appendHeaders(headerStream, packet);
-		appendBytes(bodyStream, getBody());
 		
-		return new HTTPRawPacket(headerStream, bodyStream);
+		// The body is shared instead of copied, and is copied by the packet if it is changed later
+		return new HTTPRawPacket(headerStream, packet.shareBody(), packet.externalBody, packet.contentEncoder).shareBody();
 	}
 	
 	@Override
@@ -76,25 +87,25 @@ public class HTTPResponse extends HTTPPacket {
 	public String toString () {
 		String headerString = "";
 		
-		for (String header : headersList)
+		for (String header : headers.getLines())
 			headerString += "'" + header + "'\n";
 		
 		return String.format("### HTTP RESPONSE INFO ###\nResponse: %s, Version: %s\nHeaders: \n%s\nBody:\n'%s'\n### END OF HTTP RESPONSE INFO ###", response, version, headerString, body);
 	}
 
 	@Override
-	public HTTPPacket cloneDeep() {
+	protected HTTPPacket copyWithoutFilters () {
 		HTTPResponse returnPacket = new HTTPResponse();
 		
 		returnPacket.response = response;
-		returnPacket.version = version;
+		copyContentTo(returnPacket);
 		
-		for (int i = 0; i < headersList.size(); i++) {
-			returnPacket.headersList.add(headersList.get(i));
-		}
-		
-		returnPacket.body = new ByteArrayOutputStream();
-		returnPacket.body.write(getBody(), 0, getBodyLength());
+		return returnPacket;
+	}
+	
+	@Override
+	public HTTPPacket cloneDeep() {
+		HTTPResponse returnPacket = (HTTPResponse) copyWithoutFilters();
 		
 		for (int i = 0; i < filterPipeline.size(); i++) {
 			returnPacket.filterPipeline.add(filterPipeline.get(i).cloneDeep());
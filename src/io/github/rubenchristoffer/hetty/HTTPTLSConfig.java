@@ -0,0 +1,287 @@
+package io.github.rubenchristoffer.hetty;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * TLS settings used by HTTPConnection (and HTTPSelectorEngine) for HTTPS connections.
+ * All connections sharing a config share the session cache of its SSLContext, which means that
+ * reconnecting to a server resumes the previous TLS session instead of doing a full handshake.
+ * The config also keeps track of how many handshakes have been done by HTTPConnections
+ * and how long they took.
+ * @author Ruben Christoffer
+ */
+public class HTTPTLSConfig {
+
+	private final SSLContext sslContext;
+	private final SSLSocketFactory socketFactory;
+
+	private volatile String[] enabledProtocols;
+	private volatile String[] enabledCipherSuites;
+	private volatile boolean handshakeOnConnect = true;
+
+	private final AtomicLong handshakeCount = new AtomicLong ();
+	private final AtomicLong resumedHandshakeCount = new AtomicLong ();
+	private final AtomicLong handshakeTime = new AtomicLong ();
+
+	private static class DefaultConfigHolder {
+		private static final HTTPTLSConfig DEFAULT_CONFIG = new HTTPTLSConfig ();
+	}
+
+	/**
+	 * Creates a new HTTPTLSConfig that uses the default SSLContext.
+	 * @throws HTTPConnectionException if the default SSLContext is not available
+	 */
+	public HTTPTLSConfig () {
+		this (getDefaultSSLContext ());
+	}
+
+	/**
+	 * Creates a new HTTPTLSConfig.
+	 * The session cache of the context is left as it is, since the context may be shared
+	 * with the rest of the application (as the default SSLContext is).
+	 * @param sslContext is the context used for creating sockets and engines
+	 * @throws IllegalArgumentException if sslContext is null
+	 */
+	public HTTPTLSConfig (SSLContext sslContext) {
+		this.sslContext = ArgumentValidator.requireNonNullArgument (sslContext, "sslContext cannot be null");
+		this.socketFactory = sslContext.getSocketFactory ();
+	}
+
+	/**
+	 * Gets the config used by connections that have not been given a config of their own.
+	 * It uses the default SSLContext.
+	 * @return the shared default config
+	 */
+	public static HTTPTLSConfig getDefault () {
+		return DefaultConfigHolder.DEFAULT_CONFIG;
+	}
+
+	/**
+	 * Creates a TLS socket connected to a server.
+	 * Unless handshake on connect has been disabled, the handshake is done before this returns.
+	 * @param host is the host name of the server, which is also used for finding a session to resume
+	 * @param port is the port of the server
+	 * @return a connected SSLSocket
+	 * @throws IOException if connecting or handshake fails
+	 */
+	public SSLSocket createSocket (String host, int port) throws IOException {
+		return prepare ((SSLSocket) socketFactory.createSocket (host, port));
+	}
+
+	/**
+	 * Creates a TLS socket layered over an already connected socket.
+	 * Closing the returned socket also closes socket.
+	 * Unless handshake on connect has been disabled, the handshake is done before this returns.
+	 * @param socket is the connected plain socket
+	 * @param host is the host name of the server, which is also used for finding a session to resume
+	 * @param port is the port of the server
+	 * @return a connected SSLSocket
+	 * @throws IOException if handshake fails
+	 */
+	public SSLSocket createSocket (Socket socket, String host, int port) throws IOException {
+		return prepare ((SSLSocket) socketFactory.createSocket (socket, host, port, true));
+	}
+
+	private SSLSocket prepare (SSLSocket socket) throws IOException {
+		try {
+			configure (socket);
+
+			if (handshakeOnConnect)
+				handshake (socket);
+		} catch (IOException e) {
+			socket.close ();
+			throw e;
+		}
+
+		return socket;
+	}
+
+	/**
+	 * Creates a TLS engine in client mode for a server.
+	 * @param host is the host name of the server, which is also used for finding a session to resume
+	 * @param port is the port of the server
+	 * @return a new SSLEngine with the protocols and cipher suites of this config
+	 */
+	public SSLEngine createEngine (String host, int port) {
+		SSLEngine engine = sslContext.createSSLEngine (host, port);
+		engine.setUseClientMode (true);
+
+		String[] protocols = enabledProtocols;
+		String[] cipherSuites = enabledCipherSuites;
+
+		if (protocols != null)
+			engine.setEnabledProtocols (protocols);
+
+		if (cipherSuites != null)
+			engine.setEnabledCipherSuites (cipherSuites);
+
+		return engine;
+	}
+
+	/**
+	 * Sets the enabled protocols and cipher suites of a socket.
+	 * @param socket is the socket you want to configure
+	 */
+	public void configure (SSLSocket socket) {
+		String[] protocols = enabledProtocols;
+		String[] cipherSuites = enabledCipherSuites;
+
+		if (protocols != null)
+			socket.setEnabledProtocols (protocols);
+
+		if (cipherSuites != null)
+			socket.setEnabledCipherSuites (cipherSuites);
+	}
+
+	/**
+	 * Does the handshake of a socket right away instead of when it is first used, and records how long it took.
+	 * @param socket is the socket you want to do handshake for
+	 * @throws IOException if handshake fails
+	 */
+	public void handshake (SSLSocket socket) throws IOException {
+		long startMillis = System.currentTimeMillis ();
+		long start = System.nanoTime ();
+
+		socket.startHandshake ();
+
+		handshakeTime.addAndGet (System.nanoTime () - start);
+		handshakeCount.incrementAndGet ();
+
+		// A resumed session was created by an earlier handshake
+		SSLSession session = socket.getSession ();
+
+		if (session.getCreationTime () < startMillis)
+			resumedHandshakeCount.incrementAndGet ();
+	}
+
+	/**
+	 * Connects to a server, does the handshake and disconnects again.
+	 * This puts a session in the session cache, so that connections opened later only need
+	 * an abbreviated handshake.
+	 * @param host is the host name of the server
+	 * @param port is the port of the server
+	 * @throws HTTPConnectionException if connecting or handshake fails
+	 */
+	public void warmUp (String host, int port) {
+		try (SSLSocket socket = (SSLSocket) socketFactory.createSocket (host, port)) {
+			configure (socket);
+			handshake (socket);
+		} catch (IOException e) {
+			throw new HTTPConnectionException (String.format ("Could not do TLS handshake with %s:%d", host, port), e);
+		}
+	}
+
+	/**
+	 * Sets the maximum number of cached client sessions.
+	 * This changes the client session context of the SSLContext, so it affects everything
+	 * that uses the same context. Use a config with a dedicated SSLContext if that is not wanted.
+	 * @param size is the maximum number of sessions, where 0 means no limit
+	 */
+	public void setSessionCacheSize (int size) {
+		SSLSessionContext sessionContext = sslContext.getClientSessionContext ();
+
+		if (sessionContext != null)
+			sessionContext.setSessionCacheSize (size);
+	}
+
+	/**
+	 * Sets how long cached client sessions can be resumed.
+	 * This changes the client session context of the SSLContext, so it affects everything
+	 * that uses the same context.
+	 * @param seconds is the number of seconds, where 0 means no limit
+	 */
+	public void setSessionTimeout (int seconds) {
+		SSLSessionContext sessionContext = sslContext.getClientSessionContext ();
+
+		if (sessionContext != null)
+			sessionContext.setSessionTimeout (seconds);
+	}
+
+	/**
+	 * Sets the protocols that may be used, for example "TLSv1.3" and "TLSv1.2".
+	 * @param protocols is the protocols you want to enable, or null to use the defaults of the SSLContext
+	 */
+	public void setEnabledProtocols (String... protocols) {
+		this.enabledProtocols = protocols == null ? null : protocols.clone ();
+	}
+
+	/**
+	 * Sets the cipher suites that may be used.
+	 * @param cipherSuites is the cipher suites you want to enable, or null to use the defaults of the SSLContext
+	 */
+	public void setEnabledCipherSuites (String... cipherSuites) {
+		this.enabledCipherSuites = cipherSuites == null ? null : cipherSuites.clone ();
+	}
+
+	/**
+	 * Sets whether the handshake should be done when the connection is opened.
+	 * Otherwise it is done when the first request is sent, and is not recorded.
+	 * This is true by default.
+	 * @param handshakeOnConnect determines whether handshake is done when connecting
+	 */
+	public void setHandshakeOnConnect (boolean handshakeOnConnect) {
+		this.handshakeOnConnect = handshakeOnConnect;
+	}
+
+	/**
+	 * Gets SSLContext.
+	 * @return the context used for creating sockets and engines
+	 */
+	public SSLContext getSSLContext () {
+		return sslContext;
+	}
+
+	/**
+	 * Gets the number of handshakes recorded.
+	 * @return number of handshakes done through {@link #handshake(SSLSocket)}
+	 */
+	public long getHandshakeCount () {
+		return handshakeCount.get ();
+	}
+
+	/**
+	 * Gets the number of recorded handshakes that resumed a cached session.
+	 * @return number of abbreviated handshakes
+	 */
+	public long getResumedHandshakeCount () {
+		return resumedHandshakeCount.get ();
+	}
+
+	/**
+	 * Gets the total time spent in recorded handshakes.
+	 * @return total handshake time in nanoseconds
+	 */
+	public long getTotalHandshakeTime () {
+		return handshakeTime.get ();
+	}
+
+	/**
+	 * Sets all handshake counters to 0.
+	 */
+	public void resetStatistics () {
+		handshakeCount.set (0);
+		resumedHandshakeCount.set (0);
+		handshakeTime.set (0);
+	}
+
+	private static SSLContext getDefaultSSLContext () {
+		try {
+			return SSLContext.getDefault ();
+		} catch (NoSuchAlgorithmException e) {
+			throw new HTTPConnectionException ("Could not get default SSLContext", e);
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package io.github.rubenchristoffer.hetty.body;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Packet body that is sent as it is, without being copied into the body stream of the packet.
+ * Implementations decide where the bytes come from (heap arrays, direct buffers, files, streams 
+ * or several other bodies), so large bodies never have to be held on the heap.
+ * Bodies with unknown length are sent using chunked transfer encoding.
+ * @author Ruben Christoffer
+ */
+public abstract class HTTPBody {
+	
+	/**
+	 * Size of buffer used when a body has to be copied through user space.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+	
+	/**
+	 * Gets length.
+	 * @return the number of bytes in the body, or -1 if it is not known before the body has been written
+	 */
+	public abstract long getLength ();
+	
+	/**
+	 * Can the body be written more than once?
+	 * Bodies that are read from a stream can only be sent once, so
+	 * packets containing them cannot be resent.
+	 * @return true if the body can be written again, false otherwise
+	 */
+	public boolean isRepeatable () {
+		return true;
+	}
+	
+	/**
+	 * Writes the body to a stream.
+	 * @param outStream is the stream you want to write body to
+	 * @throws IOException if reading body or writing to stream fails
+	 */
+	public abstract void writeTo (OutputStream outStream) throws IOException;
+	
+	/**
+	 * Writes the body to a channel without copying it, if the body allows it.
+	 * This blocks until the entire body has been written, so target should be in blocking mode.
+	 * The default implementation writes the buffers returned by {@link #getBuffers()}.
+	 * @param target is the channel you want to write body to
+	 * @return number of bytes written
+	 * @throws IOException if reading body or writing to target fails
+	 */
+	public long transferTo (WritableByteChannel target) throws IOException {
+		long transferred = 0;
+		
+		for (ByteBuffer buffer : getBuffers ()) {
+			while (buffer.hasRemaining ())
+				transferred += target.write (buffer);
+		}
+		
+		return transferred;
+	}
+	
+	/**
+	 * Gets read-only views of the body. 
+	 * Every call returns new buffers, so their positions can be changed freely.
+	 * Whether the body is copied depends on the implementation.
+	 * @return read-only buffers containing the body in order
+	 * @throws IOException if reading body fails
+	 */
+	public abstract ByteBuffer[] getBuffers () throws IOException;
+	
+}
@@ -0,0 +1,61 @@
+package io.github.rubenchristoffer.hetty.body;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Packet body backed by (a region of) a byte array.
+ * The array is not copied, so it should not be changed while a packet using it is being sent.
+ * @author Ruben Christoffer
+ */
+public class HTTPByteArrayBody extends HTTPBody {
+	
+	private final byte[] bytes;
+	private final int offset;
+	private final int length;
+	
+	/**
+	 * Creates a new HTTPByteArrayBody containing the entire array.
+	 * @param bytes is the array that should be sent as body
+	 * @throws IllegalArgumentException if bytes is null
+	 */
+	public HTTPByteArrayBody (byte[] bytes) {
+		this (bytes, 0, ArgumentValidator.requireNonNullArgument (bytes, "bytes cannot be null").length);
+	}
+	
+	/**
+	 * Creates a new HTTPByteArrayBody containing a region of an array.
+	 * @param bytes is the array that should be sent as body
+	 * @param offset is the index in the array where body starts
+	 * @param length is the number of bytes in the body
+	 * @throws IllegalArgumentException if bytes is null, or offset and length does not describe a region within the array
+	 */
+	public HTTPByteArrayBody (byte[] bytes, int offset, int length) {
+		this.bytes = ArgumentValidator.requireNonNullArgument (bytes, "bytes cannot be null");
+		
+		if (offset < 0 || length < 0 || offset > bytes.length - length)
+			throw new IllegalArgumentException ("offset and length must describe a region within the array");
+		
+		this.offset = offset;
+		this.length = length;
+	}
+	
+	@Override
+	public long getLength () {
+		return length;
+	}
+	
+	@Override
+	public void writeTo (OutputStream outStream) throws IOException {
+		outStream.write (bytes, offset, length);
+	}
+	
+	@Override
+	public ByteBuffer[] getBuffers () {
+		return new ByteBuffer[] { ByteBuffer.wrap (bytes, offset, length).slice ().asReadOnlyBuffer () };
+	}
+	
+}
@@ -0,0 +1,70 @@
+package io.github.rubenchristoffer.hetty.body;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Packet body backed by a (direct) byte buffer.
+ * The body is the remaining bytes of the buffer when the body is created.
+ * The content is not copied, so it should not be changed while a packet using it is being sent, 
+ * but the position and limit of the buffer can be changed freely.
+ * Direct buffers are written straight to channels without being copied to the heap.
+ * @author Ruben Christoffer
+ */
+public class HTTPByteBufferBody extends HTTPBody {
+	
+	private final ByteBuffer buffer;
+	
+	/**
+	 * Creates a new HTTPByteBufferBody.
+	 * @param buffer is the buffer whose remaining bytes should be sent as body
+	 * @throws IllegalArgumentException if buffer is null
+	 */
+	public HTTPByteBufferBody (ByteBuffer buffer) {
+		this.buffer = ArgumentValidator.requireNonNullArgument (buffer, "buffer cannot be null").slice ();
+	}
+	
+	@Override
+	public long getLength () {
+		return buffer.remaining ();
+	}
+	
+	@Override
+	public void writeTo (OutputStream outStream) throws IOException {
+		if (buffer.hasArray ()) {
+			outStream.write (buffer.array (), buffer.arrayOffset (), buffer.remaining ());
+			return;
+		}
+		
+		// Direct buffers have to be copied to the heap through a small buffer
+		ByteBuffer source = buffer.duplicate ();
+		byte[] chunk = new byte[Math.min (DEFAULT_BUFFER_SIZE, Math.max (source.remaining (), 1))];
+		
+		while (source.hasRemaining ()) {
+			int count = Math.min (chunk.length, source.remaining ());
+			source.get (chunk, 0, count);
+			outStream.write (chunk, 0, count);
+		}
+	}
+	
+	@Override
+	public long transferTo (WritableByteChannel target) throws IOException {
+		ByteBuffer source = buffer.duplicate ();
+		long transferred = 0;
+		
+		while (source.hasRemaining ())
+			transferred += target.write (source);
+		
+		return transferred;
+	}
+	
+	@Override
+	public ByteBuffer[] getBuffers () {
+		return new ByteBuffer[] { buffer.asReadOnlyBuffer () };
+	}
+	
+}
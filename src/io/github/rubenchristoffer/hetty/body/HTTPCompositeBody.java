@@ -0,0 +1,109 @@
+package io.github.rubenchristoffer.hetty.body;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Packet body made of several other bodies that are sent one after another.
+ * This is useful for bodies such as 'multipart/form-data', where small part headers in byte arrays 
+ * are mixed with large file parts. Every part is written the way it would be on its own, 
+ * so file parts are still transferred without being copied.
+ * @author Ruben Christoffer
+ */
+public class HTTPCompositeBody extends HTTPBody {
+	
+	private final List<HTTPBody> parts;
+	
+	/**
+	 * Creates a new HTTPCompositeBody.
+	 * @param parts are the bodies that make up this body in order
+	 * @throws IllegalArgumentException if parts or any of the parts is null
+	 */
+	public HTTPCompositeBody (HTTPBody ... parts) {
+		this (Arrays.asList (ArgumentValidator.requireNonNullArgument (parts, "parts cannot be null")));
+	}
+	
+	/**
+	 * Creates a new HTTPCompositeBody.
+	 * The list is copied, so changing it afterwards does not change the body.
+	 * @param parts are the bodies that make up this body in order
+	 * @throws IllegalArgumentException if parts or any of the parts is null
+	 */
+	public HTTPCompositeBody (List<HTTPBody> parts) {
+		this.parts = new ArrayList<HTTPBody> (ArgumentValidator.requireNonNullArgument (parts, "parts cannot be null"));
+		
+		for (HTTPBody part : this.parts)
+			ArgumentValidator.requireNonNullArgument (part, "parts cannot contain null");
+	}
+	
+	/**
+	 * Gets length.
+	 * @return the sum of the lengths of all parts, or -1 if the length of any part is not known
+	 */
+	@Override
+	public long getLength () {
+		long length = 0;
+		
+		for (HTTPBody part : parts) {
+			if (part.getLength () == -1)
+				return -1;
+			
+			length += part.getLength ();
+		}
+		
+		return length;
+	}
+	
+	@Override
+	public boolean isRepeatable () {
+		for (HTTPBody part : parts) {
+			if (!part.isRepeatable ())
+				return false;
+		}
+		
+		return true;
+	}
+	
+	@Override
+	public void writeTo (OutputStream outStream) throws IOException {
+		for (HTTPBody part : parts)
+			part.writeTo (outStream);
+	}
+	
+	@Override
+	public long transferTo (WritableByteChannel target) throws IOException {
+		long transferred = 0;
+		
+		for (HTTPBody part : parts)
+			transferred += part.transferTo (target);
+		
+		return transferred;
+	}
+	
+	@Override
+	public ByteBuffer[] getBuffers () throws IOException {
+		ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer> ();
+		
+		for (HTTPBody part : parts)
+			Collections.addAll (buffers, part.getBuffers ());
+		
+		return buffers.toArray (new ByteBuffer[buffers.size ()]);
+	}
+	
+	/**
+	 * Gets parts.
+	 * @return read-only list of the bodies that make up this body
+	 */
+	public List<HTTPBody> getParts () {
+		return Collections.unmodifiableList (parts);
+	}
+	
+}
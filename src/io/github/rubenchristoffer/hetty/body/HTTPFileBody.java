@@ -0,0 +1,170 @@
+package io.github.rubenchristoffer.hetty.body;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Packet body backed by (a region of) a file.
+ * The file is never loaded into memory. It is read when the packet is sent, 
+ * either directly from the file system cache to the socket using {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+ * or through a small buffer if the connection has no channel (for example HTTPS connections).
+ * The file should not change size while a packet using it is being sent.
+ * @author Ruben Christoffer
+ */
+public class HTTPFileBody extends HTTPBody {
+	
+	private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+	
+	private final File file;
+	private final long offset;
+	private final long length;
+	
+	/**
+	 * Creates a new HTTPFileBody containing the entire file.
+	 * @param file is the file that should be sent as body
+	 * @throws IllegalArgumentException if file is null or is not an existing file
+	 */
+	public HTTPFileBody (File file) {
+		this (file, 0, requireFile (file).length ());
+	}
+	
+	/**
+	 * Creates a new HTTPFileBody containing a region of a file.
+	 * @param file is the file that should be sent as body
+	 * @param offset is the position in the file where body starts
+	 * @param length is the number of bytes in the body
+	 * @throws IllegalArgumentException if file is null or is not an existing file, 
+	 * or offset and length does not describe a region within the file
+	 */
+	public HTTPFileBody (File file, long offset, long length) {
+		this.file = requireFile (file);
+		
+		if (offset < 0 || length < 0 || offset + length > file.length ())
+			throw new IllegalArgumentException ("offset and length must describe a region within the file");
+		
+		this.offset = offset;
+		this.length = length;
+	}
+	
+	private static File requireFile (File file) {
+		ArgumentValidator.requireNonNullArgument (file, "file cannot be null");
+		
+		if (!file.isFile ())
+			throw new IllegalArgumentException ("file must be an existing file");
+		
+		return file;
+	}
+	
+	/**
+	 * Transfers the body to a channel without copying it through user space, if the operating system supports it.
+	 * This blocks until the entire body has been written, so target should be in blocking mode.
+	 * @param target is the channel you want to write body to
+	 * @return number of bytes transferred
+	 * @throws IOException if reading file or writing to target fails, or the file is shorter than expected
+	 */
+	@Override
+	public long transferTo (WritableByteChannel target) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile (file, "r")) {
+			FileChannel fileChannel = randomAccessFile.getChannel ();
+			long transferred = 0;
+			
+			while (transferred < length) {
+				long count = fileChannel.transferTo (offset + transferred, length - transferred, target);
+				
+				if (count <= 0 && offset + transferred >= fileChannel.size ())
+					throw new IOException ("File was truncated while sending body");
+				
+				transferred += count;
+			}
+			
+			return transferred;
+		}
+	}
+	
+	/**
+	 * Writes the body to a stream through a buffer of size {@link #DEFAULT_BUFFER_SIZE}.
+	 * This is used when the body cannot be transferred to a channel.
+	 * @param outStream is the stream you want to write body to
+	 * @throws IOException if reading file or writing to stream fails, or the file is shorter than expected
+	 */
+	@Override
+	public void writeTo (OutputStream outStream) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile (file, "r")) {
+			FileChannel fileChannel = randomAccessFile.getChannel ();
+			ByteBuffer buffer = ByteBuffer.allocate ((int) Math.min (DEFAULT_BUFFER_SIZE, Math.max (length, 1)));
+			long position = offset;
+			long end = offset + length;
+			
+			while (position < end) {
+				buffer.clear ();
+				buffer.limit ((int) Math.min (buffer.capacity (), end - position));
+				
+				int read = fileChannel.read (buffer, position);
+				
+				if (read == -1)
+					throw new IOException ("File was truncated while sending body");
+				
+				outStream.write (buffer.array (), 0, read);
+				position += read;
+			}
+		}
+	}
+	
+	/**
+	 * Maps the file region into memory as read-only buffers.
+	 * A single buffer cannot be larger than Integer.MAX_VALUE bytes, so
+	 * larger regions are mapped as several windows in order.
+	 * @throws IOException if mapping file fails
+	 */
+	@Override
+	public ByteBuffer[] getBuffers () throws IOException {
+		try (FileChannel fileChannel = FileChannel.open (file.toPath (), StandardOpenOption.READ)) {
+			ByteBuffer[] buffers = new ByteBuffer[(int) Math.max ((length + MAX_WINDOW_SIZE - 1) / MAX_WINDOW_SIZE, 1)];
+			long position = offset;
+			long end = offset + length;
+			
+			for (int i = 0; i < buffers.length; i++) {
+				long size = Math.min (MAX_WINDOW_SIZE, end - position);
+				buffers[i] = fileChannel.map (MapMode.READ_ONLY, position, size);
+				position += size;
+			}
+			
+			return buffers;
+		}
+	}
+	
+	/**
+	 * Gets file.
+	 * @return the file body is read from
+	 */
+	public File getFile () {
+		return file;
+	}
+	
+	/**
+	 * Gets offset.
+	 * @return the position in the file where body starts
+	 */
+	public long getOffset () {
+		return offset;
+	}
+	
+	/**
+	 * Gets length.
+	 * @return the number of bytes in the body
+	 */
+	@Override
+	public long getLength () {
+		return length;
+	}
+	
+}
@@ -0,0 +1,122 @@
+package io.github.rubenchristoffer.hetty.body;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Packet body that is read from an input stream while it is being sent.
+ * The stream can only be read once, so the body can only be sent once. 
+ * The stream is closed when the body has been written.
+ * If the length is not known, the body is sent using chunked transfer encoding.
+ * @author Ruben Christoffer
+ */
+public class HTTPInputStreamBody extends HTTPBody {
+	
+	private final InputStream inStream;
+	private final long length;
+	private boolean consumed;
+	
+	/**
+	 * Creates a new HTTPInputStreamBody with unknown length.
+	 * @param inStream is the stream body is read from
+	 * @throws IllegalArgumentException if inStream is null
+	 */
+	public HTTPInputStreamBody (InputStream inStream) {
+		this (inStream, -1);
+	}
+	
+	/**
+	 * Creates a new HTTPInputStreamBody.
+	 * @param inStream is the stream body is read from
+	 * @param length is the number of bytes that should be read from stream, or -1 if it is not known
+	 * @throws IllegalArgumentException if inStream is null or length is less than -1
+	 */
+	public HTTPInputStreamBody (InputStream inStream, long length) {
+		if (length < -1)
+			throw new IllegalArgumentException ("length cannot be less than -1");
+		
+		this.inStream = ArgumentValidator.requireNonNullArgument (inStream, "inStream cannot be null");
+		this.length = length;
+	}
+	
+	@Override
+	public long getLength () {
+		return length;
+	}
+	
+	@Override
+	public boolean isRepeatable () {
+		return false;
+	}
+	
+	@Override
+	public void writeTo (OutputStream outStream) throws IOException {
+		consume ();
+		
+		try (InputStream source = inStream) {
+			byte[] chunk = new byte[(int) Math.min (DEFAULT_BUFFER_SIZE, length == -1 ? DEFAULT_BUFFER_SIZE : Math.max (length, 1))];
+			long remaining = length == -1 ? Long.MAX_VALUE : length;
+			
+			while (remaining > 0) {
+				int read = source.read (chunk, 0, (int) Math.min (chunk.length, remaining));
+				
+				if (read == -1) {
+					if (length == -1)
+						return;
+					
+					throw new IOException ("Stream ended before the entire body was read");
+				}
+				
+				outStream.write (chunk, 0, read);
+				remaining -= read;
+			}
+		}
+	}
+	
+	@Override
+	public long transferTo (final WritableByteChannel target) throws IOException {
+		final long[] transferred = new long[1];
+		
+		writeTo (new OutputStream () {
+			@Override
+			public void write (int b) throws IOException {
+				write (new byte[] { (byte) b }, 0, 1);
+			}
+			
+			@Override
+			public void write (byte[] buffer, int offset, int length) throws IOException {
+				ByteBuffer source = ByteBuffer.wrap (buffer, offset, length);
+				
+				while (source.hasRemaining ())
+					transferred[0] += target.write (source);
+			}
+		});
+		
+		return transferred[0];
+	}
+	
+	/**
+	 * Reads the entire stream into memory, so the body cannot be written afterwards.
+	 */
+	@Override
+	public ByteBuffer[] getBuffers () throws IOException {
+		ByteArrayOutputStream bodyStream = new ByteArrayOutputStream (length == -1 ? DEFAULT_BUFFER_SIZE : (int) Math.min (length, Integer.MAX_VALUE - 8));
+		writeTo (bodyStream);
+		
+		return new ByteBuffer[] { ByteBuffer.wrap (bodyStream.toByteArray ()).asReadOnlyBuffer () };
+	}
+	
+	private synchronized void consume () throws IOException {
+		if (consumed)
+			throw new IOException ("Body read from stream can only be sent once");
+		
+		consumed = true;
+	}
+	
+}
@@ -0,0 +1,192 @@
+package io.github.rubenchristoffer.hetty.body;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Output stream that spools a body into a file through memory-mapped windows.
+ * This is meant for bodies that are too large to be kept on the heap, and can be used as
+ * the body sink of {@link io.github.rubenchristoffer.hetty.HTTPConnection#readPacket(OutputStream, boolean)}.
+ * Bytes are copied straight into the page cache without any intermediate heap buffers, and
+ * sizes are not limited to 2 GB. 
+ * After the body has been written, it can be read through read-only mapped views instead of a byte array.
+ * The file is truncated to the number of bytes written when the spool is closed.
+ * Note that mapped memory is only released when the buffers are garbage collected.
+ * @author Ruben Christoffer
+ */
+public class HTTPMappedBodySpool extends OutputStream {
+	
+	/**
+	 * Default size of each mapped window.
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+	
+	private final File file;
+	private final FileChannel channel;
+	private final int windowSize;
+	
+	private MappedByteBuffer window;
+	private long size;
+	private boolean closed;
+	
+	/**
+	 * Creates a new HTTPMappedBodySpool where windowSize={@link #DEFAULT_WINDOW_SIZE}.
+	 * @param file is the file body should be spooled to. It is created if it does not exist, and replaced if it does
+	 * @throws IOException if file could not be opened
+	 */
+	public HTTPMappedBodySpool (File file) throws IOException {
+		this (file, DEFAULT_WINDOW_SIZE);
+	}
+	
+	/**
+	 * Creates a new HTTPMappedBodySpool.
+	 * @param file is the file body should be spooled to. It is created if it does not exist, and replaced if it does
+	 * @param windowSize is the number of bytes mapped at a time
+	 * @throws IOException if file could not be opened
+	 * @throws IllegalArgumentException if file is null or windowSize is less than 1
+	 */
+	public HTTPMappedBodySpool (File file, int windowSize) throws IOException {
+		this.file = ArgumentValidator.requireNonNullArgument (file, "file cannot be null");
+		
+		if (windowSize < 1)
+			throw new IllegalArgumentException ("windowSize must be at least 1");
+		
+		this.windowSize = windowSize;
+		this.channel = FileChannel.open (file.toPath (), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+	
+	/**
+	 * Creates a new HTTPMappedBodySpool backed by a temporary file that is deleted when the JVM exits.
+	 * @return a new spool
+	 * @throws IOException if temporary file could not be created
+	 */
+	public static HTTPMappedBodySpool createTemporary () throws IOException {
+		File file = File.createTempFile ("hetty-body", ".spool");
+		file.deleteOnExit ();
+		
+		return new HTTPMappedBodySpool (file);
+	}
+	
+	@Override
+	public void write (int b) throws IOException {
+		nextWindow ().put ((byte) b);
+		size++;
+	}
+	
+	@Override
+	public void write (byte[] bytes, int offset, int length) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > bytes.length)
+			throw new IndexOutOfBoundsException ();
+		
+		while (length > 0) {
+			MappedByteBuffer currentWindow = nextWindow ();
+			int count = Math.min (length, currentWindow.remaining ());
+			
+			currentWindow.put (bytes, offset, count);
+			size += count;
+			offset += count;
+			length -= count;
+		}
+	}
+	
+	private MappedByteBuffer nextWindow () throws IOException {
+		if (closed)
+			throw new IOException ("Spool is closed");
+		
+		// Mapping beyond the end of the file makes the file grow
+		if (window == null || !window.hasRemaining ())
+			window = channel.map (MapMode.READ_WRITE, size, windowSize);
+		
+		return window;
+	}
+	
+	/**
+	 * Gets a read-only view of the entire body.
+	 * @return read-only mapped buffer containing the body
+	 * @throws IOException if mapping file fails
+	 * @throws IllegalStateException if the body is larger than what fits in a single buffer
+	 * @see #getReadOnlyView(long, int)
+	 */
+	public MappedByteBuffer getReadOnlyView () throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalStateException ("Body is too large for a single view");
+		
+		return getReadOnlyView (0, (int) size);
+	}
+	
+	/**
+	 * Gets a read-only view of a region of the body.
+	 * Use this for reading bodies larger than 2 GB piece by piece.
+	 * @param position is the position in the body where view starts
+	 * @param length is the number of bytes in view
+	 * @return read-only mapped buffer containing the region
+	 * @throws IOException if mapping file fails
+	 * @throws IllegalArgumentException if position and length does not describe a region within the body
+	 */
+	public MappedByteBuffer getReadOnlyView (long position, int length) throws IOException {
+		if (position < 0 || length < 0 || position + length > size)
+			throw new IllegalArgumentException ("position and length must describe a region within the body");
+		
+		if (closed) {
+			try (FileChannel readChannel = FileChannel.open (file.toPath (), StandardOpenOption.READ)) {
+				return readChannel.map (MapMode.READ_ONLY, position, length);
+			}
+		}
+		
+		return channel.map (MapMode.READ_ONLY, position, length);
+	}
+	
+	/**
+	 * Forces written bytes to be stored on disk.
+	 * This is not needed for reading the body through views.
+	 */
+	@Override
+	public void flush () throws IOException {
+		if (window != null)
+			window.force ();
+	}
+	
+	/**
+	 * Stops spooling and truncates the file to the number of bytes written.
+	 * The body can still be read using views after the spool has been closed.
+	 */
+	@Override
+	public void close () throws IOException {
+		if (closed)
+			return;
+		
+		closed = true;
+		window = null;
+		
+		try {
+			channel.truncate (size);
+		} finally {
+			channel.close ();
+		}
+	}
+	
+	/**
+	 * Gets size.
+	 * @return the number of bytes written to spool
+	 */
+	public long getSize () {
+		return size;
+	}
+	
+	/**
+	 * Gets file.
+	 * @return the file body is spooled to
+	 */
+	public File getFile () {
+		return file;
+	}
+	
+}
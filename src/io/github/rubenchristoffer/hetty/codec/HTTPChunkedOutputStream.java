@@ -0,0 +1,119 @@
+package io.github.rubenchristoffer.hetty.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import io.github.rubenchristoffer.hetty.HTTPConstants;
+
+/**
+ * Output stream that applies chunked transfer encoding to the bytes written to it.
+ * Unlike {@link HTTPChunkedTransferEncoder}, the body does not have to be known up front.
+ * Small writes are collected into chunks of chunkSize bytes, while writes of at least
+ * chunkSize bytes are sent as a single chunk without being copied.
+ * Calling close() writes the last chunk, but does not flush or close the underlying stream.
+ * NOTE: Does not support trailers!
+ * @author Ruben Christoffer
+ */
+public class HTTPChunkedOutputStream extends OutputStream {
+	
+	/**
+	 * Default size of collected chunks.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 8192;
+	
+	private final OutputStream outStream;
+	private final byte[] chunk;
+	private int chunkLength;
+	private boolean closed;
+	
+	/**
+	 * Creates a new HTTPChunkedOutputStream where chunkSize={@link #DEFAULT_CHUNK_SIZE}.
+	 * @param outStream is the stream the encoded body is written to
+	 */
+	public HTTPChunkedOutputStream (OutputStream outStream) {
+		this (outStream, DEFAULT_CHUNK_SIZE);
+	}
+	
+	/**
+	 * Creates a new HTTPChunkedOutputStream.
+	 * @param outStream is the stream the encoded body is written to
+	 * @param chunkSize is the size small writes are collected to before being sent as a chunk
+	 * @throws IllegalArgumentException if chunkSize is less than 1
+	 */
+	public HTTPChunkedOutputStream (OutputStream outStream, int chunkSize) {
+		if (chunkSize < 1)
+			throw new IllegalArgumentException ("chunkSize must be at least 1");
+		
+		this.outStream = outStream;
+		this.chunk = new byte[chunkSize];
+	}
+	
+	@Override
+	public void write (int b) throws IOException {
+		if (chunkLength == chunk.length)
+			writeCollectedChunk ();
+		
+		chunk[chunkLength++] = (byte) b;
+	}
+	
+	@Override
+	public void write (byte[] buffer, int offset, int length) throws IOException {
+		if (length >= chunk.length) {
+			writeCollectedChunk ();
+			writeChunk (buffer, offset, length);
+			
+			return;
+		}
+		
+		if (chunkLength + length > chunk.length)
+			writeCollectedChunk ();
+		
+		System.arraycopy (buffer, offset, chunk, chunkLength, length);
+		chunkLength += length;
+	}
+	
+	/**
+	 * Writes the collected bytes as a chunk and flushes the underlying stream.
+	 */
+	@Override
+	public void flush () throws IOException {
+		writeCollectedChunk ();
+		outStream.flush ();
+	}
+	
+	/**
+	 * Writes the collected bytes and the last chunk, which ends the body.
+	 * The underlying stream is neither flushed nor closed.
+	 */
+	@Override
+	public void close () throws IOException {
+		if (closed)
+			return;
+		
+		closed = true;
+		writeCollectedChunk ();
+		
+		// Last chunk has size 0 and is followed by the empty line that ends the (empty) trailer
+		outStream.write ('0');
+		outStream.write (HTTPConstants.CRLF);
+		outStream.write (HTTPConstants.CRLF);
+	}
+	
+	private void writeCollectedChunk () throws IOException {
+		writeChunk (chunk, 0, chunkLength);
+		chunkLength = 0;
+	}
+	
+	private void writeChunk (byte[] buffer, int offset, int length) throws IOException {
+		// A chunk of size 0 would end the body
+		if (length == 0)
+			return;
+		
+		outStream.write (Integer.toHexString (length).toUpperCase ().getBytes (StandardCharsets.US_ASCII));
+		outStream.write (HTTPConstants.CRLF);
+		outStream.write (buffer, offset, length);
+		outStream.write (HTTPConstants.CRLF);
+	}
+	
+}
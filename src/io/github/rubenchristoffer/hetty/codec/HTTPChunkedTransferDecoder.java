@@ -1,26 +1,34 @@
 package io.github.rubenchristoffer.hetty.codec;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
+import io.github.rubenchristoffer.hetty.HTTPConstants;
+
 /**
  * HTTP Transfer Decoder that decodes body sent from server. 
- * NOTE: Does not support trailers!
+ * NOTE: Does not support trailers! Trailers are skipped.
  * @author Ruben Christoffer
  */
 public class HTTPChunkedTransferDecoder extends HTTPTransferDecoder {
 	
 	private Stage currentStage;
 	private long currentChunkSize;
-	
-	private StringBuilder chunkSizeBuilder;
+	private int chunkSizeDigits;
 	private long currentChunkCounter;
+	private boolean emptyTrailerLine;
+	
+	private final byte[] singleByte = new byte[1];
 	
 	private enum Stage {
-		NEW_CHUNK,
+		CHUNK_SIZE,
+		CHUNK_EXTENSION,
 		READ_CHUNK,
-		BODY_END,
+		CHUNK_END,
+		TRAILER,
 		DONE
 	}
 	
@@ -35,56 +43,121 @@ public class HTTPChunkedTransferDecoder extends HTTPTransferDecoder {
 	
 	@Override
 	public void initialize(HashMap<String, String> headers) {
-		currentStage = Stage.NEW_CHUNK;
-		currentChunkSize = -1;
-		chunkSizeBuilder = new StringBuilder();
+		currentStage = Stage.CHUNK_SIZE;
+		currentChunkSize = 0;
+		chunkSizeDigits = 0;
 		currentChunkCounter = 0;
+		emptyTrailerLine = true;
 	}
 
 	@Override
 	public boolean decodeNext(ByteArrayOutputStream bodyStream, int byteRead) {
-		switch (currentStage) {
-		case NEW_CHUNK: runNewChunkStage(byteRead); break;
-		case READ_CHUNK: runReadChunkStage(bodyStream, byteRead); break;
-		case BODY_END: if (byteRead == 10) currentStage = Stage.DONE; break; // Clear the last CRLF at the end of stream
-		default:
+		singleByte[0] = (byte) byteRead;
+		
+		try {
+			decode(bodyStream, singleByte, 0, 1);
+		} catch (IOException e) {
+			// Never happens when writing to ByteArrayOutputStream
 		}
 		
-		return currentStage == Stage.DONE;
+		return isFinished();
 	}
 	
-	private void runNewChunkStage(int byteRead) {
-		switch (byteRead) {
-		case 10: // At this point it has read "[CHUNKSIZE]\r\n" (in order words cleared CRLF). ASCII 10 stands for '\n'
-			// Parse chunk size in hexadecimal form
-			currentChunkSize = Long.parseLong(chunkSizeBuilder.toString(), 16);
-			chunkSizeBuilder.setLength(0);
-			
-			// 0 indicates end of stream, so go to END stage if that is the case
-			if (currentChunkSize != 0) {
-				currentStage = Stage.READ_CHUNK;
+	@Override
+	public int decode(OutputStream bodyStream, byte[] buffer, int offset, int length) throws IOException {
+		int index = offset;
+		int end = offset + length;
+		
+		while (index < end && currentStage != Stage.DONE) {
+			if (currentStage == Stage.READ_CHUNK) {
+				// Copy as much of the current chunk as is available in one go
+				int count = (int) Math.min(end - index, currentChunkSize - currentChunkCounter);
+				
+				bodyStream.write(buffer, index, count);
+				currentChunkCounter += count;
+				index += count;
+				
+				if (currentChunkCounter == currentChunkSize)
+					currentStage = Stage.CHUNK_END;
 			} else {
-				currentStage = Stage.BODY_END;
+				runControlStage(buffer[index++]);
 			}
-			
-			break;
-		case 13: break; // Every \r (ASCII 13) should be ignored to clear CRLF and should NOT be added to stream
-		default: chunkSizeBuilder.append((char) byteRead);
 		}
+		
+		return index - offset;
+	}
+	
+	@Override
+	public boolean isFinished() {
+		return currentStage == Stage.DONE;
 	}
 	
-	private void runReadChunkStage (ByteArrayOutputStream bodyStream, int byteRead) {
-		if (currentChunkCounter == currentChunkSize) {
-			// Clear CRLF after chunk
-			if (byteRead == 10) {
-				currentStage = Stage.NEW_CHUNK;
+	private void runControlStage (byte byteRead) {
+		switch (currentStage) {
+		case CHUNK_SIZE: runChunkSizeStage(byteRead); break;
+		case CHUNK_EXTENSION: if (byteRead == HTTPConstants.ASCII_LF) endChunkSizeLine(); break; // Chunk extensions are ignored
+		case CHUNK_END: // Clear CRLF after chunk
+			if (byteRead == HTTPConstants.ASCII_LF) {
+				currentStage = Stage.CHUNK_SIZE;
+				currentChunkSize = 0;
+				chunkSizeDigits = 0;
 				currentChunkCounter = 0;
 			}
+			
+			break;
+		case TRAILER: runTrailerStage(byteRead); break;
+		default:
+		}
+	}
+	
+	private void runChunkSizeStage (byte byteRead) {
+		int digit = Character.digit(byteRead, 16);
+		
+		if (digit != -1) {
+			// Leading zeros are allowed, so only the value can tell whether another digit fits in a long
+			if (currentChunkSize > (Long.MAX_VALUE >>> 4))
+				throw new HTTPUnsupportedContentException("Chunk size is too large", null);
+			
+			// Parse chunk size in hexadecimal form
+			currentChunkSize = (currentChunkSize << 4) | digit;
+			chunkSizeDigits++;
+		} else if (byteRead == HTTPConstants.ASCII_LF) {
+			// At this point it has read "[CHUNKSIZE]\r\n" (in order words cleared CRLF)
+			endChunkSizeLine();
+		} else if (byteRead == ';') {
+			currentStage = Stage.CHUNK_EXTENSION;
+		} else if (byteRead != HTTPConstants.ASCII_CR && byteRead != ' ' && byteRead != '\t') {
+			throw new HTTPUnsupportedContentException(String.format("Invalid character '%c' in chunk size", (char) byteRead), null);
+		}
+	}
+	
+	private void endChunkSizeLine () {
+		if (chunkSizeDigits == 0)
+			throw new HTTPUnsupportedContentException("Chunk size is missing", null);
+		
+		// 0 indicates end of stream, so go to TRAILER stage if that is the case
+		if (currentChunkSize != 0) {
+			currentStage = Stage.READ_CHUNK;
 		} else {
-			// Write read byte to stream
-			bodyStream.write(byteRead);
-			currentChunkCounter++;
+			currentStage = Stage.TRAILER;
 		}
 	}
 	
-}
\ No newline at end of file
+	private void runTrailerStage (byte byteRead) {
+		// Skip trailer lines until the empty line that ends the body
+		if (byteRead == HTTPConstants.ASCII_LF) {
+			if (emptyTrailerLine)
+				currentStage = Stage.DONE;
+			
+			emptyTrailerLine = true;
+		} else if (byteRead != HTTPConstants.ASCII_CR) {
+			emptyTrailerLine = false;
+		}
+	}
+	
+	@Override
+	public HTTPTransferDecoder newInstance() {
+		return new HTTPChunkedTransferDecoder();
+	}
+	
+}
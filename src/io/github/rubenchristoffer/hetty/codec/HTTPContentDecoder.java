@@ -0,0 +1,49 @@
+package io.github.rubenchristoffer.hetty.codec;
+
+import java.io.OutputStream;
+
+/**
+ * HTTP decoder responsible for decoding the content encoding (such as gzip)
+ * of a body when reading packet from server.
+ * Content decoders are stacked on top of the transfer decoder, so the body
+ * is decoded while it is being read instead of after.
+ * Decoders only create decoding streams and have no state of their own, so 
+ * the same decoder may be used by several connections at the same time.
+ * @author Ruben Christoffer
+ */
+public abstract class HTTPContentDecoder {
+	
+	/**
+	 * Default maximum size of a decoded body, which is 256 MiB.
+	 */
+	public static final long DEFAULT_MAX_DECODED_SIZE = 256L * 1024 * 1024;
+	
+	/**
+	 * Gets the content coding this decoder decodes, as used in the 'Content-Encoding' header.
+	 * @return the name of the content coding, such as 'gzip'
+	 */
+	public abstract String getEncoding ();
+	
+	/**
+	 * Can this decoder decode the content coding?
+	 * The default implementation compares the coding with {@link #getEncoding()}, ignoring case.
+	 * @param encoding is the name of a content coding from the 'Content-Encoding' header
+	 * @return true if this decoder can decode the content coding, false otherwise
+	 */
+	public boolean canDecode (String encoding) {
+		return getEncoding ().equalsIgnoreCase (encoding);
+	}
+	
+	/**
+	 * Creates a stream that decodes the bytes written to it and writes the decoded bytes to bodyStream.
+	 * Bytes may be written in slices of any size. Calling close() on the returned stream 
+	 * finishes decoding, but does not close bodyStream.
+	 * @param bodyStream is the stream decoded bytes will be written to
+	 * @param maxDecodedSize is the maximum number of decoded bytes
+	 * @return stream that decodes bytes written to it
+	 * @throws HTTPUnsupportedContentException from the returned stream if the content is corrupt
+	 * or decodes to more than maxDecodedSize bytes
+	 */
+	public abstract OutputStream newDecodingStream (OutputStream bodyStream, long maxDecodedSize);
+	
+}
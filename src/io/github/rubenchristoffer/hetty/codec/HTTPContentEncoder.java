@@ -0,0 +1,32 @@
+package io.github.rubenchristoffer.hetty.codec;
+
+import java.io.OutputStream;
+
+/**
+ * HTTP encoder responsible for applying a content encoding (such as gzip)
+ * to a body when sending packet.
+ * The body is encoded while it is being sent, so the encoded body is never held in memory.
+ * Since the length of the encoded body is not known up front, encoded bodies are 
+ * sent using chunked transfer encoding.
+ * Encoders only create encoding streams and have no state of their own, so
+ * the same encoder may be used by several packets at the same time.
+ * @author Ruben Christoffer
+ * @see io.github.rubenchristoffer.hetty.filters.HTTPContentEncodingFilter
+ */
+public abstract class HTTPContentEncoder {
+	
+	/**
+	 * Gets the content coding this encoder applies, as used in the 'Content-Encoding' header.
+	 * @return the name of the content coding, such as 'gzip'
+	 */
+	public abstract String getEncoding ();
+	
+	/**
+	 * Creates a stream that encodes the bytes written to it and writes the encoded bytes to bodyStream.
+	 * Calling close() on the returned stream finishes encoding, but does not close bodyStream.
+	 * @param bodyStream is the stream encoded bytes will be written to
+	 * @return stream that encodes bytes written to it
+	 */
+	public abstract OutputStream newEncodingStream (OutputStream bodyStream);
+	
+}
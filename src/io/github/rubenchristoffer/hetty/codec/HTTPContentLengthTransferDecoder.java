@@ -1,24 +1,26 @@
 package io.github.rubenchristoffer.hetty.codec;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * This is the default decoder used when decoding
  * HTTP packets. It is based on the content-length
- * header.
+ * header. Content length may be larger than 2 GB.
  * @author Ruben Christoffer
  */
 public class HTTPContentLengthTransferDecoder extends HTTPTransferDecoder {
 	
-	private int contentLength = -1;
-	private int contentCount = 0;
+	private long contentLength = -1;
+	private long contentCount = 0;
 
 	@Override
 	public DecodeInfo getDecodeInfo(Map<String, String> headers) {
 		if (headers.containsKey("content-length")) {
-			int contentLength = Integer.parseInt(headers.get("content-length"));
+			long contentLength = Long.parseLong(headers.get("content-length"));
 			
 			if (contentLength != 0)
 				return DecodeInfo.CAN_DECODE;
@@ -31,7 +33,7 @@ public class HTTPContentLengthTransferDecoder extends HTTPTransferDecoder {
 	
 	@Override
 	public void initialize(HashMap<String, String> headers) {
-		contentLength = Integer.parseInt(headers.get("content-length"));
+		contentLength = Long.parseLong(headers.get("content-length"));
 		contentCount = 0;
 	}
 		
@@ -45,5 +47,26 @@ public class HTTPContentLengthTransferDecoder extends HTTPTransferDecoder {
 		
 		return false;
 	}
-
+	
+	@Override
+	public int decode(OutputStream bodyStream, byte[] buffer, int offset, int length) throws IOException {
+		// Copy everything up to the end of content in one go
+		int count = (int) Math.min(length, contentLength - contentCount);
+		
+		bodyStream.write(buffer, offset, count);
+		contentCount += count;
+		
+		return count;
+	}
+	
+	@Override
+	public boolean isFinished() {
+		return contentCount == contentLength;
+	}
+	
+	@Override
+	public HTTPTransferDecoder newInstance() {
+		return new HTTPContentLengthTransferDecoder();
+	}
+	
 }
@@ -0,0 +1,23 @@
+package io.github.rubenchristoffer.hetty.codec;
+
+import java.io.OutputStream;
+
+/**
+ * HTTP Content Decoder that decompresses bodies with content coding 'deflate'.
+ * The coding is supposed to be zlib data, but some servers send raw deflate data instead.
+ * Both are supported.
+ * @author Ruben Christoffer
+ */
+public class HTTPDeflateContentDecoder extends HTTPContentDecoder {
+	
+	@Override
+	public String getEncoding () {
+		return "deflate";
+	}
+	
+	@Override
+	public OutputStream newDecodingStream (OutputStream bodyStream, long maxDecodedSize) {
+		return new HTTPInflatingOutputStream (bodyStream, maxDecodedSize, false);
+	}
+	
+}
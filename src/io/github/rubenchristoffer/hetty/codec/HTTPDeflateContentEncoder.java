@@ -0,0 +1,66 @@
+package io.github.rubenchristoffer.hetty.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * HTTP Content Encoder that compresses bodies with content coding 'deflate',
+ * which is deflate data inside a zlib wrapper.
+ * @author Ruben Christoffer
+ */
+public class HTTPDeflateContentEncoder extends HTTPContentEncoder {
+	
+	static final int BUFFER_SIZE = 8192;
+	
+	private int level;
+	
+	/**
+	 * Creates a new HTTPDeflateContentEncoder where level={@link Deflater#DEFAULT_COMPRESSION}.
+	 */
+	public HTTPDeflateContentEncoder () {
+		this (Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	/**
+	 * Creates a new HTTPDeflateContentEncoder.
+	 * @param level is the compression level from 0 (no compression) to 9 (best compression),
+	 * or {@link Deflater#DEFAULT_COMPRESSION}
+	 * @throws IllegalArgumentException if level is invalid
+	 */
+	public HTTPDeflateContentEncoder (int level) {
+		if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException ("level must be between 0 and 9");
+		
+		this.level = level;
+	}
+	
+	@Override
+	public String getEncoding () {
+		return "deflate";
+	}
+	
+	@Override
+	public OutputStream newEncodingStream (OutputStream bodyStream) {
+		final Deflater deflater = new Deflater (level);
+		
+		return new DeflaterOutputStream (bodyStream, deflater, BUFFER_SIZE) {
+			@Override
+			public void close () throws IOException {
+				// Underlying stream is left open
+				finish ();
+				deflater.end ();
+			}
+		};
+	}
+	
+	/**
+	 * Gets compression level.
+	 * @return the compression level
+	 */
+	public int getLevel () {
+		return level;
+	}
+	
+}
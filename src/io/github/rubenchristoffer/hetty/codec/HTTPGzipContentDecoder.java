@@ -0,0 +1,27 @@
+package io.github.rubenchristoffer.hetty.codec;
+
+import java.io.OutputStream;
+
+/**
+ * HTTP Content Decoder that decompresses bodies with content coding 'gzip' (or 'x-gzip').
+ * Bodies with several gzip members after each other are supported.
+ * @author Ruben Christoffer
+ */
+public class HTTPGzipContentDecoder extends HTTPContentDecoder {
+	
+	@Override
+	public String getEncoding () {
+		return "gzip";
+	}
+	
+	@Override
+	public boolean canDecode (String encoding) {
+		return encoding.equalsIgnoreCase ("gzip") || encoding.equalsIgnoreCase ("x-gzip");
+	}
+	
+	@Override
+	public OutputStream newDecodingStream (OutputStream bodyStream, long maxDecodedSize) {
+		return new HTTPInflatingOutputStream (bodyStream, maxDecodedSize, true);
+	}
+	
+}
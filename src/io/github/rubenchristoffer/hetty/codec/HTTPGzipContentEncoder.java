@@ -0,0 +1,77 @@
+package io.github.rubenchristoffer.hetty.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP Content Encoder that compresses bodies with content coding 'gzip'.
+ * @author Ruben Christoffer
+ */
+public class HTTPGzipContentEncoder extends HTTPContentEncoder {
+	
+	private int level;
+	
+	/**
+	 * Creates a new HTTPGzipContentEncoder where level={@link Deflater#DEFAULT_COMPRESSION}.
+	 */
+	public HTTPGzipContentEncoder () {
+		this (Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	/**
+	 * Creates a new HTTPGzipContentEncoder.
+	 * @param level is the compression level from 0 (no compression) to 9 (best compression),
+	 * or {@link Deflater#DEFAULT_COMPRESSION}
+	 * @throws IllegalArgumentException if level is invalid
+	 */
+	public HTTPGzipContentEncoder (int level) {
+		if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException ("level must be between 0 and 9");
+		
+		this.level = level;
+	}
+	
+	@Override
+	public String getEncoding () {
+		return "gzip";
+	}
+	
+	@Override
+	public OutputStream newEncodingStream (OutputStream bodyStream) {
+		try {
+			return new LevelGZIPOutputStream (bodyStream, level);
+		} catch (IOException e) {
+			throw new HTTPUnsupportedContentException ("Could not write gzip header", e);
+		}
+	}
+	
+	/**
+	 * Gets compression level.
+	 * @return the compression level
+	 */
+	public int getLevel () {
+		return level;
+	}
+	
+	/**
+	 * GZIPOutputStream with a compression level, which does not close the underlying stream.
+	 */
+	private static class LevelGZIPOutputStream extends GZIPOutputStream {
+		
+		private LevelGZIPOutputStream (OutputStream bodyStream, int level) throws IOException {
+			super (bodyStream, HTTPDeflateContentEncoder.BUFFER_SIZE);
+			
+			def.setLevel (level);
+		}
+		
+		@Override
+		public void close () throws IOException {
+			finish ();
+			def.end ();
+		}
+		
+	}
+	
+}
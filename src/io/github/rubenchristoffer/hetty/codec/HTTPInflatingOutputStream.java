@@ -0,0 +1,261 @@
+package io.github.rubenchristoffer.hetty.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Output stream that decompresses gzip or deflate data written to it
+ * and writes the decompressed bytes to another stream.
+ * Used by {@link HTTPGzipContentDecoder} and {@link HTTPDeflateContentDecoder}.
+ * @author Ruben Christoffer
+ */
+class HTTPInflatingOutputStream extends OutputStream {
+	
+	private static final int FLAG_HEADER_CRC = 2;
+	private static final int FLAG_EXTRA = 4;
+	private static final int FLAG_NAME = 8;
+	private static final int FLAG_COMMENT = 16;
+	
+	private final OutputStream bodyStream;
+	private final long maxDecodedSize;
+	private final boolean gzip;
+	
+	private final byte[] outputBuffer = new byte[8192];
+	private final byte[] field = new byte[10];
+	private final byte[] singleByte = new byte[1];
+	private final CRC32 crc = new CRC32 ();
+	
+	private Inflater inflater;
+	private Stage currentStage;
+	private int fieldCount;
+	private int fieldLength;
+	private int flags;
+	private long decodedSize;
+	private long memberSize;
+	private int completedMembers;
+	private boolean started;
+	private boolean closed;
+	
+	private enum Stage {
+		WRAPPER,
+		HEADER,
+		EXTRA_LENGTH,
+		EXTRA,
+		NAME,
+		COMMENT,
+		HEADER_CRC,
+		DATA,
+		TRAILER,
+		DONE
+	}
+	
+	HTTPInflatingOutputStream (OutputStream bodyStream, long maxDecodedSize, boolean gzip) {
+		this.bodyStream = bodyStream;
+		this.maxDecodedSize = maxDecodedSize;
+		this.gzip = gzip;
+		
+		startField (gzip ? Stage.HEADER : Stage.WRAPPER, gzip ? 10 : 2);
+	}
+	
+	@Override
+	public void write (int b) throws IOException {
+		singleByte[0] = (byte) b;
+		write (singleByte, 0, 1);
+	}
+	
+	@Override
+	public void write (byte[] buffer, int offset, int length) throws IOException {
+		int index = offset;
+		int end = offset + length;
+		
+		started |= length > 0;
+		
+		while (index < end) {
+			if (currentStage == Stage.DATA) {
+				index += inflate (buffer, index, end - index);
+			} else if (currentStage == Stage.DONE) {
+				// Bytes after the end of the compressed data are ignored
+				return;
+			} else {
+				runFieldStage (buffer[index++]);
+			}
+		}
+	}
+	
+	private int inflate (byte[] buffer, int offset, int length) throws IOException {
+		inflater.setInput (buffer, offset, length);
+		
+		try {
+			while (!inflater.finished () && !inflater.needsInput ()) {
+				int count = inflater.inflate (outputBuffer);
+				
+				if (count == 0 && inflater.needsDictionary ())
+					throw new HTTPUnsupportedContentException ("Compressed body requires a preset dictionary", null);
+				
+				writeDecoded (count);
+			}
+		} catch (DataFormatException e) {
+			throw new HTTPUnsupportedContentException ("Compressed body is corrupt", e);
+		}
+		
+		int consumed = length - inflater.getRemaining ();
+		
+		if (inflater.finished ()) {
+			inflater.end ();
+			
+			if (gzip)
+				startField (Stage.TRAILER, 8);
+			else
+				currentStage = Stage.DONE;
+		}
+		
+		return consumed;
+	}
+	
+	private void writeDecoded (int count) throws IOException {
+		decodedSize += count;
+		
+		// Guards against small bodies that decompress to huge amounts of data
+		if (decodedSize > maxDecodedSize)
+			throw new HTTPUnsupportedContentException (String.format ("Decompressed body is larger than %d bytes", maxDecodedSize), null);
+		
+		if (gzip) {
+			crc.update (outputBuffer, 0, count);
+			memberSize += count;
+		}
+		
+		bodyStream.write (outputBuffer, 0, count);
+	}
+	
+	private void runFieldStage (byte byteRead) throws IOException {
+		switch (currentStage) {
+		case NAME:
+		case COMMENT:
+			// Zero-terminated strings
+			if (byteRead == 0)
+				startNextHeaderField ();
+			
+			return;
+		case EXTRA:
+			if (++fieldCount == fieldLength)
+				startNextHeaderField ();
+			
+			return;
+		default:
+		}
+		
+		field[fieldCount++] = byteRead;
+		
+		if (fieldCount < fieldLength)
+			return;
+		
+		switch (currentStage) {
+		case WRAPPER: runWrapperStage (); break;
+		case HEADER: runHeaderStage (); break;
+		case EXTRA_LENGTH:
+			fieldLength = (field[0] & 0xFF) | (field[1] & 0xFF) << 8;
+			
+			if (fieldLength == 0)
+				startNextHeaderField ();
+			else
+				startField (Stage.EXTRA, fieldLength);
+			
+			break;
+		case HEADER_CRC: startNextHeaderField (); break;
+		case TRAILER: runTrailerStage (); break;
+		default:
+		}
+	}
+	
+	private void runWrapperStage () throws IOException {
+		// Servers send 'deflate' both with and without the zlib wrapper, which starts with a checked 2 byte header
+		boolean zlib = (field[0] & 0x0F) == 8 && (((field[0] & 0xFF) << 8) | (field[1] & 0xFF)) % 31 == 0;
+		
+		inflater = new Inflater (!zlib);
+		currentStage = Stage.DATA;
+		
+		if (inflate (field, 0, 2) != 2)
+			currentStage = Stage.DONE;
+	}
+	
+	private void runHeaderStage () {
+		if ((field[0] & 0xFF) != 0x1F || (field[1] & 0xFF) != 0x8B || field[2] != 8) {
+			// Like GZIPInputStream, anything after a complete member that is not a new member is ignored
+			if (completedMembers > 0) {
+				currentStage = Stage.DONE;
+				return;
+			}
+			
+			throw new HTTPUnsupportedContentException ("Body is not in gzip format", null);
+		}
+		
+		flags = field[3];
+		startNextHeaderField ();
+	}
+	
+	private void runTrailerStage () {
+		long expectedCrc = readLittleEndianInt (0);
+		long expectedSize = readLittleEndianInt (4);
+		
+		if (expectedCrc != crc.getValue () || expectedSize != (memberSize & 0xFFFFFFFFL))
+			throw new HTTPUnsupportedContentException ("Decompressed body does not match gzip checksum", null);
+		
+		completedMembers++;
+		startField (Stage.HEADER, 10);
+	}
+	
+	private void startNextHeaderField () {
+		if ((flags & FLAG_EXTRA) != 0) {
+			flags &= ~FLAG_EXTRA;
+			startField (Stage.EXTRA_LENGTH, 2);
+		} else if ((flags & FLAG_NAME) != 0) {
+			flags &= ~FLAG_NAME;
+			startField (Stage.NAME, 0);
+		} else if ((flags & FLAG_COMMENT) != 0) {
+			flags &= ~FLAG_COMMENT;
+			startField (Stage.COMMENT, 0);
+		} else if ((flags & FLAG_HEADER_CRC) != 0) {
+			flags &= ~FLAG_HEADER_CRC;
+			startField (Stage.HEADER_CRC, 2);
+		} else {
+			inflater = new Inflater (true);
+			crc.reset ();
+			memberSize = 0;
+			currentStage = Stage.DATA;
+		}
+	}
+	
+	private void startField (Stage stage, int length) {
+		currentStage = stage;
+		fieldCount = 0;
+		fieldLength = length;
+	}
+	
+	private long readLittleEndianInt (int offset) {
+		return (field[offset] & 0xFFL) | (field[offset + 1] & 0xFFL) << 8 | (field[offset + 2] & 0xFFL) << 16 | (field[offset + 3] & 0xFFL) << 24;
+	}
+	
+	/**
+	 * Finishes decompressing. The underlying stream is not closed.
+	 * @throws HTTPUnsupportedContentException if the compressed data ended before it was complete
+	 */
+	@Override
+	public void close () {
+		if (closed)
+			return;
+		
+		closed = true;
+		
+		if (inflater != null)
+			inflater.end ();
+		
+		boolean complete = currentStage == Stage.DONE || (currentStage == Stage.HEADER && fieldCount == 0 && completedMembers > 0);
+		
+		if (started && !complete)
+			throw new HTTPUnsupportedContentException ("Compressed body ended before it was complete", null);
+	}
+	
+}
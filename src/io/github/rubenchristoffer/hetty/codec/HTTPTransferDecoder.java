@@ -1,16 +1,25 @@
 package io.github.rubenchristoffer.hetty.codec;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * HTTP decoder responsible for decoding body when reading
  * packet from server.
+ * Decoders are fed slices of bytes through {@link #decode(OutputStream, byte[], int, int)}.
+ * Decoders that only implement {@link #decodeNext(ByteArrayOutputStream, int)}
+ * are fed one byte at a time by the default implementation.
  * @author Ruben Christoffer
  */
 public abstract class HTTPTransferDecoder {
 	
+	private ByteArrayOutputStream adapterStream;
+	private boolean adapterFinished;
+	
 	/**
 	 * Enum used for signalling the ability of this
 	 * decoder to decode a packet.
@@ -45,4 +54,97 @@ public abstract class HTTPTransferDecoder {
 	 */
 	public abstract boolean decodeNext(ByteArrayOutputStream bodyStream, int nextByte);
 	
+	/**
+	 * Decodes a slice of bytes read from server (or whatever source it might be).
+	 * The decoder stops consuming bytes when it reaches the end of the body, so
+	 * the returned count may be less than length. Bytes that were not consumed
+	 * belong to whatever comes after the body.
+	 * The default implementation feeds the bytes one at a time to 
+	 * {@link #decodeNext(ByteArrayOutputStream, int)}.
+	 * @param bodyStream is the stream decoded bytes will be written to
+	 * @param buffer is the array containing the bytes to decode
+	 * @param offset is the index of the first byte to decode
+	 * @param length is the number of bytes available for decoding
+	 * @return the number of bytes consumed by the decoder
+	 * @throws IOException if writing to bodyStream fails
+	 * @see #isFinished()
+	 */
+	public int decode (OutputStream bodyStream, byte[] buffer, int offset, int length) throws IOException {
+		ByteArrayOutputStream byteStream;
+		
+		if (bodyStream instanceof ByteArrayOutputStream) {
+			byteStream = (ByteArrayOutputStream) bodyStream;
+		} else {
+			if (adapterStream == null)
+				adapterStream = new ByteArrayOutputStream ();
+			
+			byteStream = adapterStream;
+			byteStream.reset ();
+		}
+		
+		int consumed = 0;
+		adapterFinished = false;
+		
+		while (consumed < length && !adapterFinished) {
+			adapterFinished = decodeNext (byteStream, buffer[offset + consumed] & 0xFF);
+			consumed++;
+		}
+		
+		if (byteStream != bodyStream)
+			byteStream.writeTo (bodyStream);
+		
+		return consumed;
+	}
+	
+	/**
+	 * Decodes the remaining bytes of a buffer.
+	 * The position of the buffer is advanced by the number of bytes consumed.
+	 * @param bodyStream is the stream decoded bytes will be written to
+	 * @param buffer is the buffer containing the bytes to decode
+	 * @return the number of bytes consumed by the decoder
+	 * @throws IOException if writing to bodyStream fails
+	 * @see #decode(OutputStream, byte[], int, int)
+	 */
+	public int decode (OutputStream bodyStream, ByteBuffer buffer) throws IOException {
+		int consumed;
+		
+		if (buffer.hasArray ()) {
+			consumed = decode (bodyStream, buffer.array (), buffer.arrayOffset () + buffer.position (), buffer.remaining ());
+		} else {
+			byte[] bytes = new byte[buffer.remaining ()];
+			buffer.duplicate ().get (bytes);
+			consumed = decode (bodyStream, bytes, 0, bytes.length);
+		}
+		
+		buffer.position (buffer.position () + consumed);
+		
+		return consumed;
+	}
+	
+	/**
+	 * Creates a new decoder of the same type with fresh state.
+	 * This is used when several packets are decoded at the same time, since every
+	 * packet needs its own decoder. The default implementation uses the public no-argument
+	 * constructor of the decoder class, so decoders without one should override this method.
+	 * @return a new decoder of the same type
+	 * @throws HTTPUnsupportedContentException if a new decoder could not be created
+	 */
+	public HTTPTransferDecoder newInstance () {
+		try {
+			return getClass ().getConstructor ().newInstance ();
+		} catch (ReflectiveOperationException e) {
+			throw new HTTPUnsupportedContentException (String.format ("Could not create new instance of decoder %s", getClass ().getName ()), e);
+		}
+	}
+	
+	/**
+	 * Has the decoder reached the end of the body?
+	 * This reflects the state after the last call to 
+	 * {@link #decode(OutputStream, byte[], int, int)}.
+	 * @return true if reached end of packet, false if there is more content to be read
+	 */
+	public boolean isFinished () {
+		return adapterFinished;
+	}
+	
 }
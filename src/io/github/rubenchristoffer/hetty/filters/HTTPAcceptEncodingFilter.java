@@ -0,0 +1,62 @@
+package io.github.rubenchristoffer.hetty.filters;
+
+import java.net.URL;
+
+import io.github.rubenchristoffer.hetty.HTTPPacket;
+
+/**
+ * Only filters request packets.
+ * Adds 'Accept-Encoding' header unless the request already has one, so that
+ * the server may send compressed bodies. HTTPConnection only decompresses them
+ * if content decoders have been added, such as with 
+ * {@link io.github.rubenchristoffer.hetty.HTTPConnection#addDefaultContentDecoders()}.
+ * @author Ruben Christoffer
+ */
+public class HTTPAcceptEncodingFilter extends HTTPPacketFilter {
+	
+	/**
+	 * Default value of the 'Accept-Encoding' header.
+	 */
+	public static final String DEFAULT_ACCEPT_ENCODING = "gzip, deflate";
+	
+	private String acceptEncoding;
+	
+	/**
+	 * Creates a new HTTPAcceptEncodingFilter where acceptEncoding={@link #DEFAULT_ACCEPT_ENCODING}.
+	 * @param name is the name of the filter
+	 */
+	public HTTPAcceptEncodingFilter (String name) {
+		this (name, DEFAULT_ACCEPT_ENCODING);
+	}
+	
+	/**
+	 * Creates a new HTTPAcceptEncodingFilter.
+	 * @param name is the name of the filter
+	 * @param acceptEncoding is the value of the 'Accept-Encoding' header
+	 */
+	public HTTPAcceptEncodingFilter (String name, String acceptEncoding) {
+		super (name);
+		
+		this.acceptEncoding = acceptEncoding;
+	}
+	
+	@Override
+	public void filter(HTTPPacket packet, URL url) {
+		if (!packet.isResponse() && !packet.doesHeaderExist("Accept-Encoding"))
+			packet.addHeader("Accept-Encoding", acceptEncoding);
+	}
+	
+	/**
+	 * Gets accept encoding.
+	 * @return the value used for the 'Accept-Encoding' header
+	 */
+	public String getAcceptEncoding () {
+		return acceptEncoding;
+	}
+	
+	@Override
+	public HTTPPacketFilter cloneDeep() {
+		return new HTTPAcceptEncodingFilter (name, acceptEncoding);
+	}
+	
+}
@@ -0,0 +1,89 @@
+package io.github.rubenchristoffer.hetty.filters;
+
+import java.net.URL;
+
+import io.github.rubenchristoffer.hetty.HTTPPacket;
+import io.github.rubenchristoffer.hetty.codec.HTTPContentEncoder;
+
+/**
+ * Compresses the body with a content encoder (such as gzip) while it is being sent.
+ * Sets 'Content-Encoding' header to the coding of the encoder and 'Transfer-Encoding' header to 'chunked',
+ * and removes 'Content-Length' header, since the length of the compressed body is not known up front.
+ * Bodies smaller than the minimum size, bodies that already have a 'Content-Encoding' header and
+ * HTTP/1.0 packets (which do not support chunked transfer encoding) are left untouched.
+ * This filter should come after HTTPContentFilter in the pipeline.
+ * @author Ruben Christoffer
+ */
+public class HTTPContentEncodingFilter extends HTTPPacketFilter {
+	
+	/**
+	 * Default minimum size of bodies that are compressed.
+	 */
+	public static final long DEFAULT_MINIMUM_SIZE = 1024;
+	
+	private HTTPContentEncoder contentEncoder;
+	private long minimumSize;
+	
+	/**
+	 * Creates a new HTTPContentEncodingFilter where minimumSize={@link #DEFAULT_MINIMUM_SIZE}.
+	 * @param name is the name of the filter
+	 * @param contentEncoder is the encoder used for compressing body
+	 */
+	public HTTPContentEncodingFilter (String name, HTTPContentEncoder contentEncoder) {
+		this (name, contentEncoder, DEFAULT_MINIMUM_SIZE);
+	}
+	
+	/**
+	 * Creates a new HTTPContentEncodingFilter.
+	 * @param name is the name of the filter
+	 * @param contentEncoder is the encoder used for compressing body
+	 * @param minimumSize is the minimum number of bytes in body for it to be compressed
+	 */
+	public HTTPContentEncodingFilter (String name, HTTPContentEncoder contentEncoder, long minimumSize) {
+		super (name);
+		
+		this.contentEncoder = contentEncoder;
+		this.minimumSize = minimumSize;
+	}
+	
+	@Override
+	public void filter(HTTPPacket packet, URL url) {
+		long contentLength = packet.getContentLength();
+		
+		// Bodies with unknown length are always compressed
+		if (contentLength == 0 || (contentLength != -1 && contentLength < minimumSize))
+			return;
+		
+		if (packet.doesHeaderExist("Content-Encoding") || packet.getVersion().equals("1.0"))
+			return;
+		
+		while (packet.doesHeaderExist("Content-Length"))
+			packet.removeHeader("Content-Length");
+		
+		packet.changeOrAddHeader("Content-Encoding", contentEncoder.getEncoding());
+		packet.changeOrAddHeader("Transfer-Encoding", "chunked");
+		packet.setContentEncoder(contentEncoder);
+	}
+	
+	/**
+	 * Gets content encoder.
+	 * @return the encoder used for compressing body
+	 */
+	public HTTPContentEncoder getContentEncoder () {
+		return contentEncoder;
+	}
+	
+	/**
+	 * Gets minimum size.
+	 * @return the minimum number of bytes in body for it to be compressed
+	 */
+	public long getMinimumSize () {
+		return minimumSize;
+	}
+	
+	@Override
+	public HTTPPacketFilter cloneDeep() {
+		return new HTTPContentEncodingFilter (name, contentEncoder, minimumSize);
+	}
+	
+}
@@ -1,6 +1,7 @@
 package io.github.rubenchristoffer.hetty.filters;
 
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 import io.github.rubenchristoffer.hetty.HTTPConfig;
@@ -9,6 +10,9 @@ import io.github.rubenchristoffer.hetty.HTTPPacket;
 /**
  * Sets 'Content-Length' header to number of bytes in packet body,
  * unless 'Transfer-Encoding' header exists.
+ * If the body has unknown length, 'Transfer-Encoding' header is set to 'chunked' instead.
+ * The body is converted from source charset to target charset, except external bodies which are left untouched.
+ * Nothing is converted if both charsets are the same.
  * Uses system default charset by default. 
  * @author HallaBalla
  */
@@ -42,11 +46,21 @@ public class HTTPContentFilter extends HTTPPacketFilter {
 	
 	@Override
 	public void filter (HTTPPacket packet, URL url) {
-		packet.setBody(new String(packet.getBody(), sourceCharset).getBytes(targetCharset));
+		// External bodies are sent as they are, and bodies that are already in target charset are not converted
+		if (packet.getExternalBody() == null && !sourceCharset.equals(targetCharset)) {
+			ByteBuffer converted = targetCharset.encode(sourceCharset.decode(packet.getBodyBuffer()));
+			
+			packet.setBody((byte[]) null);
+			packet.getBodyStream().write(converted.array(), converted.arrayOffset() + converted.position(), converted.remaining());
+		}
 		
 		if (!packet.doesHeaderExist("Transfer-Encoding", "Chunked")) {
-			if (packet.getBodyLength() > 0) {
-				packet.changeOrAddHeader("Content-Length", packet.getBodyLength() + "");
+			if (packet.getContentLength() == -1) {
+				// Bodies with unknown length are chunked while they are being sent
+				packet.removeHeaderIfExists("Content-Length");
+				packet.addHeader("Transfer-Encoding", "chunked");
+			} else if (packet.getContentLength() > 0) {
+				packet.changeOrAddHeader("Content-Length", packet.getContentLength() + "");
 			} else {
 				packet.changeOrAddHeader("Content-Length", "0");
 			}
@@ -40,7 +40,7 @@ public class HTTPFormDataFilter extends HTTPPacketFilter {
 			Iterator<String> keyIterator = formData.keySet().iterator();
 			
 			packet.changeOrAddHeader("content-type", "application/x-www-form-urlencoded");
-			packet.getBodyStream().reset();
+			packet.setBody((byte[]) null);
 			
 			try {
 				while (keyIterator.hasNext()) {
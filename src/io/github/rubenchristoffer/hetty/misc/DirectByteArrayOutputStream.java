@@ -0,0 +1,60 @@
+package io.github.rubenchristoffer.hetty.misc;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ByteArrayOutputStream that gives access to its content without copying it.
+ * This is used for writing packets to sockets straight from the buffers they were built in.
+ * @author Ruben Christoffer
+ */
+public class DirectByteArrayOutputStream extends ByteArrayOutputStream {
+	
+	/**
+	 * Creates a new DirectByteArrayOutputStream with the default initial capacity.
+	 */
+	public DirectByteArrayOutputStream () {
+		super ();
+	}
+	
+	/**
+	 * Creates a new DirectByteArrayOutputStream.
+	 * @param size is the initial capacity
+	 */
+	public DirectByteArrayOutputStream (int size) {
+		super (size);
+	}
+	
+	/**
+	 * Gets the internal array of this stream without copying it.
+	 * Only the first {@link #size()} bytes are content.
+	 * The array is only valid until the stream is written to or reset.
+	 * @return the internal array
+	 */
+	public synchronized byte[] getBuffer () {
+		return buf;
+	}
+	
+	/**
+	 * Wraps the content of this stream in a read-only buffer without copying it.
+	 * The buffer is only valid until the stream is written to or reset.
+	 * @return read-only buffer containing the bytes written so far
+	 */
+	public synchronized ByteBuffer toByteBuffer () {
+		return ByteBuffer.wrap (buf, 0, count).asReadOnlyBuffer ();
+	}
+	
+	/**
+	 * Wraps the content of a stream in a buffer, without copying it
+	 * if the stream is a DirectByteArrayOutputStream.
+	 * @param stream is the stream you want the content of
+	 * @return read-only buffer containing the bytes written to stream
+	 */
+	public static ByteBuffer toByteBuffer (ByteArrayOutputStream stream) {
+		if (stream instanceof DirectByteArrayOutputStream)
+			return ((DirectByteArrayOutputStream) stream).toByteBuffer ();
+		
+		return ByteBuffer.wrap (stream.toByteArray ()).asReadOnlyBuffer ();
+	}
+	
+}
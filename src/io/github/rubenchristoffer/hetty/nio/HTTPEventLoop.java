@@ -0,0 +1,186 @@
+package io.github.rubenchristoffer.hetty.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.github.rubenchristoffer.hetty.HTTPConnectionException;
+
+/**
+ * Thread with a selector that drives many exchanges at the same time.
+ * @author Ruben Christoffer
+ */
+class HTTPEventLoop implements Runnable {
+
+	// Timeouts are checked this often, so exchanges may time out this much later than their timeout
+	private static final long TIMEOUT_CHECK_INTERVAL = 100;
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<HTTPExchange> newExchanges = new ConcurrentLinkedQueue<HTTPExchange> ();
+	private final ConcurrentLinkedQueue<HTTPExchange> cancelledExchanges = new ConcurrentLinkedQueue<HTTPExchange> ();
+	private final Thread thread;
+	private volatile boolean running = true;
+	private long nextTimeoutCheck;
+
+	HTTPEventLoop (String name) throws IOException {
+		selector = Selector.open ();
+
+		thread = new Thread (this, name);
+		thread.setDaemon (true);
+		thread.start ();
+	}
+
+	/**
+	 * Hands exchange over to the event loop thread.
+	 * @param exchange is the exchange you want to start
+	 */
+	void submit (HTTPExchange exchange) {
+		if (!running) {
+			exchange.fail (new HTTPConnectionException ("Engine is closed", null));
+			return;
+		}
+
+		newExchanges.add (exchange);
+		selector.wakeup ();
+	}
+
+	/**
+	 * Hands a cancelled exchange over to the event loop thread, which closes its channel and calls its callback.
+	 * If the event loop has stopped, this is done on the calling thread instead.
+	 * @param exchange is the exchange that was cancelled
+	 */
+	void cancel (HTTPExchange exchange) {
+		cancelledExchanges.add (exchange);
+		selector.wakeup ();
+
+		// The loop may have finished its last round before the exchange was added
+		if (!running)
+			finishCancelled ();
+	}
+
+	@Override
+	public void run () {
+		try {
+			while (running) {
+				selector.select (TIMEOUT_CHECK_INTERVAL);
+
+				HTTPExchange exchange;
+
+				while ((exchange = newExchanges.poll ()) != null)
+					start (exchange);
+
+				finishCancelled ();
+
+				Iterator<SelectionKey> iterator = selector.selectedKeys ().iterator ();
+
+				while (iterator.hasNext ()) {
+					SelectionKey key = iterator.next ();
+					iterator.remove ();
+
+					if (key.isValid ())
+						handle ((HTTPExchange) key.attachment ());
+				}
+
+				checkTimeouts ();
+			}
+		} catch (IOException e) {
+			// Selector is broken, so no exchange on this loop can continue
+		} finally {
+			// Exchanges submitted after this fail right away instead of waiting forever
+			running = false;
+			failAll ();
+		}
+	}
+
+	// A failing exchange or callback must never stop the loop, since other exchanges depend on it
+	private void start (HTTPExchange exchange) {
+		try {
+			exchange.start (selector);
+		} catch (RuntimeException e) {
+			fail (exchange, new HTTPConnectionException ("Something went wrong during HTTP exchange", e));
+		}
+	}
+
+	private void finishCancelled () {
+		HTTPExchange exchange;
+
+		while ((exchange = cancelledExchanges.poll ()) != null) {
+			try {
+				exchange.finishCancel ();
+			} catch (RuntimeException e) {
+				// Thrown by the callback, and the exchange is done anyway
+			}
+		}
+	}
+
+	private void checkTimeouts () {
+		long now = System.nanoTime ();
+
+		if (now - nextTimeoutCheck < 0)
+			return;
+
+		nextTimeoutCheck = now + TimeUnit.MILLISECONDS.toNanos (TIMEOUT_CHECK_INTERVAL);
+
+		for (SelectionKey key : selector.keys ()) {
+			if (!key.isValid () || !(key.attachment () instanceof HTTPExchange))
+				continue;
+
+			HTTPExchange exchange = (HTTPExchange) key.attachment ();
+
+			try {
+				exchange.checkTimeout (now);
+			} catch (RuntimeException e) {
+				fail (exchange, new HTTPConnectionException ("Something went wrong during HTTP exchange", e));
+			}
+		}
+	}
+
+	private void handle (HTTPExchange exchange) {
+		try {
+			exchange.handle ();
+		} catch (RuntimeException e) {
+			fail (exchange, new HTTPConnectionException ("Something went wrong during HTTP exchange", e));
+		}
+	}
+
+	/**
+	 * Stops the event loop and fails all exchanges that are not done.
+	 */
+	void close () {
+		running = false;
+		selector.wakeup ();
+	}
+
+	private static void fail (HTTPExchange exchange, HTTPConnectionException exception) {
+		try {
+			exchange.fail (exception);
+		} catch (RuntimeException e) {
+			// Thrown by the callback, and the exchange is done anyway
+		}
+	}
+
+	private void failAll () {
+		HTTPConnectionException exception = new HTTPConnectionException ("Engine was closed before exchange was done", null);
+		HTTPExchange exchange;
+
+		while ((exchange = newExchanges.poll ()) != null)
+			fail (exchange, exception);
+
+		finishCancelled ();
+
+		for (SelectionKey key : selector.keys ()) {
+			if (key.attachment () instanceof HTTPExchange)
+				fail ((HTTPExchange) key.attachment (), exception);
+		}
+
+		try {
+			selector.close ();
+		} catch (IOException e) {
+			// Nothing more can be done
+		}
+	}
+
+}
@@ -0,0 +1,430 @@
+package io.github.rubenchristoffer.hetty.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.github.rubenchristoffer.hetty.HTTPConnectTimeoutException;
+import io.github.rubenchristoffer.hetty.HTTPConnectionException;
+import io.github.rubenchristoffer.hetty.HTTPException;
+import io.github.rubenchristoffer.hetty.HTTPMessageListener;
+import io.github.rubenchristoffer.hetty.HTTPMessageParser;
+import io.github.rubenchristoffer.hetty.HTTPPacket;
+import io.github.rubenchristoffer.hetty.HTTPRawPacket;
+import io.github.rubenchristoffer.hetty.HTTPReadTimeoutException;
+import io.github.rubenchristoffer.hetty.HTTPResponse;
+import io.github.rubenchristoffer.hetty.HTTPTLSConfig;
+import io.github.rubenchristoffer.hetty.codec.HTTPTransferDecoder;
+
+/**
+ * A single request / response exchange handled by an event loop.
+ * The exchange opens its own non-blocking channel, writes the request,
+ * reads the response and closes the channel again.
+ * The host is resolved before the exchange is submitted to the event loop, so
+ * the event loop never waits for name resolution.
+ * It is also the future that is returned to the caller, and the listener
+ * of the parser that parses the response as bytes arrive.
+ * @author Ruben Christoffer
+ */
+class HTTPExchange implements Future<HTTPResponse>, HTTPMessageListener {
+
+	private enum Stage {
+		CONNECTING,
+		HANDSHAKING,
+		WRITING,
+		READING
+	}
+
+	private final URL url;
+	private final boolean bodyExpected;
+	private final ByteBuffer[] requestBuffers;
+	private final HTTPTLSConfig tlsConfig;
+	private final HTTPResponseCallback callback;
+	private final HTTPEventLoop eventLoop;
+	private final int connectTimeout;
+	private final int idleTimeout;
+
+	private InetAddress[] addresses;
+	private int addressIndex;
+	private int port;
+	private Selector selector;
+	private long timeoutAt;
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private HTTPTLSSession tlsSession;
+	private ByteBuffer readBuffer;
+	private Stage stage;
+
+	private final HTTPMessageParser parser;
+	private HTTPResponse response;
+
+	private final AtomicBoolean done = new AtomicBoolean ();
+	private final CountDownLatch doneLatch = new CountDownLatch (1);
+	private volatile HTTPResponse result;
+	private volatile HTTPException failure;
+	private volatile boolean cancelled;
+
+	HTTPExchange (URL url, HTTPRawPacket request, boolean bodyExpected, List<HTTPTransferDecoder> supportedTransferDecoders, 
+			HTTPTLSConfig tlsConfig, int connectTimeout, int idleTimeout, HTTPEventLoop eventLoop, HTTPResponseCallback callback) {
+		this.url = url;
+		this.bodyExpected = bodyExpected;
+		this.requestBuffers = request.toByteBuffers ();
+		this.parser = new HTTPMessageParser (this, supportedTransferDecoders);
+		this.tlsConfig = tlsConfig;
+		this.connectTimeout = connectTimeout;
+		this.idleTimeout = idleTimeout;
+		this.eventLoop = eventLoop;
+		this.callback = callback;
+	}
+
+	/**
+	 * Sets the resolved addresses of the host, which are tried in turn until one of them accepts the connection.
+	 * Must be called before the exchange is submitted to an event loop.
+	 * @param addresses is one or more addresses of the host of the URL
+	 */
+	void setAddresses (InetAddress[] addresses) {
+		this.addresses = addresses;
+	}
+
+	/**
+	 * Opens channel and registers it with selector.
+	 * Called on the event loop thread.
+	 * @param selector is the selector of the event loop
+	 */
+	void start (Selector selector) {
+		if (done.get ())
+			return;
+
+		boolean https = url.getProtocol ().equalsIgnoreCase ("https");
+		port = url.getPort () == -1 ? (https ? 443 : 80) : url.getPort ();
+		this.selector = selector;
+
+		try {
+			if (https)
+				tlsSession = new HTTPTLSSession (tlsConfig.createEngine (url.getHost (), port));
+			else
+				readBuffer = ByteBuffer.allocate (16384);
+
+			connect ();
+		} catch (IOException e) {
+			fail (new HTTPConnectionException (String.format ("Could not open connection on port %d. Perhaps URL is wrong?", port), e));
+		} catch (RuntimeException e) {
+			// Such as UnresolvedAddressException for unknown hosts
+			fail (new HTTPConnectionException (String.format ("Could not open connection to %s on port %d. Perhaps URL is wrong?", url.getHost (), port), e));
+		}
+	}
+
+	private void connect () throws IOException {
+		channel = SocketChannel.open ();
+		channel.configureBlocking (false);
+		channel.setOption (StandardSocketOptions.TCP_NODELAY, true);
+
+		stage = Stage.CONNECTING;
+		key = channel.register (selector, SelectionKey.OP_CONNECT, this);
+		timeoutAt = getTimeoutAt (connectTimeout);
+
+		if (channel.connect (new InetSocketAddress (addresses[addressIndex], port)))
+			handle ();
+	}
+
+	/**
+	 * Continues the exchange when the channel is ready.
+	 * Called on the event loop thread.
+	 */
+	void handle () {
+		if (done.get ())
+			return;
+
+		// The connect timeout covers the TLS handshake, and the idle timeout restarts on every event after that
+		if (stage == Stage.WRITING || stage == Stage.READING)
+			timeoutAt = getTimeoutAt (idleTimeout);
+
+		try {
+			switch (stage) {
+			case CONNECTING: runConnectingStage (); break;
+			case HANDSHAKING: runHandshakingStage (); break;
+			case WRITING: runWritingStage (); break;
+			case READING: runReadingStage (); break;
+			}
+		} catch (HTTPException e) {
+			fail (e);
+		} catch (IOException e) {
+			fail (new HTTPConnectionException ("Something went wrong during HTTP exchange", e));
+		} catch (RuntimeException e) {
+			fail (new HTTPConnectionException ("Something went wrong during HTTP exchange", e));
+		}
+	}
+
+	/**
+	 * Fails the exchange if it has been connecting or idle for too long.
+	 * Called on the event loop thread.
+	 * @param now is the current {@link System#nanoTime()}
+	 */
+	void checkTimeout (long now) {
+		if (timeoutAt == 0 || now - timeoutAt < 0)
+			return;
+
+		if (stage == Stage.CONNECTING || stage == Stage.HANDSHAKING) {
+			fail (new HTTPConnectTimeoutException (String.format ("Timed out connecting to %s:%d", url.getHost (), port), null));
+		} else {
+			fail (new HTTPReadTimeoutException (String.format ("Nothing was sent or received for %d ms", idleTimeout), null));
+		}
+	}
+
+	private static long getTimeoutAt (int timeout) {
+		return timeout > 0 ? System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (timeout) : 0;
+	}
+
+	private void runConnectingStage () throws IOException {
+		boolean connected;
+
+		try {
+			connected = channel.finishConnect ();
+		} catch (IOException e) {
+			if (addressIndex + 1 >= addresses.length)
+				throw e;
+
+			// Try the next address of host, like HTTPConnection does
+			key.cancel ();
+			channel.close ();
+			addressIndex++;
+			connect ();
+
+			return;
+		}
+
+		if (!connected)
+			return;
+
+		if (tlsSession != null) {
+			stage = Stage.HANDSHAKING;
+			runHandshakingStage ();
+		} else {
+			stage = Stage.WRITING;
+			timeoutAt = getTimeoutAt (idleTimeout);
+			runWritingStage ();
+		}
+	}
+
+	private void runHandshakingStage () throws IOException {
+		int operation = tlsSession.handshake (channel);
+
+		if (operation != 0) {
+			key.interestOps (operation);
+		} else {
+			stage = Stage.WRITING;
+			timeoutAt = getTimeoutAt (idleTimeout);
+			runWritingStage ();
+		}
+	}
+
+	private void runWritingStage () throws IOException {
+		boolean written;
+
+		if (tlsSession != null) {
+			written = tlsSession.write (channel, requestBuffers);
+		} else {
+			channel.write (requestBuffers);
+			written = !HTTPTLSSession.hasRemaining (requestBuffers);
+		}
+
+		if (written) {
+			stage = Stage.READING;
+			key.interestOps (SelectionKey.OP_READ);
+		} else {
+			key.interestOps (SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void runReadingStage () throws IOException {
+		boolean open;
+		ByteBuffer data;
+
+		if (tlsSession != null) {
+			open = tlsSession.read (channel);
+			data = tlsSession.getApplicationBuffer ();
+		} else {
+			open = channel.read (readBuffer) >= 0;
+			data = readBuffer;
+		}
+
+		data.flip ();
+
+		if (!done.get ())
+			parser.parse (data);
+
+		data.clear ();
+
+		if (!open && !done.get ()) {
+			// Completes a response whose body ends with the connection
+			parser.endOfStream ();
+
+			if (!done.get ())
+				throw new HTTPConnectionException ("Connection was closed by server before response was complete", null);
+		}
+	}
+
+	@Override
+	public void startLine (String startLine) {}
+
+	@Override
+	public void header (String name, String value) {}
+
+	@Override
+	public boolean headersComplete (HTTPPacket packet) {
+		int statusCode = ((HTTPResponse) packet).getStatusCode ();
+
+		// Skip interim responses such as '100 Continue'
+		if (statusCode / 100 == 1 && statusCode != 101)
+			return false;
+
+		response = (HTTPResponse) packet;
+
+		return bodyExpected;
+	}
+
+	@Override
+	public void bodyChunk (ByteBuffer chunk) {
+		if (chunk.hasArray ()) {
+			response.getBodyStream ().write (chunk.array (), chunk.arrayOffset () + chunk.position (), chunk.remaining ());
+		} else {
+			byte[] bytes = new byte[chunk.remaining ()];
+			chunk.get (bytes);
+			response.getBodyStream ().write (bytes, 0, bytes.length);
+		}
+	}
+
+	@Override
+	public void messageComplete () {
+		if (response != null)
+			complete ();
+	}
+
+	private void complete () {
+		if (!done.compareAndSet (false, true))
+			return;
+
+		closeChannel ();
+		result = response;
+		doneLatch.countDown ();
+
+		if (callback != null)
+			callback.completed (response);
+	}
+
+	/**
+	 * Fails the exchange and closes channel.
+	 * @param exception is the reason the exchange failed
+	 * @return true if the exchange failed, false if it was already done
+	 */
+	boolean fail (HTTPException exception) {
+		if (!done.compareAndSet (false, true))
+			return false;
+
+		closeChannel ();
+		failure = exception;
+		doneLatch.countDown ();
+
+		if (callback != null)
+			callback.failed (exception);
+
+		return true;
+	}
+
+	private void closeChannel () {
+		if (tlsSession != null)
+			tlsSession.close ();
+
+		if (key != null)
+			key.cancel ();
+
+		if (channel != null) {
+			try {
+				channel.close ();
+			} catch (IOException e) {
+				// Exchange is done anyway
+			}
+		}
+	}
+
+	/**
+	 * Cancels the exchange right away, but leaves closing the channel and calling the callback 
+	 * to the event loop thread, which may be using the channel at the same time.
+	 */
+	@Override
+	public boolean cancel (boolean mayInterruptIfRunning) {
+		if (!done.compareAndSet (false, true))
+			return false;
+
+		// Set before the latch is released, so that isCancelled() is true as soon as get() throws
+		cancelled = true;
+		failure = new HTTPConnectionException ("Exchange was cancelled", new CancellationException ());
+		doneLatch.countDown ();
+
+		eventLoop.cancel (this);
+
+		return true;
+	}
+
+	/**
+	 * Closes channel and calls the callback of a cancelled exchange.
+	 * Called on the event loop thread.
+	 */
+	void finishCancel () {
+		closeChannel ();
+
+		if (callback != null)
+			callback.failed (failure);
+	}
+
+	@Override
+	public boolean isCancelled () {
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone () {
+		return doneLatch.getCount () == 0;
+	}
+
+	@Override
+	public HTTPResponse get () throws InterruptedException, ExecutionException {
+		doneLatch.await ();
+
+		return getResult ();
+	}
+
+	@Override
+	public HTTPResponse get (long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!doneLatch.await (timeout, unit))
+			throw new TimeoutException ();
+
+		return getResult ();
+	}
+
+	private HTTPResponse getResult () throws ExecutionException {
+		if (failure != null && failure.getCause () instanceof CancellationException)
+			throw new CancellationException ();
+
+		if (failure != null)
+			throw new ExecutionException (failure);
+
+		return result;
+	}
+
+}
@@ -0,0 +1,27 @@
+package io.github.rubenchristoffer.hetty.nio;
+
+import io.github.rubenchristoffer.hetty.HTTPException;
+import io.github.rubenchristoffer.hetty.HTTPResponse;
+
+/**
+ * Callback used by {@link HTTPSelectorEngine} for signalling that
+ * an exchange has completed.
+ * Callbacks are called on an event loop thread, so they should
+ * return quickly and never block.
+ * @author Ruben Christoffer
+ */
+public interface HTTPResponseCallback {
+
+	/**
+	 * Called when the entire response has been received.
+	 * @param response is the response received from server
+	 */
+	public void completed (HTTPResponse response);
+	
+	/**
+	 * Called when the exchange failed.
+	 * @param exception is the reason the exchange failed
+	 */
+	public void failed (HTTPException exception);
+	
+}
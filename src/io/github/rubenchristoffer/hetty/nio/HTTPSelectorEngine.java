@@ -0,0 +1,323 @@
+package io.github.rubenchristoffer.hetty.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import javax.net.ssl.SSLContext;
+
+import io.github.rubenchristoffer.hetty.HTTPConnectionException;
+import io.github.rubenchristoffer.hetty.HTTPException;
+import io.github.rubenchristoffer.hetty.HTTPExecutors;
+import io.github.rubenchristoffer.hetty.HTTPRequest;
+import io.github.rubenchristoffer.hetty.HTTPResolver;
+import io.github.rubenchristoffer.hetty.HTTPResponse;
+import io.github.rubenchristoffer.hetty.HTTPTLSConfig;
+import io.github.rubenchristoffer.hetty.codec.HTTPChunkedTransferDecoder;
+import io.github.rubenchristoffer.hetty.codec.HTTPContentLengthTransferDecoder;
+import io.github.rubenchristoffer.hetty.codec.HTTPTransferDecoder;
+import io.github.rubenchristoffer.hetty.validation.ArgumentValidator;
+
+/**
+ * Client engine that sends requests using non-blocking socket channels.
+ * A small number of event loop threads each drive many connections at the same time
+ * using a selector, so there is no need for one thread per request.
+ * HTTPS is supported through an SSLEngine.
+ * Hosts are resolved with a HTTPResolver on the executor of the engine, since name
+ * resolution may block and would otherwise stall every exchange on the event loop.
+ * Every exchange uses its own connection, which is closed when the response has been read.
+ * Packets are generated and parsed the same way as with HTTPConnection, and 
+ * bodies are decoded using the same transfer decoders.
+ * @author Ruben Christoffer
+ */
+public class HTTPSelectorEngine {
+
+	private final HTTPEventLoop[] eventLoops;
+	private final AtomicInteger nextEventLoop = new AtomicInteger ();
+	private final CopyOnWriteArrayList<HTTPTransferDecoder> supportedTransferDecoders = new CopyOnWriteArrayList<HTTPTransferDecoder> ();
+	private final HTTPTLSConfig tlsConfig;
+	private volatile HTTPResolver resolver = HTTPResolver.getDefault ();
+	private volatile Executor executor = HTTPExecutors.getDefaultExecutor ();
+	private volatile int connectTimeout;
+	private volatile int idleTimeout;
+
+	/**
+	 * Creates a new HTTPSelectorEngine with one event loop per available processor.
+	 * @throws HTTPConnectionException if the event loops could not be started
+	 */
+	public HTTPSelectorEngine () {
+		this (Runtime.getRuntime ().availableProcessors ());
+	}
+
+	/**
+	 * Creates a new HTTPSelectorEngine that uses the default TLS config.
+	 * @param eventLoopCount is the number of event loop threads
+	 * @throws HTTPConnectionException if the event loops could not be started
+	 * @throws IllegalArgumentException if eventLoopCount is less than 1
+	 */
+	public HTTPSelectorEngine (int eventLoopCount) {
+		this (eventLoopCount, HTTPTLSConfig.getDefault ());
+	}
+
+	/**
+	 * Creates a new HTTPSelectorEngine.
+	 * @param eventLoopCount is the number of event loop threads
+	 * @param sslContext is the context used for creating SSLEngines for HTTPS connections
+	 * @throws HTTPConnectionException if the event loops could not be started
+	 * @throws IllegalArgumentException if eventLoopCount is less than 1 or sslContext is null
+	 */
+	public HTTPSelectorEngine (int eventLoopCount, SSLContext sslContext) {
+		this (eventLoopCount, new HTTPTLSConfig (ArgumentValidator.requireNonNullArgument (sslContext, "sslContext cannot be null")));
+	}
+
+	/**
+	 * Creates a new HTTPSelectorEngine.
+	 * @param eventLoopCount is the number of event loop threads
+	 * @param tlsConfig is the config used for creating SSLEngines for HTTPS connections
+	 * @throws HTTPConnectionException if the event loops could not be started
+	 * @throws IllegalArgumentException if eventLoopCount is less than 1 or tlsConfig is null
+	 */
+	public HTTPSelectorEngine (int eventLoopCount, HTTPTLSConfig tlsConfig) {
+		if (eventLoopCount < 1)
+			throw new IllegalArgumentException ("eventLoopCount must be at least 1");
+
+		this.tlsConfig = ArgumentValidator.requireNonNullArgument (tlsConfig, "tlsConfig cannot be null");
+		this.eventLoops = new HTTPEventLoop[eventLoopCount];
+
+		// Always add content length decoder first
+		supportedTransferDecoders.add (new HTTPContentLengthTransferDecoder ());
+		supportedTransferDecoders.add (new HTTPChunkedTransferDecoder ());
+
+		try {
+			for (int i = 0; i < eventLoopCount; i++)
+				eventLoops[i] = new HTTPEventLoop ("hetty-event-loop-" + i);
+		} catch (IOException e) {
+			close ();
+			throw new HTTPConnectionException ("Could not open selector for event loop", e);
+		}
+	}
+
+	/**
+	 * Sends a request without callback. Filters are applied.
+	 * @param url is the URL you want to send request to
+	 * @param request is the request you want to send
+	 * @return future that is done when the response has been received
+	 * @see #send(URL, HTTPRequest, HTTPResponseCallback)
+	 */
+	public Future<HTTPResponse> send (URL url, HTTPRequest request) {
+		return send (url, request, null);
+	}
+
+	/**
+	 * Sends a request on one of the event loops. This method never blocks.
+	 * The packet is generated on the calling thread with filters applied, so
+	 * the request may be changed afterwards. The host is resolved on the executor 
+	 * of the engine before the exchange is handed to the event loop.
+	 * Failures are reported through the callback and the future, never thrown.
+	 * @param url is the URL you want to send request to
+	 * @param request is the request you want to send
+	 * @param callback is called when the exchange is done, or null if not needed. This happens on the event loop 
+	 * thread, except for failed name resolution, which is reported on the executor of the engine. 
+	 * Cancelling the returned future also calls the callback on the event loop thread
+	 * @return future that is done when the response has been received
+	 * @throws IllegalArgumentException if url or request is null
+	 */
+	public Future<HTTPResponse> send (URL url, HTTPRequest request, HTTPResponseCallback callback) {
+		ArgumentValidator.requireNonNullArgument (url, "url cannot be null");
+		ArgumentValidator.requireNonNullArgument (request, "request cannot be null");
+
+		final HTTPEventLoop eventLoop = eventLoops[(nextEventLoop.getAndIncrement () & Integer.MAX_VALUE) % eventLoops.length];
+		final HTTPExchange exchange = new HTTPExchange (url, request.generatePacket (url, true), 
+				!request.getRequestMethod ().equalsIgnoreCase ("HEAD"), supportedTransferDecoders, tlsConfig, 
+				connectTimeout, idleTimeout, eventLoop, callback);
+		final HTTPResolver resolver = this.resolver;
+		final String host = url.getHost ();
+
+		Runnable resolve = new Runnable () {
+			@Override
+			public void run () {
+				if (exchange.isDone ())
+					return;
+
+				InetAddress[] addresses;
+
+				try {
+					addresses = resolver.resolve (host);
+				} catch (UnknownHostException e) {
+					exchange.fail (new HTTPConnectionException (String.format ("Could not resolve host '%s'. Perhaps URL is wrong?", host), e));
+					return;
+				} catch (RuntimeException e) {
+					exchange.fail (new HTTPConnectionException (String.format ("Could not resolve host '%s'", host), e));
+					return;
+				}
+
+				exchange.setAddresses (addresses);
+				eventLoop.submit (exchange);
+			}
+		};
+
+		try {
+			executor.execute (resolve);
+		} catch (RuntimeException e) {
+			exchange.fail (new HTTPConnectionException ("Executor did not accept name resolution", e));
+		}
+
+		return exchange;
+	}
+
+	/**
+	 * Sends a request on one of the event loops and returns a CompletableFuture.
+	 * This never blocks and no thread is waiting for the response.
+	 * Dependent stages added without an executor run on the event loop thread, so
+	 * they should not block.
+	 * @param url is the URL you want to send request to
+	 * @param request is the request you want to send
+	 * @return future that completes with the response, or exceptionally with a HTTPException
+	 * @see #send(URL, HTTPRequest, HTTPResponseCallback)
+	 */
+	public CompletableFuture<HTTPResponse> sendAsync (URL url, HTTPRequest request) {
+		final CompletableFuture<HTTPResponse> future = new CompletableFuture<HTTPResponse> ();
+
+		final Future<HTTPResponse> exchange = send (url, request, new HTTPResponseCallback () {
+			@Override
+			public void completed (HTTPResponse response) {
+				future.complete (response);
+			}
+
+			@Override
+			public void failed (HTTPException exception) {
+				future.completeExceptionally (exception);
+			}
+		});
+
+		// Cancelling the returned future also cancels the exchange
+		future.whenComplete (new BiConsumer<HTTPResponse, Throwable> () {
+			@Override
+			public void accept (HTTPResponse response, Throwable throwable) {
+				if (future.isCancelled ())
+					exchange.cancel (true);
+			}
+		});
+
+		return future;
+	}
+
+	/**
+	 * Adds a new supported transfer decoder.
+	 * Every exchange gets its own decoder from {@link HTTPTransferDecoder#newInstance()}.
+	 * @param transferDecoder is the decoder you want the engine to support
+	 */
+	public void addSupportedTransferDecoder (HTTPTransferDecoder transferDecoder) {
+		supportedTransferDecoders.add (ArgumentValidator.requireNonNullArgument (transferDecoder, "transferDecoder cannot be null"));
+	}
+
+	/**
+	 * Gets supported transfer decoders.
+	 * @return read-only list of the supported decoders
+	 */
+	public List<HTTPTransferDecoder> getSupportedTransferDecoders () {
+		return Collections.unmodifiableList (supportedTransferDecoders);
+	}
+
+	/**
+	 * Sets the resolver used for looking up hosts from now on.
+	 * By default this is {@link HTTPResolver#getDefault()}.
+	 * @param resolver is the resolver you want to use
+	 * @throws IllegalArgumentException if resolver is null
+	 */
+	public void setResolver (HTTPResolver resolver) {
+		this.resolver = ArgumentValidator.requireNonNullArgument (resolver, "resolver cannot be null");
+	}
+
+	/**
+	 * Gets the resolver used for looking up hosts.
+	 * @return the resolver
+	 */
+	public HTTPResolver getResolver () {
+		return resolver;
+	}
+
+	/**
+	 * Sets the executor that hosts are resolved on, so that blocking lookups never run on an event loop.
+	 * By default this is {@link HTTPExecutors#getDefaultExecutor()}.
+	 * @param executor is the executor you want to use
+	 * @throws IllegalArgumentException if executor is null
+	 */
+	public void setExecutor (Executor executor) {
+		this.executor = ArgumentValidator.requireNonNullArgument (executor, "executor cannot be null");
+	}
+
+	/**
+	 * Gets the executor that hosts are resolved on.
+	 * @return the executor
+	 */
+	public Executor getExecutor () {
+		return executor;
+	}
+
+	/**
+	 * Sets the connect timeout of exchanges sent from now on, which is the maximum time spent
+	 * connecting to each address of the server (and doing the TLS handshake for HTTPS).
+	 * Timeouts are checked about every 100 ms.
+	 * @param connectTimeout is the timeout in milliseconds, where 0 means no timeout (default)
+	 * @throws IllegalArgumentException if connectTimeout is negative
+	 * @see io.github.rubenchristoffer.hetty.HTTPConnectTimeoutException
+	 */
+	public void setConnectTimeout (int connectTimeout) {
+		if (connectTimeout < 0)
+			throw new IllegalArgumentException ("connectTimeout cannot be negative");
+
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Gets the connect timeout.
+	 * @return the timeout in milliseconds, where 0 means no timeout
+	 */
+	public int getConnectTimeout () {
+		return connectTimeout;
+	}
+
+	/**
+	 * Sets the idle timeout of exchanges sent from now on, which is the maximum time
+	 * an exchange may go without sending or receiving anything once connected.
+	 * Timeouts are checked about every 100 ms.
+	 * @param idleTimeout is the timeout in milliseconds, where 0 means no timeout (default)
+	 * @throws IllegalArgumentException if idleTimeout is negative
+	 * @see io.github.rubenchristoffer.hetty.HTTPReadTimeoutException
+	 */
+	public void setIdleTimeout (int idleTimeout) {
+		if (idleTimeout < 0)
+			throw new IllegalArgumentException ("idleTimeout cannot be negative");
+
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Gets the idle timeout.
+	 * @return the timeout in milliseconds, where 0 means no timeout
+	 */
+	public int getIdleTimeout () {
+		return idleTimeout;
+	}
+
+	/**
+	 * Stops all event loops. Exchanges that are not done will fail.
+	 */
+	public void close () {
+		for (HTTPEventLoop eventLoop : eventLoops) {
+			if (eventLoop != null)
+				eventLoop.close ();
+		}
+	}
+
+}
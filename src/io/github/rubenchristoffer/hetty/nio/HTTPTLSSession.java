@@ -0,0 +1,227 @@
+package io.github.rubenchristoffer.hetty.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS layer on top of a non-blocking socket channel using an SSLEngine.
+ * Keeps track of encrypted bytes that are waiting to be written
+ * and decrypted bytes that are waiting to be consumed.
+ * @author Ruben Christoffer
+ */
+class HTTPTLSSession {
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate (0);
+
+	private final SSLEngine engine;
+
+	private ByteBuffer netIn;
+	private ByteBuffer netOut;
+	private ByteBuffer appIn;
+
+	HTTPTLSSession (SSLEngine engine) throws SSLException {
+		this.engine = engine;
+
+		engine.setUseClientMode (true);
+
+		netIn = ByteBuffer.allocate (engine.getSession ().getPacketBufferSize ());
+		netOut = ByteBuffer.allocate (engine.getSession ().getPacketBufferSize ());
+		appIn = ByteBuffer.allocate (engine.getSession ().getApplicationBufferSize ());
+
+		// netOut is always kept ready for draining
+		netOut.flip ();
+
+		engine.beginHandshake ();
+	}
+
+	/**
+	 * Continues the handshake as far as possible without blocking.
+	 * @param channel is the channel connected to server
+	 * @return 0 if the handshake has finished, otherwise the selection key operation to wait for
+	 * @throws IOException if something goes wrong during handshake
+	 */
+	int handshake (SocketChannel channel) throws IOException {
+		if (!flush (channel))
+			return SelectionKey.OP_WRITE;
+
+		while (true) {
+			HandshakeStatus status = engine.getHandshakeStatus ();
+
+			switch (status) {
+			case FINISHED:
+			case NOT_HANDSHAKING: return 0;
+			case NEED_TASK: runDelegatedTasks (); break;
+			case NEED_WRAP:
+				wrap (EMPTY);
+
+				if (!flush (channel))
+					return SelectionKey.OP_WRITE;
+
+				break;
+			default:
+				if (!unwrap (channel, true))
+					return SelectionKey.OP_READ;
+			}
+		}
+	}
+
+	/**
+	 * Encrypts and writes bytes to the channel without blocking.
+	 * @param channel is the channel connected to server
+	 * @param sources contains the bytes you want to write, in order
+	 * @return true if all bytes have been written, false if the channel is not ready for more bytes
+	 * @throws IOException if something goes wrong writing to channel
+	 */
+	boolean write (SocketChannel channel, ByteBuffer[] sources) throws IOException {
+		while (true) {
+			if (!flush (channel))
+				return false;
+
+			if (!hasRemaining (sources))
+				return true;
+
+			wrap (sources);
+		}
+	}
+
+	/**
+	 * Are there any bytes left in buffers?
+	 * @param buffers is the buffers you want to check
+	 * @return true if any of the buffers has remaining bytes
+	 */
+	static boolean hasRemaining (ByteBuffer[] buffers) {
+		for (ByteBuffer buffer : buffers) {
+			if (buffer.hasRemaining ())
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Reads and decrypts bytes from the channel without blocking.
+	 * Decrypted bytes are added to the application buffer.
+	 * @param channel is the channel connected to server
+	 * @return false if the server has closed the connection, true otherwise
+	 * @throws IOException if something goes wrong reading from channel
+	 */
+	boolean read (SocketChannel channel) throws IOException {
+		boolean open = true;
+
+		if (channel.read (netIn) < 0)
+			open = false;
+
+		while (unwrap (channel, false)) {}
+
+		// Handle messages that arrive after handshake, such as key updates
+		if (engine.getHandshakeStatus () == HandshakeStatus.NEED_TASK)
+			runDelegatedTasks ();
+
+		if (engine.getHandshakeStatus () == HandshakeStatus.NEED_WRAP) {
+			wrap (EMPTY);
+			flush (channel);
+		}
+
+		return open && !engine.isInboundDone ();
+	}
+
+	/**
+	 * Gets the buffer containing decrypted bytes.
+	 * The buffer is in write mode, so you need to flip it before reading it
+	 * and compact or clear it afterwards.
+	 * @return application buffer
+	 */
+	ByteBuffer getApplicationBuffer () {
+		return appIn;
+	}
+
+	void close () {
+		engine.closeOutbound ();
+	}
+
+	private boolean flush (SocketChannel channel) throws IOException {
+		while (netOut.hasRemaining ()) {
+			if (channel.write (netOut) == 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	private void wrap (ByteBuffer... sources) throws SSLException {
+		while (true) {
+			netOut.compact ();
+			SSLEngineResult result = engine.wrap (sources, netOut);
+			netOut.flip ();
+
+			switch (result.getStatus ()) {
+			case BUFFER_OVERFLOW: netOut = enlarge (netOut, engine.getSession ().getPacketBufferSize (), true); break;
+			case CLOSED: throw new SSLException ("SSLEngine is closed");
+			default: return;
+			}
+		}
+	}
+
+	private boolean unwrap (SocketChannel channel, boolean readIfNeeded) throws IOException {
+		netIn.flip ();
+		SSLEngineResult result = engine.unwrap (netIn, appIn);
+		netIn.compact ();
+
+		switch (result.getStatus ()) {
+		case OK: return result.bytesConsumed () > 0 || result.bytesProduced () > 0 
+				|| result.getHandshakeStatus () == HandshakeStatus.NEED_TASK || result.getHandshakeStatus () == HandshakeStatus.FINISHED;
+		case BUFFER_OVERFLOW:
+			appIn = enlarge (appIn, engine.getSession ().getApplicationBufferSize (), false);
+			return true;
+		case BUFFER_UNDERFLOW:
+			// Only enlarge if a whole record cannot fit in buffer
+			if (!netIn.hasRemaining () || netIn.capacity () < engine.getSession ().getPacketBufferSize ())
+				netIn = enlarge (netIn, engine.getSession ().getPacketBufferSize (), false);
+
+			if (!readIfNeeded)
+				return false;
+
+			int read = channel.read (netIn);
+
+			if (read < 0)
+				throw new EOFException ("Connection was closed by server during TLS handshake");
+
+			return read > 0;
+		default: 
+			if (readIfNeeded)
+				throw new EOFException ("Connection was closed by server during TLS handshake");
+
+			return false;
+		}
+	}
+
+	private void runDelegatedTasks () {
+		Runnable task;
+
+		while ((task = engine.getDelegatedTask ()) != null)
+			task.run ();
+	}
+
+	private static ByteBuffer enlarge (ByteBuffer buffer, int minimumFree, boolean readMode) {
+		ByteBuffer enlarged = ByteBuffer.allocate (buffer.capacity () + minimumFree);
+
+		if (readMode) {
+			enlarged.put (buffer);
+			enlarged.flip ();
+		} else {
+			buffer.flip ();
+			enlarged.put (buffer);
+		}
+
+		return enlarged;
+	}
+
+}